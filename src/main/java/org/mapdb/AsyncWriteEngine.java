@@ -0,0 +1,542 @@
+/*
+ *  Copyright (c) 2012 Jan Kotek
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.mapdb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Engine} wrapper which performs modifications on background writer thread.
+ * <p>
+ * Modifications are placed into write cache and caller returns immediately.
+ * Serialization and writes into underlying engine happen on writer thread.
+ * Repeated updates of the same recid are merged, only last value is written.
+ * Write cache has limited size, callers block if it is full.
+ * <p>
+ * New recids are preallocated in underlying engine in batches, so {@code put()} does not
+ * have to wait for writer thread.
+ *
+ * @author Jan Kotek
+ */
+public class AsyncWriteEngine implements Engine {
+
+    protected static final Logger LOG = Logger.getLogger(AsyncWriteEngine.class.getName());
+
+    protected static final AtomicLong threadCounter = new AtomicLong();
+
+    /** marker for deleted records in write cache */
+    protected static final Object TOMBSTONE = new Object();
+
+    /** pending modification, identity equality is used when removed from write cache */
+    protected static final class Write{
+        final Object value;
+        final Serializer serializer;
+
+        Write(Object value, Serializer serializer) {
+            this.value = value;
+            this.serializer = serializer;
+        }
+    }
+
+    protected final Engine engine;
+
+    /** pending modifications, written into engine by writer thread */
+    protected final LongConcurrentHashMap<Write> writeCache = new LongConcurrentHashMap<Write>();
+
+    /** one permit for each recid in write cache, provides back-pressure if write cache is full */
+    protected final Semaphore writeCacheSpace;
+    protected final int queueSize;
+
+    protected final long flushDelayNanos;
+    protected final boolean flushNoDelay;
+
+    /** recids preallocated in underlying engine */
+    protected final ArrayBlockingQueue<Long> newRecids =
+            new ArrayBlockingQueue<Long>(CC.ASYNC_RECID_PREALLOC_QUEUE_SIZE);
+    protected final ReentrantLock newRecidsLock = new ReentrantLock(CC.FAIR_LOCKS);
+    /**
+     * unused preallocated recids at time of last commit, they stay preallocated after rollback.
+     * Modified under commit write lock.
+     */
+    protected Long[] newRecidsCommitted = new Long[0];
+
+    /** only single thread writes into engine, so older value never overwrites newer value */
+    protected final ReentrantLock flushLock = new ReentrantLock(CC.FAIR_LOCKS);
+
+    /** read lock for modifications, write lock for commit, rollback and close */
+    protected final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock(CC.FAIR_LOCKS);
+    protected final ReentrantReadWriteLock[] locks;
+    protected final int lockMask;
+
+    protected final Thread writerThread;
+    protected final CountDownLatch writerDone = new CountDownLatch(1);
+    protected volatile boolean closeInProgress = false;
+    protected volatile boolean closed = false;
+
+    /** exception thrown by writer thread, rethrown to caller on next operation */
+    protected volatile Throwable writerFailure = null;
+
+    public AsyncWriteEngine(Engine engine, int lockScale, int flushDelay, int queueSize) {
+        this.engine = engine;
+        if(Integer.bitCount(lockScale)!=1)
+            throw new IllegalArgumentException();
+        this.lockMask = lockScale-1;
+        locks = new ReentrantReadWriteLock[lockScale];
+        for(int i=0;i<locks.length;i++){
+            locks[i] = new ReentrantReadWriteLock(CC.FAIR_LOCKS);
+        }
+        this.queueSize = Math.max(1,queueSize);
+        this.writeCacheSpace = new Semaphore(this.queueSize);
+        this.flushNoDelay = flushDelay<=0;
+        this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+                flushNoDelay? CC.ASYNC_WRITE_FLUSH_DELAY : flushDelay);
+
+        writerThread = new Thread(writerRunnable, "MapDB async writer #"+threadCounter.incrementAndGet());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public AsyncWriteEngine(Engine engine) {
+        this(engine, CC.DEFAULT_LOCK_SCALE, CC.ASYNC_WRITE_FLUSH_DELAY, CC.ASYNC_WRITE_QUEUE_SIZE);
+    }
+
+    protected final Runnable writerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (!closeInProgress) {
+                    if (!flushNoDelay || writeCache.isEmpty())
+                        LockSupport.parkNanos(AsyncWriteEngine.this, flushDelayNanos);
+                    flushWriteCache();
+                }
+            }catch(Throwable e){
+                LOG.log(Level.SEVERE, "Async writer thread failed", e);
+                writerFailure = e;
+            }finally {
+                writerDone.countDown();
+            }
+        }
+    };
+
+    /** writes all pending modifications into underlying engine */
+    protected void flushWriteCache(){
+        flushLock.lock();
+        try{
+            LongConcurrentHashMap.LongMapIterator<Write> iter = writeCache.longMapIterator();
+            while(iter.moveToNext()){
+                long recid = iter.key();
+                Write w = iter.value();
+                if(w.value==TOMBSTONE){
+                    engine.delete(recid, w.serializer);
+                }else{
+                    engine.update(recid, w.value, w.serializer);
+                }
+
+                //remove only if it was not modified in meantime
+                Lock lock = locks[lockPos(recid)].writeLock();
+                lock.lock();
+                try{
+                    if(writeCache.remove(recid, w))
+                        writeCacheSpace.release();
+                }finally {
+                    lock.unlock();
+                }
+            }
+        }finally {
+            flushLock.unlock();
+        }
+    }
+
+    protected void checkState(){
+        if(closed)
+            throw new IllegalAccessError("closed");
+        Throwable e = writerFailure;
+        if(e!=null)
+            throw new DBException("Async writer thread failed", e);
+    }
+
+    /** takes space in write cache, blocks until writer thread makes some space */
+    protected void writeCacheAcquire(){
+        if(writeCacheSpace.availablePermits()<queueSize/4)
+            LockSupport.unpark(writerThread);
+        try {
+            while(!writeCacheSpace.tryAcquire(flushDelayNanos, TimeUnit.NANOSECONDS)){
+                LockSupport.unpark(writerThread);
+                checkState();
+            }
+        } catch (InterruptedException e) {
+            throw new DBException("Interrupted while waiting for async write queue", e);
+        }
+    }
+
+    protected <A> void writeCachePut(long recid, Object value, Serializer<A> serializer){
+        if(CC.PARANOID && commitLock.getReadHoldCount()==0)
+            throw new AssertionError();
+
+        writeCacheAcquire();
+        Lock lock = locks[lockPos(recid)].writeLock();
+        lock.lock();
+        try{
+            if(writeCache.put(recid, new Write(value, serializer))!=null) {
+                //recid was already in write cache, so space was not used
+                writeCacheSpace.release();
+            }else if(flushNoDelay){
+                LockSupport.unpark(writerThread);
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    protected long preallocRecidTake(){
+        Long recid = newRecids.poll();
+        if(recid!=null)
+            return recid;
+
+        newRecidsLock.lock();
+        try{
+            recid = newRecids.poll();
+            if(recid!=null)
+                return recid;
+            //preallocate recids in batch
+            recid = engine.preallocate();
+            for(int i=0;i<CC.ASYNC_RECID_PREALLOC_QUEUE_SIZE;i++){
+                newRecids.add(engine.preallocate());
+            }
+            return recid;
+        }finally {
+            newRecidsLock.unlock();
+        }
+    }
+
+    @Override
+    public long preallocate() {
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            return preallocRecidTake();
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> long put(A value, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            long recid = preallocRecidTake();
+            writeCachePut(recid, value, serializer);
+            return recid;
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> A get(long recid, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            Write w = writeCache.get(recid);
+            if(w!=null)
+                return w.value==TOMBSTONE? null : (A) w.value;
+            return engine.get(recid, serializer);
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> void update(long recid, A value, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            writeCachePut(recid, value, serializer);
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> boolean compareAndSwap(long recid, A expectedOldValue, A newValue, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            writeCacheAcquire();
+            Lock lock = locks[lockPos(recid)].writeLock();
+            lock.lock();
+            try{
+                Write w = writeCache.get(recid);
+                if(w==null){
+                    //no pending write, so engine can compare stored value directly
+                    writeCacheSpace.release();
+                    return engine.compareAndSwap(recid, expectedOldValue, newValue, serializer);
+                }
+                A oldVal = w.value==TOMBSTONE? null : (A) w.value;
+                if(oldVal==expectedOldValue || (oldVal!=null && serializer.equals(oldVal,expectedOldValue))){
+                    if(writeCache.put(recid, new Write(newValue, serializer))!=null)
+                        writeCacheSpace.release();
+                    return true;
+                }
+                writeCacheSpace.release();
+                return false;
+            }finally {
+                lock.unlock();
+            }
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> void delete(long recid, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            writeCachePut(recid, TOMBSTONE, serializer);
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            Object[] ret = new Object[recids.length];
+            int[] miss = new int[recids.length];
+            int missCount = 0;
+            for(int i=0;i<recids.length;i++){
+                Write w = writeCache.get(recids[i]);
+                if(w==null){
+                    miss[missCount++] = i;
+                }else{
+                    ret[i] = w.value==TOMBSTONE? null : w.value;
+                }
+            }
+            if(missCount==0)
+                return ret;
+
+            //load remaining records from engine in single batch
+            long[] missRecids = new long[missCount];
+            for(int i=0;i<missCount;i++){
+                missRecids[i] = recids[miss[i]];
+            }
+            Object[] loaded = engine.getAll(missRecids, serializer);
+            for(int i=0;i<missCount;i++){
+                ret[miss[i]] = loaded[i];
+            }
+            return ret;
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            long[] recids = new long[values.length];
+            for(int i=0;i<values.length;i++){
+                recids[i] = preallocRecidTake();
+                writeCachePut(recids[i], values[i], serializer);
+            }
+            return recids;
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        if(recids.length!=values.length)
+            throw new IllegalArgumentException("recids and values have different length");
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            for(int i=0;i<recids.length;i++){
+                writeCachePut(recids[i], values[i], serializer);
+            }
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        commitLock.readLock().lock();
+        try{
+            checkState();
+            for(long recid:recids){
+                writeCachePut(recid, TOMBSTONE, serializer);
+            }
+        }finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        commitLock.writeLock().lock();
+        try{
+            if(closed)
+                return;
+            //stop writer thread
+            closeInProgress = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerDone.await();
+            } catch (InterruptedException e) {
+                throw new DBException("Interrupted while waiting for async writer thread", e);
+            }
+            if(writerFailure==null) {
+                flushWriteCache();
+                //release recids which were preallocated, but never used
+                for(Long recid = newRecids.poll(); recid!=null; recid = newRecids.poll()){
+                    engine.delete(recid, Serializer.BASIC);
+                }
+            }
+            engine.close();
+        }finally {
+            closed = true;
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void commit() {
+        commitLock.writeLock().lock();
+        try{
+            checkState();
+            flushWriteCache();
+            engine.commit();
+            newRecidsCommitted = newRecids.toArray(new Long[0]);
+        }finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void rollback() throws UnsupportedOperationException {
+        if(!engine.canRollback())
+            throw new UnsupportedOperationException("rollback not supported by underlying engine");
+        commitLock.writeLock().lock();
+        try{
+            checkState();
+            flushLock.lock();
+            try{
+                //no other thread can modify write cache at this point
+                int size = writeCache.size();
+                writeCache.clear();
+                writeCacheSpace.release(size);
+            }finally {
+                flushLock.unlock();
+            }
+            engine.rollback();
+            //recids preallocated after commit are discarded by rollback,
+            //recids preallocated before commit are unused again, even if they were taken after commit
+            newRecids.clear();
+            for(Long recid:newRecidsCommitted){
+                newRecids.add(recid);
+            }
+        }finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return engine.isReadOnly();
+    }
+
+    @Override
+    public boolean canRollback() {
+        return engine.canRollback();
+    }
+
+    @Override
+    public boolean canSnapshot() {
+        return false;
+    }
+
+    @Override
+    public Engine snapshot() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("Snapshots are not supported by AsyncWriteEngine, use DBMaker.snapshotEnable()");
+    }
+
+    @Override
+    public Engine getWrappedEngine() {
+        return engine;
+    }
+
+    @Override
+    public void clearCache() {
+        engine.clearCache();
+    }
+
+    @Override
+    public void compact() {
+        commitLock.writeLock().lock();
+        try{
+            checkState();
+            flushWriteCache();
+            engine.compact();
+        }finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    protected final int lockPos(final long recid) {
+        int hash =  DataIO.longHash(recid);
+        return (hash + 31*hash)  & lockMask;
+    }
+}
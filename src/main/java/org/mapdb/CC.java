@@ -89,17 +89,37 @@ public interface CC {
 
     int DEFAULT_CACHE_SIZE = 2048;
 
+    /** estimated memory size of items in cache bounded by size, divided between all segments */
+    long DEFAULT_CACHE_SIZE_BYTES = 32*1024*1024;
+
     String DEFAULT_CACHE = DBMaker.Keys.cache_hashTable;
 
     int DEFAULT_FREE_SPACE_RECLAIM_Q = 5;
 
+    /** size of sealed Write Ahead Log files, after which background thread copies them into main store */
+    long DEFAULT_WAL_CHECKPOINT_SIZE = 16*1024*1024;
+
+    /** new Write Ahead Log files are preallocated to this size, replayed files are reused */
+    long DEFAULT_WAL_PREALLOCATE_SIZE = 1024*1024;
+
+    /** records of this size or larger are compressed in Write Ahead Log, if WAL compression is enabled */
+    int DEFAULT_WAL_COMPRESSION_THRESHOLD = 1024;
+
+    /** background cleaner moves live records out of append-only log segment when this fraction of segment is garbage, if cleaner is enabled */
+    double DEFAULT_APPEND_CLEANER_GARBAGE_RATIO = 0.5;
+
+    /** append-only store writes checkpoint of its index, after log grows by this number of bytes */
+    long DEFAULT_APPEND_CHECKPOINT_SIZE = 64*1024*1024;
+
+    /** size of append-only log segment files, full segment is sealed and deleted when it has no live records */
+    long DEFAULT_APPEND_SEGMENT_SIZE = 16*1024*1024;
+
     /** controls if locks used in MapDB are fair */
     boolean FAIR_LOCKS = false;
 
 
     int VOLUME_PAGE_SHIFT = 20; // 1 MB
 
-    boolean STORE_INDEX_CRC = false; //TODO move to feature bit field
 
     /**
      * Will print stack trace of all operations which are write any data at given offset
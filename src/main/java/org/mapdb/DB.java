@@ -1850,6 +1850,26 @@ public class DB implements Closeable {
             throw new IllegalAccessError("already closed");
         }
 
+        @Override
+        public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+            throw new IllegalAccessError("already closed");
+        }
+
+        @Override
+        public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+            throw new IllegalAccessError("already closed");
+        }
+
+        @Override
+        public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+            throw new IllegalAccessError("already closed");
+        }
+
+        @Override
+        public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+            throw new IllegalAccessError("already closed");
+        }
+
         @Override
         public void close() {
             throw new IllegalAccessError("already closed");
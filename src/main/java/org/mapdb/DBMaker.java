@@ -43,12 +43,15 @@ public class DBMaker{
     protected interface Keys{
         String cache = "cache";
         String cacheSize = "cacheSize";
+        String cacheSizeBytes = "cacheSizeBytes";
         String cache_disable = "disable";
         String cache_hashTable = "hashTable";
         String cache_hardRef = "hardRef";
         String cache_softRef = "softRef";
         String cache_weakRef = "weakRef";
         String cache_lru = "lru";
+        String cache_tinyLFU = "tinyLFU";
+        String cache_byteBounded = "byteBounded";
 
         String file = "file";
 
@@ -93,9 +96,19 @@ public class DBMaker{
         String encryption_xtea = "xtea";
 
         String checksum = "checksum";
+        String indexPageChecksum = "indexPageChecksum";
 
         String freeSpaceReclaimQ = "freeSpaceReclaimQ";
         String commitFileSyncDisable = "commitFileSyncDisable";
+        String commitSyncInterval = "commitSyncInterval";
+        String commitSyncBytes = "commitSyncBytes";
+        String walCheckpointSize = "walCheckpointSize";
+        String walPreallocateSize = "walPreallocateSize";
+        String walCompressionThreshold = "walCompressionThreshold";
+        String appendCleanerGarbageRatio = "appendCleanerGarbageRatio";
+        String appendCheckpointSize = "appendCheckpointSize";
+        String appendSegmentSize = "appendSegmentSize";
+        String allocatorArenas = "allocatorArenas";
 
         String snapshots = "snapshots";
 
@@ -420,6 +433,34 @@ public class DBMaker{
         return this;
     }
 
+    /**
+     * Enables Window TinyLFU cache. It is fixed size cache, which removes items with lowest access frequency.
+     * New item only replaces cached item if it is used more often, so one-off reads such as full scan of
+     * BTreeMap do not evict frequently used items.
+     *
+     * @return this builder
+     */
+    public DBMaker cacheTinyLFUEnable(){
+        props.put(Keys.cache,Keys.cache_tinyLFU);
+        return this;
+    }
+
+    /**
+     * Enables Least Recently Used cache bounded by memory size of cached items, instead of their number.
+     * Size of item is estimated from size of its serialized record, so cache of large records holds fewer items.
+     * <p>
+     * Budget is divided between segments of store, so it caps heap used by instance cache.
+     *
+     * @param sizeBytes maximal estimated size of cached items in bytes
+     * @return this builder
+     */
+    public DBMaker cacheSizeBytes(long sizeBytes){
+        if(sizeBytes<=0) throw new IllegalArgumentException("wrong size");
+        props.put(Keys.cache,Keys.cache_byteBounded);
+        props.setProperty(Keys.cacheSizeBytes,""+sizeBytes);
+        return this;
+    }
+
     /**
      * Disable locks. This will make MapDB thread unsafe. It will also disable any background thread workers.
      * <p>
@@ -458,6 +499,21 @@ public class DBMaker{
         return this;
     }
 
+    /**
+     * Enables parallel space allocator. Each segment (see {@link #lockScale(int)}) gets its own allocation arena,
+     * so concurrent inserts do not contend on single allocator lock. Each arena holds chunk of free space,
+     * which is kept across commits and returned to store only on close. So store file is somewhat larger,
+     * and if store is not closed properly (crash), unused part of chunks is lost until store is compacted.
+     * <p>
+     * It is only used by direct store, when transactions are disabled.
+     * <p>
+     * @return this builder
+     */
+    public DBMaker allocatorArenasEnable() {
+        props.put(Keys.allocatorArenas, TRUE);
+        return this;
+    }
+
 
 
     /**
@@ -526,7 +582,6 @@ public class DBMaker{
      * @return this builder
      */
     public DBMaker asyncWriteEnable(){
-        LOG.warning("AsyncWrite is not implemented at this moment");
         props.setProperty(Keys.asyncWrite,TRUE);
         return this;
     }
@@ -534,7 +589,7 @@ public class DBMaker{
 
 
     /**
-     * Set flush interval for write cache, by default is 0
+     * Set flush interval for write cache, by default is 100 ms
      * <p>
      * When BTreeMap is constructed from ordered set, tree node size is increasing linearly with each
      * item added. Each time new key is added to tree node, its size changes and
@@ -554,7 +609,8 @@ public class DBMaker{
     }
 
     /**
-     * Set size of async Write Queue. Default size is
+     * Set size of async Write Queue. Default size is 32000 records.
+     * Threads modifying the store are blocked if the queue is full.
      * <p>
      * Using too large queue size can lead to out of memory exception.
      *
@@ -649,6 +705,24 @@ public class DBMaker{
         return this;
     }
 
+    /**
+     * Adds checksum to each index page, which maps recids to record offsets.
+     * Checksum of index page is verified when page is first accessed after store was opened,
+     * it throws {@link DBException.ChecksumBroken} if index is corrupted.
+     * Unlike {@link #checksumEnable()} records are not checked, but there is no overhead on each record read.
+     * <p>
+     * This option is stored in store header. It only takes effect when new store is created,
+     * it does not have to be enabled when store is reopened.
+     * <p>
+     * It is only used by direct store and store with write ahead log.
+     *
+     * @return this builder
+     */
+    public DBMaker indexPageChecksumEnable(){
+        props.setProperty(Keys.indexPageChecksum,TRUE);
+        return this;
+    }
+
 
     /**
      * DB Get methods such as {@link DB#getTreeMap(String)} or {@link DB#getAtomicLong(String)} auto create
@@ -702,6 +776,8 @@ public class DBMaker{
      * but commits are not 'durable' and data may be lost if store is not properly closed.
      * File store will get properly synced when closed.
      * Disabling this will make commits faster.
+     * <p>
+     * Use {@link #commitSyncPeriodic(long, long)} if only limited amount of data can be lost.
      *
      * @return this builder
      */
@@ -710,6 +786,148 @@ public class DBMaker{
         return this;
     }
 
+    /**
+     * Commits are not synced to disk immediately, but by background thread, at most after given interval
+     * or after commits wrote given number of bytes. Commit is faster, but last commits may be lost after crash.
+     * Transactions are still preserved, store is not corrupted if commits are lost.
+     * <p>
+     * By default each commit is synced before it returns. It applies to store with write ahead log,
+     * append-only store and direct store with transactions disabled.
+     *
+     * @param intervalMillis maximal time between commit and sync in milliseconds
+     * @param bytes sync is also started when commits wrote more bytes since last sync, zero disables this limit
+     * @return this builder
+     */
+    public DBMaker commitSyncPeriodic(long intervalMillis, long bytes){
+        if(intervalMillis<=0) throw new IllegalArgumentException("wrong interval");
+        if(bytes<0) throw new IllegalArgumentException("wrong bytes");
+        props.setProperty(Keys.commitSyncInterval,""+intervalMillis);
+        props.setProperty(Keys.commitSyncBytes,""+bytes);
+        return this;
+    }
+
+    /**
+     * Sets size of Write Ahead Log after which it is copied into main store.
+     * Copying runs in background thread, commits, reads and writes are not blocked while it runs.
+     * Smaller value means less disk space used by log and faster reopen after crash,
+     * larger value means less writes into main store.
+     * <p>
+     * Default value is 16 MB. It is only used by store with write ahead log.
+     *
+     * @param size of log in bytes
+     * @return this builder
+     */
+    public DBMaker walCheckpointSize(long size){
+        if(size<0) throw new IllegalArgumentException("wrong size");
+        props.setProperty(Keys.walCheckpointSize,""+size);
+        return this;
+    }
+
+    /**
+     * Sets size to which new Write Ahead Log files are preallocated.
+     * Files copied into main store are reset and reused, instead of being deleted and created again.
+     * So commits do not have to extend files, if transaction fits into preallocated size.
+     * <p>
+     * Default value is 1 MB, zero disables preallocation and reuse of files.
+     * It is only used by store with write ahead log.
+     *
+     * @param size of new log file in bytes
+     * @return this builder
+     */
+    public DBMaker walPreallocateSize(long size){
+        if(size<0) throw new IllegalArgumentException("wrong size");
+        props.setProperty(Keys.walPreallocateSize,""+size);
+        return this;
+    }
+
+    /**
+     * Enables compression of large records in Write Ahead Log.
+     * Records with 1 KB or more are compressed by LZF before they are written into log.
+     * Main store keeps records uncompressed, so this setting does not have to be used when store is reopened.
+     * <p>
+     * It is independent of {@link #compressionEnable()}, which compresses all records in main store.
+     * It is only used by store with write ahead log.
+     *
+     * @return this builder
+     */
+    public DBMaker walCompressionEnable(){
+        return walCompressionEnable(CC.DEFAULT_WAL_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Enables compression of large records in Write Ahead Log.
+     * Same as {@link #walCompressionEnable()}, but with custom minimal size of compressed record.
+     *
+     * @param minSize records of this size or larger are compressed
+     * @return this builder
+     */
+    public DBMaker walCompressionEnable(int minSize){
+        if(minSize<=0) throw new IllegalArgumentException("wrong size");
+        props.setProperty(Keys.walCompressionThreshold,""+minSize);
+        return this;
+    }
+
+    /**
+     * Enables background log cleaner in append-only store.
+     * Each update leaves old version of record in log. Cleaner copies live records out of log segment
+     * to end of log, and deletes segment file. Reads, writes and commits are not blocked while records are copied.
+     * <p>
+     * Cleaner runs when half of segment is garbage. Segments without live records are deleted even if cleaner is disabled.
+     * It is only used by append-only store.
+     *
+     * @return this builder
+     */
+    public DBMaker appendCleanerEnable(){
+        return appendCleanerEnable(CC.DEFAULT_APPEND_CLEANER_GARBAGE_RATIO);
+    }
+
+    /**
+     * Enables background log cleaner in append-only store.
+     * Same as {@link #appendCleanerEnable()}, but with custom garbage ratio.
+     *
+     * @param garbageRatio cleaner runs when this fraction of segment is not used by live records, value from 0 to 1
+     * @return this builder
+     */
+    public DBMaker appendCleanerEnable(double garbageRatio){
+        if(garbageRatio<=0 || garbageRatio>=1) throw new IllegalArgumentException("wrong ratio");
+        props.setProperty(Keys.appendCleanerGarbageRatio,""+garbageRatio);
+        return this;
+    }
+
+    /**
+     * Sets how often append-only store writes checkpoint of its index into separate file.
+     * Checkpoint is written in background thread, after log grows by given number of bytes, and when store is closed.
+     * When store is opened, it loads index from checkpoint and only replays log written after it.
+     * Smaller value means faster open, larger value means less writes.
+     * <p>
+     * Default value is 64 MB, zero disables checkpoints. It is only used by append-only store.
+     *
+     * @param size of log in bytes written between checkpoints
+     * @return this builder
+     */
+    public DBMaker appendCheckpointSize(long size){
+        if(size<0) throw new IllegalArgumentException("wrong size");
+        props.setProperty(Keys.appendCheckpointSize,""+size);
+        return this;
+    }
+
+    /**
+     * Sets size of log segment files in append-only store.
+     * Log is split into segment files, full segment is sealed and never modified again.
+     * Segment is deleted once it has no live records, so space is reclaimed without rewriting entire log.
+     * <p>
+     * Default value is 16 MB. Size is rounded up to power of two, minimal size is 1 MB.
+     * Existing store keeps segment size it was created with. It is only used by append-only store.
+     *
+     * @param size of log segment file in bytes
+     * @return this builder
+     */
+    public DBMaker appendSegmentSize(long size){
+        if(size<=0) throw new IllegalArgumentException("wrong size");
+        props.setProperty(Keys.appendSegmentSize,""+size);
+        return this;
+    }
+
 
 
     /** constructs DB using current settings */
@@ -790,7 +1008,12 @@ public class DBMaker{
                     Keys.compression_lzf.equals(props.getProperty(Keys.compression)),
                     propsGetXteaEncKey(),
                     propsGetBool(Keys.readOnly),
-                    propsGetBool(Keys.transactionDisable)
+                    propsGetCommitSyncInterval(),
+                    propsGetLong(Keys.commitSyncBytes, 0),
+                    propsGetBool(Keys.transactionDisable),
+                    propsGetDouble(Keys.appendCleanerGarbageRatio, 0),
+                    propsGetLong(Keys.appendCheckpointSize, CC.DEFAULT_APPEND_CHECKPOINT_SIZE),
+                    propsGetLong(Keys.appendSegmentSize, CC.DEFAULT_APPEND_SEGMENT_SIZE)
             );
 
         }else{
@@ -810,8 +1033,11 @@ public class DBMaker{
                             propsGetXteaEncKey(),
                             propsGetBool(Keys.readOnly),
                             propsGetInt(Keys.freeSpaceReclaimQ,CC.DEFAULT_FREE_SPACE_RECLAIM_Q),
-                            propsGetBool(Keys.commitFileSyncDisable),
-                            0):
+                            propsGetCommitSyncInterval(),
+                            propsGetLong(Keys.commitSyncBytes, 0),
+                            0,
+                            propsGetBool(Keys.allocatorArenas),
+                            propsGetBool(Keys.indexPageChecksum)):
 
                     new StoreWAL(
                             file,
@@ -824,8 +1050,13 @@ public class DBMaker{
                             propsGetXteaEncKey(),
                             propsGetBool(Keys.readOnly),
                             propsGetInt(Keys.freeSpaceReclaimQ, CC.DEFAULT_FREE_SPACE_RECLAIM_Q),
-                            propsGetBool(Keys.commitFileSyncDisable),
-                            0);
+                            propsGetCommitSyncInterval(),
+                            propsGetLong(Keys.commitSyncBytes, 0),
+                            0,
+                            propsGetBool(Keys.indexPageChecksum),
+                            propsGetLong(Keys.walCheckpointSize, CC.DEFAULT_WAL_CHECKPOINT_SIZE),
+                            propsGetLong(Keys.walPreallocateSize, CC.DEFAULT_WAL_PREALLOCATE_SIZE),
+                            propsGetInt(Keys.walCompressionThreshold, 0));
         }
 
         if(engine instanceof Store){
@@ -835,7 +1066,7 @@ public class DBMaker{
         engine = extendWrapStore(engine);
 
         if(propsGetBool(Keys.asyncWrite) && !readOnly){
-            engine = extendAsyncWriteEngine(engine);
+            engine = extendAsyncWriteEngine(engine, lockScale);
         }
 
 
@@ -896,6 +1127,12 @@ public class DBMaker{
         }else if (Keys.cache_lru.equals(cache)){
             int cacheSize = propsGetInt(Keys.cacheSize, CC.DEFAULT_CACHE_SIZE) / lockScale;
             return new Store.Cache.LRU(cacheSize,disableLocks);
+        }else if (Keys.cache_tinyLFU.equals(cache)){
+            int cacheSize = propsGetInt(Keys.cacheSize, CC.DEFAULT_CACHE_SIZE) / lockScale;
+            return new Store.Cache.TinyLFU(cacheSize,disableLocks);
+        }else if (Keys.cache_byteBounded.equals(cache)){
+            long sizeBytes = propsGetLong(Keys.cacheSizeBytes, CC.DEFAULT_CACHE_SIZE_BYTES) / lockScale;
+            return new Store.Cache.ByteBounded(sizeBytes,disableLocks);
         }else{
             throw new IllegalArgumentException("unknown cache type: "+cache);
         }
@@ -908,12 +1145,25 @@ public class DBMaker{
         return Integer.valueOf(ret);
     }
 
+    /** zero syncs each commit, negative value disables sync, positive value is background sync interval */
+    protected long propsGetCommitSyncInterval(){
+        if(propsGetBool(Keys.commitFileSyncDisable))
+            return -1;
+        return propsGetLong(Keys.commitSyncInterval, 0);
+    }
+
     protected long propsGetLong(String key, long defValue){
         String ret = props.getProperty(key);
         if(ret==null) return defValue;
         return Long.valueOf(ret);
     }
 
+    protected double propsGetDouble(String key, double defValue){
+        String ret = props.getProperty(key);
+        if(ret==null) return defValue;
+        return Double.valueOf(ret);
+    }
+
 
     protected boolean propsGetBool(String key){
         String ret = props.getProperty(key);
@@ -960,13 +1210,11 @@ public class DBMaker{
         return new TxEngine(engine,propsGetBool(Keys.fullTx), lockScale);
     }
 
-    protected Engine extendAsyncWriteEngine(Engine engine) {
-        return engine;
-        //TODO async write
-//        return new AsyncWriteEngine(engine,
-//                propsGetInt(Keys.asyncWriteFlushDelay,CC.ASYNC_WRITE_FLUSH_DELAY),
-//                propsGetInt(Keys.asyncWriteQueueSize,CC.ASYNC_WRITE_QUEUE_SIZE),
-//                null);
+    protected Engine extendAsyncWriteEngine(Engine engine, int lockScale) {
+        return new AsyncWriteEngine(engine,
+                lockScale,
+                propsGetInt(Keys.asyncWriteFlushDelay,CC.ASYNC_WRITE_FLUSH_DELAY),
+                propsGetInt(Keys.asyncWriteQueueSize,CC.ASYNC_WRITE_QUEUE_SIZE));
     }
 
 
@@ -1079,6 +1327,26 @@ public class DBMaker{
             engine.delete(recid,serializer);
         }
 
+        @Override
+        public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+            return engine.getAll(recids,serializer);
+        }
+
+        @Override
+        public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+            return engine.putAll(values,serializer);
+        }
+
+        @Override
+        public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+            engine.updateAll(recids,values,serializer);
+        }
+
+        @Override
+        public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+            engine.deleteAll(recids,serializer);
+        }
+
         @Override
         public void close() {
             engine.close();
@@ -163,6 +163,17 @@ public final class DataIO {
         return counter;
     }
 
+    /** returns number of bytes {@link #packLongBidi(byte[], int, long)} would use to store given value */
+    public static int packLongBidiSize(long value) {
+        value >>>= 7;
+        int counter = 2;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            counter++;
+        }
+        return counter;
+    }
+
 
     public static long unpackLongBidi(byte[] bb, int pos){
         //$DELAY$
@@ -228,6 +239,22 @@ public final class DataIO {
     }
 
 
+    public static int getInt(byte[] buf, int pos) {
+        return
+                (((int)buf[pos++]) << 24) |
+                (((int)buf[pos++] & 0xFF) << 16) |
+                (((int)buf[pos++] & 0xFF) <<  8) |
+                (((int)buf[pos] & 0xFF));
+    }
+
+    public static void putInt(byte[] buf, int pos,int v) {
+        buf[pos++] = (byte) (0xff & (v >> 24));
+        buf[pos++] = (byte) (0xff & (v >> 16));
+        buf[pos++] = (byte) (0xff & (v >> 8));
+        buf[pos] = (byte) (0xff & (v));
+    }
+
+
     public static long getSixLong(byte[] buf, int pos) {
         return
                         ((long) (buf[pos++] & 0xff) << 40) |
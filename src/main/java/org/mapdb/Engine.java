@@ -201,6 +201,48 @@ public interface Engine  extends Closeable {
     <A> void delete(long recid, Serializer<A>  serializer);
 
 
+    /**
+     * Get multiple records at once. It is faster than calling {@link #get(long, Serializer)} for each recid,
+     * since locks are acquired only once for each segment.
+     *
+     * @param recids (record identifiers) under which records were persisted
+     * @param serializer used to deserialize records from binary form
+     * @return records in the same order as recids
+     * @throws java.lang.NullPointerException if serializer is null
+     */
+    <A> Object[] getAll(long[] recids, Serializer<A> serializer);
+
+    /**
+     * Insert multiple records at once.
+     *
+     * @param values records to be added
+     * @param serializer used to convert records into binary form
+     * @return recids under which records are stored, in the same order as values
+     * @throws java.lang.NullPointerException if serializer is null
+     */
+    <A> long[] putAll(A[] values, Serializer<A> serializer);
+
+    /**
+     * Update multiple existing records at once.
+     *
+     * @param recids (record identifiers) under which records were persisted
+     * @param values new record values, in the same order as recids
+     * @param serializer used to serialize records into binary form
+     * @throws java.lang.NullPointerException if serializer is null
+     * @throws java.lang.IllegalArgumentException if arrays have different length
+     */
+    <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer);
+
+    /**
+     * Remove multiple existing records at once.
+     *
+     * @param recids (record identifiers) under which were records persisted
+     * @param serializer which may be used in some circumstances to deserialize and store old objects
+     * @throws java.lang.NullPointerException if serializer is null
+     */
+    <A> void deleteAll(long[] recids, Serializer<A> serializer);
+
+
     /**
      * Close store/cache. This method must be called before JVM exits to flush all caches and prevent store corruption.
      * Also it releases resources used by MapDB (disk, memory..).
@@ -312,6 +354,26 @@ public interface Engine  extends Closeable {
             throw new UnsupportedOperationException("Read-only");
         }
 
+        @Override
+        public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+            return engine.getAll(recids, serializer);
+        }
+
+        @Override
+        public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
         @Override
         public void close() {
              engine.close();
@@ -76,6 +76,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
     };
 
     /**
@@ -102,6 +107,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
     };
 
     /**
@@ -198,6 +208,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public void valueArraySerialize(DataOutput out, Object vals) throws IOException {
             for(long o:(long[]) vals){
@@ -302,6 +317,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public void valueArraySerialize(DataOutput out, Object vals) throws IOException {
             for(int o:(int[]) vals){
@@ -404,6 +424,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
 
     };
 
@@ -434,6 +459,11 @@ public abstract class Serializer<A> {
         public boolean isTrusted() {
             return true;
         }
+
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
     };
 
 
@@ -483,6 +513,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public boolean equals(byte[] a1, byte[] a2) {
             return Arrays.equals(a1,a2);
@@ -517,6 +552,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public boolean equals(byte[] a1, byte[] a2) {
             return Arrays.equals(a1,a2);
@@ -558,6 +598,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public boolean equals(char[] a1, char[] a2) {
             return Arrays.equals(a1,a2);
@@ -600,6 +645,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public boolean equals(int[] a1, int[] a2) {
             return Arrays.equals(a1,a2);
@@ -642,6 +692,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
         @Override
         public boolean equals(long[] a1, long[] a2) {
             return Arrays.equals(a1,a2);
@@ -742,6 +797,11 @@ public abstract class Serializer<A> {
             return true;
         }
 
+        @Override
+        public boolean isCanonical() {
+            return true;
+        }
+
 
         @Override
         public boolean equals(UUID a1, UUID a2) {
@@ -1355,6 +1415,18 @@ public abstract class Serializer<A> {
         return false;
     }
 
+    /**
+     * Returns true if binary form is canonical: two values are equal
+     * (by {@link #equals(Object, Object)}) only if their binary forms are equal.
+     * Store can than compare records in binary form without deserialization,
+     * for example in {@link Engine#compareAndSwap(long, Object, Object, Serializer)}.
+     *
+     * @return true if binary form can be compared instead of deserialized values
+     */
+    public boolean isCanonical(){
+        return false;
+    }
+
     public boolean equals(A a1, A a2){
         return a1==a2 || (a1!=null && a1.equals(a2));
     }
@@ -7,11 +7,13 @@ import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.*;
 import java.util.logging.Level;
@@ -48,8 +50,33 @@ public abstract class Store implements Engine {
     protected final EncryptionXTEA encryptionXTEA;
     protected final ThreadLocal<CompressLZF> LZF;
 
+    /** serialized size of record last deserialized by current thread, it is only tracked for {@link Cache.ByteBounded} */
+    protected final ThreadLocal<int[]> deserializedSize;
+
     protected final Cache[] caches;
 
+    /**
+     * Sync policy for commits. Zero syncs volume on each commit, negative value only syncs when store is closed.
+     * Positive value is interval in milliseconds in which background thread syncs modified volumes.
+     */
+    protected final long commitSyncInterval;
+    /** background sync is also started when commits modified more bytes since last sync, zero disables it */
+    protected final long commitSyncBytes;
+
+    /** guards volumes waiting for sync */
+    protected final ReentrantLock commitSyncLock = new ReentrantLock(CC.FAIR_LOCKS);
+    protected final Condition commitSyncWake = commitSyncLock.newCondition();
+    /** held while volumes are synced, so they are not closed in meantime */
+    protected final ReentrantLock commitSyncRunLock = new ReentrantLock(CC.FAIR_LOCKS);
+    /** volumes modified by commits, but not synced yet, guarded by {@link #commitSyncLock} */
+    protected final ArrayList<Volume> commitSyncPending = new ArrayList<Volume>();
+    /** bytes written since last sync, guarded by {@link #commitSyncLock} */
+    protected long commitSyncPendingBytes = 0;
+    protected Thread commitSyncThread = null;
+    protected volatile Throwable commitSyncFailure = null;
+
+    protected static final AtomicInteger commitSyncThreadCounter = new AtomicInteger();
+
     protected Store(
             String fileName,
             Fun.Function1<Volume, String> volumeFactory,
@@ -59,7 +86,9 @@ public abstract class Store implements Engine {
             boolean checksum,
             boolean compress,
             byte[] password,
-            boolean readonly) {
+            boolean readonly,
+            long commitSyncInterval,
+            long commitSyncBytes) {
         this.fileName = fileName;
         this.volumeFactory = volumeFactory;
         this.lockScale = lockScale;
@@ -85,12 +114,20 @@ public abstract class Store implements Engine {
             //each segment needs different cache, since StoreCache is not thread safe
             caches[i] = cache.clone();
         }
+        this.deserializedSize = !(cache instanceof Cache.ByteBounded)?null:new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[]{-1};
+            }
+        };
 
 
         this.checksum = checksum;
         this.compress = compress;
         this.encrypt =  password!=null;
         this.readonly = readonly;
+        this.commitSyncInterval = commitSyncInterval;
+        this.commitSyncBytes = commitSyncBytes;
         this.encryptionXTEA = !encrypt?null:new EncryptionXTEA(password);
 
         this.LZF = !compress?null:new ThreadLocal<CompressLZF>() {
@@ -103,6 +140,123 @@ public abstract class Store implements Engine {
 
     public void init(){}
 
+    /**
+     * Makes modifications in volume durable after commit. Depending on {@link #commitSyncInterval}
+     * volume is synced immediately, by background thread or when store is closed.
+     *
+     * @param vol modified volume
+     * @param bytes number of bytes written into volume since last commit, zero if not known
+     */
+    protected void commitSync(Volume vol, long bytes){
+        if(commitSyncInterval==0){
+            vol.sync();
+            return;
+        }
+        Throwable failure = commitSyncFailure;
+        if(failure!=null)
+            throw new DBException("Background sync failed", failure);
+
+        commitSyncLock.lock();
+        try{
+            if(!commitSyncPending.contains(vol))
+                commitSyncPending.add(vol);
+            commitSyncPendingBytes+=bytes;
+            if(commitSyncInterval<0)
+                return; //synced on close
+            if(commitSyncThread==null){
+                commitSyncThread = new Thread(commitSyncRunnable, "MapDB sync #"+commitSyncThreadCounter.incrementAndGet());
+                commitSyncThread.setDaemon(true);
+                commitSyncThread.start();
+            }else if(commitSyncBytes>0 && commitSyncPendingBytes>=commitSyncBytes){
+                commitSyncWake.signal();
+            }
+        }finally {
+            commitSyncLock.unlock();
+        }
+    }
+
+    protected final Runnable commitSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long interval = TimeUnit.MILLISECONDS.toNanos(commitSyncInterval);
+            try{
+                for(;;){
+                    commitSyncLock.lock();
+                    try{
+                        long wait = interval;
+                        while(!closed && wait>0 &&
+                                (commitSyncBytes<=0 || commitSyncPendingBytes<commitSyncBytes)){
+                            wait = commitSyncWake.awaitNanos(wait);
+                        }
+                        if(closed)
+                            return;
+                    }finally {
+                        commitSyncLock.unlock();
+                    }
+                    commitSyncFlush();
+                }
+            }catch(InterruptedException e){
+                //exit
+            }catch(Throwable e){
+                if(closed)
+                    return;
+                LOG.log(Level.SEVERE, "Background sync failed", e);
+                commitSyncFailure = e;
+            }
+        }
+    };
+
+    /** syncs all volumes modified by commits since last sync */
+    protected void commitSyncFlush(){
+        commitSyncRunLock.lock();
+        try{
+            Volume[] vols;
+            commitSyncLock.lock();
+            try{
+                vols = commitSyncPending.toArray(new Volume[commitSyncPending.size()]);
+                commitSyncPending.clear();
+                commitSyncPendingBytes = 0;
+            }finally {
+                commitSyncLock.unlock();
+            }
+            for(Volume vol:vols){
+                vol.sync();
+            }
+        }finally {
+            commitSyncRunLock.unlock();
+        }
+    }
+
+    /** removes volume from pending syncs, it must be called before volume is closed */
+    protected void commitSyncRemove(Volume vol){
+        if(commitSyncInterval==0)
+            return;
+        commitSyncRunLock.lock();
+        try{
+            commitSyncLock.lock();
+            try{
+                commitSyncPending.remove(vol);
+            }finally {
+                commitSyncLock.unlock();
+            }
+        }finally {
+            commitSyncRunLock.unlock();
+        }
+    }
+
+    /** syncs pending volumes and stops background thread, it is called when store is closed */
+    protected void commitSyncClose(){
+        if(commitSyncInterval==0)
+            return;
+        commitSyncLock.lock();
+        try{
+            commitSyncWake.signal();
+        }finally {
+            commitSyncLock.unlock();
+        }
+        commitSyncFlush();
+    }
+
     @Override
     public <A> A get(long recid, Serializer<A> serializer) {
         if(serializer==null)
@@ -119,9 +273,7 @@ public abstract class Store implements Engine {
             if(o!=null) {
                 return o== Cache.NULL?null:o;
             }
-            o =  get2(recid,serializer);
-            cache.put(recid,o);
-            return o;
+            return get2AndCache(cache, recid, serializer);
         }finally {
             lock.unlock();
         }
@@ -129,6 +281,31 @@ public abstract class Store implements Engine {
 
     protected abstract <A> A get2(long recid, Serializer<A> serializer);
 
+    /**
+     * Reads record with {@link #get2(long, Serializer)} and puts it into cache.
+     * Cache bounded by memory also gets serialized size of record.
+     */
+    protected <A> A get2AndCache(Cache cache, long recid, Serializer<A> serializer){
+        if(deserializedSize==null){
+            A o = get2(recid, serializer);
+            cache.put(recid, o);
+            return o;
+        }
+        int[] size = deserializedSize.get();
+        size[0] = -1; //record might not be deserialized, for example if it is in write cache
+        A o = get2(recid, serializer);
+        ((Cache.ByteBounded)cache).put(recid, o, size[0]);
+        return o;
+    }
+
+    /** puts item into cache, cache bounded by memory also gets serialized size of record, or -1 if it is not known */
+    protected static void cachePut(Cache cache, long recid, Object item, int size){
+        if(cache instanceof Cache.ByteBounded)
+            ((Cache.ByteBounded)cache).put(recid, item, size);
+        else
+            cache.put(recid, item);
+    }
+
     @Override
     public <A> void update(long recid, A value, Serializer<A> serializer) {
         if(serializer==null)
@@ -144,7 +321,7 @@ public abstract class Store implements Engine {
         final Cache cache = caches[lockPos];
         lock.lock();
         try{
-            cache.put(recid,value);
+            cachePut(cache, recid, value, out==null? 0 : out.pos);
             update2(recid,out);
         }finally {
             lock.unlock();
@@ -249,6 +426,8 @@ public abstract class Store implements Engine {
 
 
     protected <A> A deserialize(Serializer<A> serializer, int size, DataInput input){
+        if(deserializedSize!=null)
+            deserializedSize.get()[0] = size;
         try {
             //TODO if serializer is not trusted, use boundary check
             //TODO return future and finish deserialization outside lock, does even bring any performance bonus?
@@ -353,7 +532,9 @@ public abstract class Store implements Engine {
             throw new IllegalAccessError("closed");
 
 
-        //TODO binary CAS & serialize outside lock
+        if(serializer.isCanonical())
+            return compareAndSwapBinary(recid, expectedOldValue, newValue, serializer);
+
         final int lockPos = lockPos(recid);
         final Lock lock = locks[lockPos].writeLock();
         final Cache cache = caches[lockPos];
@@ -366,8 +547,9 @@ public abstract class Store implements Engine {
                 oldVal = null;
             }
             if(oldVal==expectedOldValue || (oldVal!=null && serializer.equals(oldVal,expectedOldValue))){
-                update2(recid,serialize(newValue,serializer));
-                cache.put(recid,newValue);
+                DataIO.DataOutputByteArray out = serialize(newValue,serializer);
+                cachePut(cache, recid, newValue, out==null? 0 : out.pos);
+                update2(recid,out);
                 return true;
             }
             return false;
@@ -376,6 +558,75 @@ public abstract class Store implements Engine {
         }
     }
 
+    /**
+     * Compare-and-swap for serializers with canonical binary form.
+     * Both values are serialized outside lock and stored record is compared in binary form.
+     */
+    protected <A> boolean compareAndSwapBinary(long recid, A expectedOldValue, A newValue, Serializer<A> serializer) {
+        //serialize outside lock
+        DataIO.DataOutputByteArray expectedOut = serializeCanonical(expectedOldValue, serializer);
+        DataIO.DataOutputByteArray newOut = serialize(newValue, serializer);
+
+        final int lockPos = lockPos(recid);
+        final Lock lock = locks[lockPos].writeLock();
+        final Cache cache = caches[lockPos];
+        lock.lock();
+        try{
+            Object cached = cache.get(recid);
+            boolean equal;
+            if(cached!=null){
+                A oldVal = cached==Cache.NULL? null : (A) cached;
+                equal = oldVal==expectedOldValue || (oldVal!=null && serializer.equals(oldVal,expectedOldValue));
+            }else{
+                equal = binaryEquals2(recid, expectedOut);
+            }
+            if(equal){
+                cachePut(cache, recid, newValue, newOut==null? 0 : newOut.pos);
+                update2(recid,newOut);
+                return true;
+            }
+            return false;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /** serializes value without compression, encryption or checksum, as it is compared by {@link #binaryEquals2(long, DataIO.DataOutputByteArray)} */
+    protected <A> DataIO.DataOutputByteArray serializeCanonical(A value, Serializer<A> serializer){
+        if(value==null)
+            return null;
+        try {
+            DataIO.DataOutputByteArray out = new DataIO.DataOutputByteArray();
+            serializer.serialize(out, value);
+            return out;
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
+
+    /**
+     * Compares stored record with expected binary form, without deserializing it.
+     *
+     * @param expected serialized by {@link #serializeCanonical(Object, Serializer)}, null for null record
+     * @return true if stored record has the same binary form
+     */
+    protected boolean binaryEquals2(long recid, DataIO.DataOutputByteArray expected){
+        if(CC.PARANOID)
+            assertWriteLocked(lockPos(recid));
+
+        //BYTE_ARRAY_NOSIZE returns binary form after compression and other extras are removed
+        byte[] stored = get2(recid, Serializer.BYTE_ARRAY_NOSIZE);
+        if(stored==null || expected==null)
+            return stored==null && expected==null;
+        if(stored.length!=expected.pos)
+            return false;
+        for(int i=0;i<stored.length;i++){
+            if(stored[i]!=expected.buf[i])
+                return false;
+        }
+        return true;
+    }
+
 
     @Override
     public <A> void delete(long recid, Serializer<A> serializer) {
@@ -399,6 +650,149 @@ public abstract class Store implements Engine {
 
     protected abstract <A> void delete2(long recid, Serializer<A> serializer);
 
+    @Override
+    public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        if(closed)
+            throw new IllegalAccessError("closed");
+
+        Object[] ret = new Object[recids.length];
+        int[][] segments = lockPosGroup(recids);
+        for(int segment=0;segment<segments.length;segment++){
+            int[] pos = segments[segment];
+            if(pos==null)
+                continue;
+            final Lock lock = locks[segment].readLock();
+            lock.lock();
+            try{
+                getAll2(segment, recids, pos, serializer, ret);
+            }finally {
+                lock.unlock();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reads records from single segment, segment is already read-locked.
+     *
+     * @param segment segment all recids belong to
+     * @param recids all recids requested by {@link #getAll(long[], Serializer)}
+     * @param pos positions in {@code recids} which belong to this segment
+     * @param serializer used to deserialize records
+     * @param ret result array, filled at the same positions
+     */
+    protected <A> void getAll2(int segment, long[] recids, int[] pos, Serializer<A> serializer, Object[] ret){
+        final Cache cache = caches[segment];
+        for(int i:pos){
+            long recid = recids[i];
+            Object o = cache.get(recid);
+            if(o==null) {
+                o = get2AndCache(cache, recid, serializer);
+            }else if(o==Cache.NULL){
+                o = null;
+            }
+            ret[i] = o;
+        }
+    }
+
+    @Override
+    public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+
+        long[] recids = new long[values.length];
+        for(int i=0;i<values.length;i++){
+            recids[i] = put(values[i],serializer);
+        }
+        return recids;
+    }
+
+    @Override
+    public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        if(recids.length!=values.length)
+            throw new IllegalArgumentException("recids and values have different length");
+        if(closed)
+            throw new IllegalAccessError("closed");
+
+        //serialize outside lock
+        DataIO.DataOutputByteArray[] outs = new DataIO.DataOutputByteArray[values.length];
+        for(int i=0;i<values.length;i++){
+            outs[i] = serialize(values[i],serializer);
+        }
+
+        int[][] segments = lockPosGroup(recids);
+        for(int segment=0;segment<segments.length;segment++){
+            int[] pos = segments[segment];
+            if(pos==null)
+                continue;
+            final Lock lock = locks[segment].writeLock();
+            final Cache cache = caches[segment];
+            lock.lock();
+            try{
+                for(int i:pos){
+                    cachePut(cache, recids[i], values[i], outs[i]==null? 0 : outs[i].pos);
+                    update2(recids[i],outs[i]);
+                }
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        if(closed)
+            throw new IllegalAccessError("closed");
+
+        int[][] segments = lockPosGroup(recids);
+        for(int segment=0;segment<segments.length;segment++){
+            int[] pos = segments[segment];
+            if(pos==null)
+                continue;
+            final Lock lock = locks[segment].writeLock();
+            final Cache cache = caches[segment];
+            lock.lock();
+            try{
+                for(int i:pos){
+                    cache.put(recids[i], null);
+                    delete2(recids[i], serializer);
+                }
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Groups recids by segment, so each segment lock is acquired only once by batch operations.
+     *
+     * @return positions in {@code recids} for each segment, or null if segment has no recids
+     */
+    protected int[][] lockPosGroup(long[] recids){
+        int[] counts = new int[lockScale];
+        int[] lockPos = new int[recids.length];
+        for(int i=0;i<recids.length;i++){
+            lockPos[i] = lockPos(recids[i]);
+            counts[lockPos[i]]++;
+        }
+        int[][] ret = new int[lockScale][];
+        for(int segment=0;segment<lockScale;segment++){
+            if(counts[segment]!=0)
+                ret[segment] = new int[counts[segment]];
+        }
+        Arrays.fill(counts,0);
+        for(int i=0;i<recids.length;i++){
+            ret[lockPos[i]][counts[lockPos[i]]++] = i;
+        }
+        return ret;
+    }
+
     protected final int lockPos(final long recid) {
         int h = (int)(recid ^ (recid >>> 32));
         //spread bits, so each bit becomes part of segment (lockPos)
@@ -454,6 +848,56 @@ public abstract class Store implements Engine {
 
     public abstract long getFreeSize();
 
+    /**
+     * Returns space usage statistics. Stores which do not track some values return {@code -1} for them.
+     */
+    public Stats getStats(){
+        return new Stats(getCurrSize(), getFreeSize(), -1L, -1L, null);
+    }
+
+    /**
+     * Space usage statistics returned by {@link Store#getStats()}.
+     * Negative value means statistic is not tracked by store.
+     */
+    public static final class Stats{
+
+        /** size of store in bytes */
+        public final long currSize;
+        /** size of free space which can be reused by allocator */
+        public final long freeSize;
+        /** size of space occupied by records */
+        public final long liveSize;
+        /** number of deleted or preallocated recids */
+        public final long freeRecidCount;
+        /** size of free space for each size class, array index is slot size divided by 16. It is null if not tracked */
+        public final long[] freeSizes;
+
+        public Stats(long currSize, long freeSize, long liveSize, long freeRecidCount, long[] freeSizes) {
+            this.currSize = currSize;
+            this.freeSize = freeSize;
+            this.liveSize = liveSize;
+            this.freeRecidCount = freeRecidCount;
+            this.freeSizes = freeSizes;
+        }
+
+        /** @return ratio of free space to free and occupied space, or 0 if not known */
+        public double fragmentation(){
+            if(freeSize<=0 || liveSize<0)
+                return 0;
+            return ((double)freeSize)/(freeSize+liveSize);
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[currSize=" + currSize +
+                    ", freeSize=" + freeSize +
+                    ", liveSize=" + liveSize +
+                    ", freeRecidCount=" + freeRecidCount +
+                    ", fragmentation=" + fragmentation() +
+                    "]";
+        }
+    }
+
     @Override
     public void clearCache() {
         if(closed)
@@ -512,20 +956,30 @@ public abstract class Store implements Engine {
 
         /**
          * Fixed size cache which uses hash table.
-         * Is thread-safe and requires only minimal locking.
+         * Is thread-safe and does not use locks, cache hit is single array read.
          * Items are randomly removed and replaced by hash collisions.
          * <p>
+         * Each position holds immutable entry with recid and item. Entry is published with single write,
+         * so reader never sees recid from one put and item from another.
+         * Visibility of updates between threads is given by segment locks in {@link Store}.
+         * <p>
          * This is simple, concurrent, small-overhead, random cache.
          *
          * @author Jan Kotek
          */
         public static final class HashTable implements Cache {
 
+            protected static final class Entry{
+                final long recid;
+                final Object item;
 
-            protected final long[] recids; //TODO 6 byte longs
-            protected final Object[] items;
+                Entry(long recid, Object item) {
+                    this.recid = recid;
+                    this.item = item;
+                }
+            }
 
-            protected final Lock lock;
+            protected final Entry[] items;
 
             protected final int cacheMaxSizeMask;
 
@@ -535,44 +989,29 @@ public abstract class Store implements Engine {
             protected final long hashSalt = new Random().nextLong();
 
 
+            /**
+             * @param cacheMaxSize maximal number of items, rounded up to power of two
+             * @param disableLocks is ignored, this cache does not use locks
+             */
             public HashTable(int cacheMaxSize, boolean disableLocks) {
                 cacheMaxSize = DataIO.nextPowTwo(cacheMaxSize); //next pow of two
 
                 this.cacheMaxSizeMask = cacheMaxSize-1;
 
-                this.recids = new long[cacheMaxSize];
-                this.items = new Object[cacheMaxSize];
-
-                lock = disableLocks?null:  new ReentrantLock(CC.FAIR_LOCKS);
+                this.items = new Entry[cacheMaxSize];
             }
 
             @Override
             public Object get(long recid) {
-                int pos = pos(recid);
-                if(lock!=null)
-                    lock.lock();
-                try {
-                    return recids[pos] == recid ? items[pos] : null;
-                }finally {
-                    if(lock!=null)
-                        lock.unlock();
-                }
+                Entry e = items[pos(recid)];
+                return e!=null && e.recid == recid ? e.item : null;
             }
 
             @Override
             public void put(long recid, Object item) {
                 if(item == null)
                     item = NULL;
-                int pos = pos(recid);
-                if(lock!=null)
-                    lock.lock();
-                try {
-                    recids[pos] = recid;
-                    items[pos] = item;
-                }finally {
-                    if(lock!=null)
-                        lock.unlock();
-                }
+                items[pos(recid)] = new Entry(recid, item);
             }
 
             protected int pos(long recid) {
@@ -581,15 +1020,7 @@ public abstract class Store implements Engine {
 
             @Override
             public void clear() {
-                if(lock!=null)
-                    lock.lock();
-                try {
-                    Arrays.fill(recids, 0L);
-                    Arrays.fill(items, null);
-                }finally {
-                    if(lock!=null)
-                        lock.unlock();
-                }
+                Arrays.fill(items, null);
             }
 
             @Override
@@ -599,7 +1030,7 @@ public abstract class Store implements Engine {
 
             @Override
             public Cache clone() {
-                return new HashTable(recids.length,lock==null);
+                return new HashTable(items.length,false);
             }
         }
 
@@ -938,6 +1369,442 @@ public abstract class Store implements Engine {
                 return new LRU(cacheSize,lock==null);
             }
         }
+
+        /**
+         * Fixed size cache with Window TinyLFU policy. It keeps frequently used items, even if
+         * large number of items is read only once, for example by full scan of BTreeMap.
+         * <p>
+         * New items go into small LRU window. Item evicted from window is only admitted into main
+         * Segmented LRU if it was accessed more often than item it would replace. Access frequency is
+         * estimated by compact Count-Min sketch with 4-bit counters, which are halved periodically,
+         * so old history ages out.
+         * <p>
+         * Items are kept in primitive arrays, linked lists use slot numbers and recids are not boxed.
+         */
+        public static final class TinyLFU implements Cache {
+
+            protected static final int WINDOW = 0;
+            protected static final int PROBATION = 1;
+            protected static final int PROTECTED = 2;
+
+            protected final int cacheSize;
+            protected final Lock lock;
+
+            protected final int capacity;
+            protected final int windowMax;
+            protected final int protectedMax;
+
+            /** recid and item in each slot */
+            protected final long[] recids;
+            protected final Object[] items;
+            /** doubly linked lists over slots, head is least recently used */
+            protected final int[] prev;
+            protected final int[] next;
+            protected final byte[] queue;
+            protected final int[] head = {-1,-1,-1};
+            protected final int[] tail = {-1,-1,-1};
+            protected final int[] sizes = new int[3];
+            /** number of used slots, unused slots follow */
+            protected int used = 0;
+            /** slots released by clear or eviction, linked by next */
+            protected int free = -1;
+
+            /** open addressing hash table from recid to slot, zero key is empty */
+            protected final long[] tableKeys;
+            protected final int[] tableSlots;
+            protected final int tableMask;
+
+            protected final FrequencySketch sketch;
+
+            public TinyLFU(int cacheSize, boolean disableLocks) {
+                this.cacheSize = cacheSize;
+                lock = disableLocks?null:  new ReentrantLock(CC.FAIR_LOCKS);
+
+                capacity = Math.max(2, cacheSize);
+                windowMax = Math.max(1, capacity/100);
+                protectedMax = (capacity-windowMax)*4/5;
+
+                //new item is added before some item is evicted, so there is one extra slot
+                recids = new long[capacity+1];
+                items = new Object[capacity+1];
+                prev = new int[capacity+1];
+                next = new int[capacity+1];
+                queue = new byte[capacity+1];
+
+                int tableSize = DataIO.nextPowTwo(capacity)*2;
+                tableKeys = new long[tableSize];
+                tableSlots = new int[tableSize];
+                tableMask = tableSize-1;
+
+                sketch = new FrequencySketch(capacity);
+            }
+
+            @Override
+            public Object get(long recid) {
+                if(lock!=null)
+                    lock.lock();
+                try{
+                    sketch.increment(recid);
+                    int slot = tableGet(recid);
+                    if(slot<0)
+                        return null;
+                    onHit(slot);
+                    return items[slot];
+                }finally {
+                    if(lock!=null)
+                        lock.unlock();
+                }
+            }
+
+            @Override
+            public void put(long recid, Object item) {
+                if(item == null)
+                    item = Cache.NULL;
+
+                if(lock!=null)
+                    lock.lock();
+                try{
+                    int slot = tableGet(recid);
+                    if(slot>=0){
+                        items[slot] = item;
+                        onHit(slot);
+                        return;
+                    }
+
+                    slot = slotAlloc();
+                    recids[slot] = recid;
+                    items[slot] = item;
+                    tablePut(recid, slot);
+                    listAdd(WINDOW, slot);
+                    if(sizes[WINDOW]>windowMax)
+                        evict();
+                }finally {
+                    if(lock!=null)
+                        lock.unlock();
+                }
+            }
+
+            /** moves item after access, item in probation is promoted to protected segment */
+            protected void onHit(int slot){
+                int q = queue[slot];
+                listRemove(q, slot);
+                if(q==PROBATION){
+                    listAdd(PROTECTED, slot);
+                    if(sizes[PROTECTED]>protectedMax){
+                        //demote least recently used protected item
+                        int demoted = head[PROTECTED];
+                        listRemove(PROTECTED, demoted);
+                        listAdd(PROBATION, demoted);
+                    }
+                }else{
+                    listAdd(q, slot);
+                }
+            }
+
+            /** moves oldest item out of window, admits it into main segments if it is used more often than victim */
+            protected void evict(){
+                int candidate = head[WINDOW];
+                listRemove(WINDOW, candidate);
+                int mainMax = capacity-windowMax;
+                if(sizes[PROBATION]+sizes[PROTECTED]<mainMax){
+                    listAdd(PROBATION, candidate);
+                    return;
+                }
+                int victim = head[PROBATION]>=0? head[PROBATION] : head[PROTECTED];
+                int victimQueue = queue[victim];
+                if(sketch.frequency(recids[candidate]) > sketch.frequency(recids[victim])){
+                    listRemove(victimQueue, victim);
+                    slotRelease(victim);
+                    listAdd(PROBATION, candidate);
+                }else{
+                    slotRelease(candidate);
+                }
+            }
+
+            protected int slotAlloc(){
+                if(free>=0){
+                    int slot = free;
+                    free = next[slot];
+                    return slot;
+                }
+                return used++;
+            }
+
+            protected void slotRelease(int slot){
+                tableRemove(recids[slot]);
+                recids[slot] = 0;
+                items[slot] = null;
+                next[slot] = free;
+                free = slot;
+            }
+
+            protected void listAdd(int q, int slot){
+                queue[slot] = (byte) q;
+                prev[slot] = tail[q];
+                next[slot] = -1;
+                if(tail[q]>=0)
+                    next[tail[q]] = slot;
+                else
+                    head[q] = slot;
+                tail[q] = slot;
+                sizes[q]++;
+            }
+
+            protected void listRemove(int q, int slot){
+                int p = prev[slot];
+                int n = next[slot];
+                if(p>=0)
+                    next[p] = n;
+                else
+                    head[q] = n;
+                if(n>=0)
+                    prev[n] = p;
+                else
+                    tail[q] = p;
+                sizes[q]--;
+            }
+
+            protected int tablePos(long recid){
+                return DataIO.longHash(recid)&tableMask;
+            }
+
+            protected int tableGet(long recid){
+                for(int pos = tablePos(recid);;pos = (pos+1)&tableMask){
+                    long key = tableKeys[pos];
+                    if(key==recid)
+                        return tableSlots[pos];
+                    if(key==0)
+                        return -1;
+                }
+            }
+
+            protected void tablePut(long recid, int slot){
+                int pos = tablePos(recid);
+                while(tableKeys[pos]!=0)
+                    pos = (pos+1)&tableMask;
+                tableKeys[pos] = recid;
+                tableSlots[pos] = slot;
+            }
+
+            protected void tableRemove(long recid){
+                int pos = tablePos(recid);
+                while(tableKeys[pos]!=recid)
+                    pos = (pos+1)&tableMask;
+                //shift following keys back, so there is no gap in their probe sequence
+                int gap = pos;
+                for(pos = (pos+1)&tableMask; tableKeys[pos]!=0; pos = (pos+1)&tableMask){
+                    int home = tablePos(tableKeys[pos]);
+                    boolean between = gap<=pos ? (gap<home && home<=pos) : (gap<home || home<=pos);
+                    if(between)
+                        continue;
+                    tableKeys[gap] = tableKeys[pos];
+                    tableSlots[gap] = tableSlots[pos];
+                    gap = pos;
+                }
+                tableKeys[gap] = 0;
+            }
+
+            @Override
+            public void clear() {
+                if(lock!=null)
+                    lock.lock();
+                try{
+                    Arrays.fill(recids, 0L);
+                    Arrays.fill(items, null);
+                    Arrays.fill(tableKeys, 0L);
+                    Arrays.fill(head, -1);
+                    Arrays.fill(tail, -1);
+                    Arrays.fill(sizes, 0);
+                    used = 0;
+                    free = -1;
+                }finally {
+                    if(lock!=null)
+                        lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                clear();
+            }
+
+            @Override
+            public Cache clone() {
+                return new TinyLFU(cacheSize,lock==null);
+            }
+        }
+
+        /**
+         * Least Recently Used cache bounded by estimated memory size of items, instead of number of items.
+         * Size of item is estimated from size of its serialized record.
+         * <p>
+         * Each segment of store has its own clone with its own budget, so single segment can not
+         * take space from others. Total budget for store is divided between segments.
+         */
+        public static final class ByteBounded implements Cache {
+
+            /** estimated memory overhead of each cached item, such as map entry and object headers */
+            protected static final int ITEM_OVERHEAD = 64;
+
+            protected static final class Item{
+                final Object item;
+                final long size;
+
+                Item(Object item, long size) {
+                    this.item = item;
+                    this.size = size;
+                }
+            }
+
+            /** maximal estimated size of items in this cache */
+            protected final long sizeBytes;
+            protected final Lock lock;
+
+            /** items in access order, least recently used first */
+            protected final LinkedHashMap<Long, Item> items = new LinkedHashMap<Long, Item>(16, 0.75f, true);
+            /** estimated size of items in this cache */
+            protected long used = 0;
+
+            public ByteBounded(long sizeBytes, boolean disableLocks) {
+                this.sizeBytes = sizeBytes;
+                lock = disableLocks?null:  new ReentrantLock(CC.FAIR_LOCKS);
+            }
+
+            @Override
+            public Object get(long recid) {
+                if(lock!=null)
+                    lock.lock();
+                try{
+                    Item item = items.get(recid);
+                    return item==null? null : item.item;
+                }finally {
+                    if(lock!=null)
+                        lock.unlock();
+                }
+            }
+
+            @Override
+            public void put(long recid, Object item) {
+                put(recid, item, -1);
+            }
+
+            /**
+             * Puts item into cache.
+             *
+             * @param size of serialized record, or -1 if it is not known and average size of cached items is used
+             */
+            public void put(long recid, Object item, int size) {
+                if(item == null) {
+                    item = Cache.NULL;
+                    size = 0;
+                }
+
+                if(lock!=null)
+                    lock.lock();
+                try{
+                    if(size<0)
+                        size = items.isEmpty()? 0 : (int) (used/items.size()) - ITEM_OVERHEAD;
+                    long weight = size + ITEM_OVERHEAD;
+                    Item old = items.put(recid, new Item(item, weight));
+                    used += weight - (old==null? 0 : old.size);
+                    if(used>sizeBytes){
+                        //remove least recently used items, even new item if it does not fit
+                        Iterator<Item> iter = items.values().iterator();
+                        while(used>sizeBytes && iter.hasNext()){
+                            Item removed = iter.next();
+                            iter.remove();
+                            used -= removed.size;
+                        }
+                    }
+                }finally {
+                    if(lock!=null)
+                        lock.unlock();
+                }
+            }
+
+            @Override
+            public void clear() {
+                if(lock!=null)
+                    lock.lock();
+                try{
+                    items.clear();
+                    used = 0;
+                }finally {
+                    if(lock!=null)
+                        lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                clear();
+            }
+
+            @Override
+            public Cache clone() {
+                return new ByteBounded(sizeBytes, lock==null);
+            }
+        }
+
+        /**
+         * Count-Min sketch with four 4-bit counters per item, used to estimate access frequency.
+         * Counters are halved after number of increments reaches ten times the table size.
+         */
+        public static final class FrequencySketch {
+
+            protected static final long[] SEEDS = {
+                    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+            protected static final long RESET_MASK = 0x7777777777777777L;
+
+            /** each long holds sixteen 4-bit counters */
+            protected final long[] table;
+            protected final int tableMask;
+            protected final int sampleSize;
+            protected int size = 0;
+
+            public FrequencySketch(int capacity) {
+                int len = DataIO.nextPowTwo(Math.max(8, capacity));
+                table = new long[len];
+                tableMask = len-1;
+                sampleSize = 10*len;
+            }
+
+            public int frequency(long recid) {
+                int ret = 15;
+                for(int i=0;i<SEEDS.length;i++){
+                    long h = hash(recid, i);
+                    int shift = (int) (h>>>60)<<2;
+                    ret = Math.min(ret, (int) ((table[((int) h)&tableMask]>>>shift)&15L));
+                }
+                return ret;
+            }
+
+            public void increment(long recid) {
+                boolean added = false;
+                for(int i=0;i<SEEDS.length;i++){
+                    long h = hash(recid, i);
+                    int shift = (int) (h>>>60)<<2;
+                    int index = ((int) h)&tableMask;
+                    if(((table[index]>>>shift)&15L)!=15L){
+                        table[index] += 1L<<shift;
+                        added = true;
+                    }
+                }
+                if(added && ++size==sampleSize){
+                    //halve all counters, so frequency of old items decays
+                    for(int i=0;i<table.length;i++){
+                        table[i] = (table[i]>>>1) & RESET_MASK;
+                    }
+                    size = size/2;
+                }
+            }
+
+            protected static long hash(long recid, int i) {
+                long h = (recid + SEEDS[i]) * SEEDS[i];
+                return h ^ (h>>>32);
+            }
+        }
     }
 
 
@@ -950,7 +1817,8 @@ public abstract class Store implements Engine {
      * most of the methods. Only put/get operations are supported.
      * <p/>
      * To iterate over collection one has to traverse {@code table} which contains
-     * key-value pairs and skip zero pairs.
+     * key-value pairs and skip zero pairs. Faster is to use {@link #key(int)} and {@link #value(int)},
+     * it only touches inserted entries, in order they were inserted.
      *
      * @author originaly part of Koloboke library, Roman Leventov, Higher Frequency Trading
      * @author heavily modified for MapDB
@@ -963,6 +1831,9 @@ public abstract class Store implements Engine {
 
         long[] table;
 
+        /** positions of keys in {@code table}, in insertion order */
+        int[] order = new int[16];
+
         public LongLongMap(){
             this(32);
         }
@@ -1033,6 +1904,9 @@ public abstract class Store implements Engine {
             // key is absent
             tab[index] = key;
             tab[index + 1] = value;
+            if(order.length==size)
+                order = Arrays.copyOf(order, size*2);
+            order[size] = index;
 
             //post insert hook
             if (++size > maxSize) {
@@ -1046,6 +1920,16 @@ public abstract class Store implements Engine {
             return -1;
         }
 
+        /** returns key of n-th inserted entry, {@code pos} must be smaller than {@link #size()} */
+        public long key(int pos){
+            return table[order[pos]];
+        }
+
+        /** returns value of n-th inserted entry, {@code pos} must be smaller than {@link #size()} */
+        public long value(int pos){
+            return table[order[pos]+1];
+        }
+
         int index(long key) {
             if (key != 0) {
                 long[] tab = table;
@@ -1081,8 +1965,18 @@ public abstract class Store implements Engine {
         }
 
         public void clear() {
+            long[] tab = table;
+            if(size*8<tab.length){
+                //table is mostly empty, clear only inserted entries
+                int[] order = this.order;
+                for(int i=0;i<size;i++){
+                    tab[order[i]] = 0;
+                    tab[order[i]+1] = 0;
+                }
+            }else {
+                Arrays.fill(tab, 0);
+            }
             size = 0;
-            Arrays.fill(table,0);
         }
 
 
@@ -1094,21 +1988,22 @@ public abstract class Store implements Engine {
             table = new long[newCapacity * 2];
 
             long[] newTab = table;
+            int[] order = this.order;
             int capacityMask = newTab.length - 2;
-            for (int i = tab.length - 2; i >= 0; i -= 2) {
-                long key;
-                if ((key = tab[i]) != 0) {
-                    int index;
-                    if (newTab[index = DataIO.longHash(key) & capacityMask] != 0) {
-                        while (true) {
-                            if (newTab[(index = (index - 2) & capacityMask)] == 0) {
-                                break;
-                            }
+            for (int j = 0; j < size; j++) {
+                int i = order[j];
+                long key = tab[i];
+                int index;
+                if (newTab[index = DataIO.longHash(key) & capacityMask] != 0) {
+                    while (true) {
+                        if (newTab[(index = (index - 2) & capacityMask)] == 0) {
+                            break;
                         }
                     }
-                    newTab[index] = key;
-                    newTab[index + 1] = tab[i + 1];
                 }
+                newTab[index] = key;
+                newTab[index + 1] = tab[i + 1];
+                order[j] = index;
             }
         }
 
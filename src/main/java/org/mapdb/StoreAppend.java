@@ -1,13 +1,25 @@
 package org.mapdb;
 
 import java.io.DataInput;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 /**
  * append only store
+ * <p>
+ * Log is split into segment files. New entries are appended into active segment, when it is full
+ * it is sealed and never modified again. Log position is segment number shifted by {@link #segmentShift}
+ * plus offset within segment file. Segments without live entries are deleted.
  */
 public class StoreAppend extends Store {
 
@@ -16,23 +28,130 @@ public class StoreAppend extends Store {
     protected static final int IDELETE = 2;
     protected static final int IPREALLOC = 4;
     protected static final int I_SKIP_SINGLE_BYTE = 6;
+    /** committed version of record moved by cleaner, it is not discarded by rollback */
+    protected static final int IRELOCATE = 7;
 
     protected static final int I_TX_VALID = 8;
     protected static final int I_TX_ROLLBACK = 9;
 
+    /** size of relocated entry for deleted record, size -1 is null record */
+    protected static final int RELOCATE_DELETED = -2;
+    /** size of relocated entry for preallocated record */
+    protected static final int RELOCATE_PREALLOC = -3;
+
+    /** kinds of index table value for record without data, see {@link #tombstone(long, int)} */
+    protected static final int T_DELETED = 1;
+    protected static final int T_PREALLOC = 2;
+    protected static final int T_NULL = 3;
+
+    /** size of header in segment files */
     protected static final long headerSize = 16;
 
+    /** random identifier of log, it is in header of each segment */
+    protected static final long LOG_ID_OFFSET = 0;
+    /** segment header has segment number at this offset */
+    protected static final long SEGMENT_OFFSET = 8;
+
+    /** marks main file of segmented log, files written by older format have log entries in main file and no marker */
+    protected static final long MAIN_HEADER = 0x4D617044424C5331L;
+    /** main file header: marker, log id, segment shift */
+    protected static final long MAIN_HEADER_SIZE = 3*8;
+    protected static final long MAIN_LOG_ID_OFFSET = 8;
+    protected static final long MAIN_SEGMENT_SHIFT_OFFSET = 16;
+
+    /** file extension of log segments */
+    protected static final String SEGMENT_FILE_EXT = ".seg";
+    /** smallest segment size, so volume slices and pages are aligned with segments */
+    protected static final int SEGMENT_SHIFT_MIN = CC.VOLUME_PAGE_SHIFT;
+
+    /** file extension for index checkpoint */
+    protected static final String CHECKPOINT_FILE_EXT = ".idx";
+    /** file extension for index checkpoint while it is being written */
+    protected static final String CHECKPOINT_TMP_FILE_EXT = ".idx.tmp";
+    protected static final long CHECKPOINT_HEADER = 0x4D617044424B5032L;
+    /**
+     * checkpoint header: header, log id, log position, highest recid, live size, number of index values,
+     * number of segments
+     */
+    protected static final long CHECKPOINT_HEADER_SIZE = 7*8;
+
+    protected static final AtomicInteger backgroundThreadCounter = new AtomicInteger();
+
+    /** log segment file, it is immutable after it is sealed */
+    protected static final class Segment{
+        /** log position where segment starts */
+        final long start;
+        final Volume vol;
+        /** size of entries after segment header, it is -1 until segment is sealed */
+        volatile long size = -1;
+        /** size of entries referenced from index table */
+        final AtomicLong live = new AtomicLong();
+
+        Segment(long start, Volume vol) {
+            this.start = start;
+            this.vol = vol;
+        }
+    }
+
+    /**
+     * Segments indexed by segment number, deleted segments are null.
+     * Segment larger than segment size also occupies following slots.
+     */
+    protected volatile Segment[] segments = new Segment[16];
+    /** segment where new entries are appended, guarded by StructuralLock */
+    protected Segment active;
+    /** size of entries in sealed segments, guarded by StructuralLock */
+    protected long sealedSize = 0;
+    /** segments sealed since last commit, they are synced with next commit, guarded by StructuralLock */
+    protected final ArrayList<Volume> sealedUnsynced = new ArrayList<Volume>();
+    /** segment size is 2^segmentShift, existing store keeps size it was created with */
+    protected int segmentShift;
 
-    protected Volume vol;
     protected Volume indexTable;
 
     //guarded by StructuralLock
     protected long eof = 0;
+    /** end of log at last commit, guarded by StructuralLock */
+    protected long commitEof = 0;
+    /** log position after last transaction mark, entries before it are committed, guarded by commit lock */
+    protected long lastCommitPos = 0;
+    /** identifier of current log, segments and checkpoint are only used with log they were made from */
+    protected long logId = 0;
     protected final AtomicLong highestRecid = new AtomicLong(0);
     protected final boolean tx;
 
     protected final LongLongMap[] rollback;
 
+    /** estimated size of log entries referenced from index table, rest of the log is garbage */
+    protected final AtomicLong liveSize = new AtomicLong();
+
+    /**
+     * background cleaner moves live entries out of sealed segment if this fraction of segment is garbage.
+     * Zero disables cleaner, segments without live entries are deleted anyway.
+     */
+    protected final double cleanerGarbageRatio;
+
+    /** index checkpoint is written when log grows by this number of bytes, zero disables checkpoints */
+    protected final long checkpointSize;
+
+    /** log position covered by last index checkpoint */
+    protected volatile long checkpointPos = 0;
+
+    /** only single thread can clean log or write index checkpoint */
+    protected final ReentrantLock backgroundLock = new ReentrantLock(CC.FAIR_LOCKS);
+
+    /** cleans segments and writes index checkpoints in background, it is started when first needed */
+    protected volatile Thread backgroundThread = null;
+
+    protected volatile boolean cleanerRequested = false;
+
+    protected volatile boolean checkpointRequested = false;
+
+    protected volatile Throwable backgroundFailure = null;
+
+    /** open snapshots, index table values they see are recorded into their overlays before modification */
+    protected final CopyOnWriteArrayList<Snapshot> snapshots = new CopyOnWriteArrayList<Snapshot>();
+
     protected StoreAppend(String fileName,
                           Fun.Function1<Volume, String> volumeFactory,
                           Cache cache,
@@ -42,10 +161,20 @@ public class StoreAppend extends Store {
                           boolean compress,
                           byte[] password,
                           boolean readonly,
-                          boolean txDisabled
+                          long commitSyncInterval,
+                          long commitSyncBytes,
+                          boolean txDisabled,
+                          double cleanerGarbageRatio,
+                          long checkpointSize,
+                          long segmentSize
                     ) {
-        super(fileName, volumeFactory, cache, lockScale,lockingStrategy, checksum, compress, password, readonly);
+        super(fileName, volumeFactory, cache, lockScale,lockingStrategy, checksum, compress, password, readonly,
+                commitSyncInterval, commitSyncBytes);
         this.tx = !txDisabled;
+        this.cleanerGarbageRatio = cleanerGarbageRatio;
+        this.checkpointSize = checkpointSize;
+        //round up to power of two
+        this.segmentShift = Math.max(SEGMENT_SHIFT_MIN, 64 - Long.numberOfLeadingZeros(segmentSize - 1));
         if(tx){
             rollback = new LongLongMap[this.lockScale];
             for(int i=0;i<rollback.length;i++){
@@ -66,7 +195,12 @@ public class StoreAppend extends Store {
                 false,
                 null,
                 false,
-                false);
+                0,
+                0,
+                false,
+                0,
+                CC.DEFAULT_APPEND_CHECKPOINT_SIZE,
+                CC.DEFAULT_APPEND_SEGMENT_SIZE);
     }
 
     @Override
@@ -74,21 +208,42 @@ public class StoreAppend extends Store {
         super.init();
         structuralLock.lock();
         try {
-            vol = volumeFactory.run(fileName);
             indexTable = new Volume.ByteArrayVol(CC.VOLUME_PAGE_SHIFT);
-            if (!readonly)
-                vol.ensureAvailable(headerSize);
             eof = headerSize;
+            checkpointPos = headerSize;
             for (int i = 0; i <= RECID_LAST_RESERVED; i++) {
                 indexTable.ensureAvailable(i * 8);
-                indexTable.putLong(i * 8, -2);
+                indexTable.putLong(i * 8, tombstone(0, T_PREALLOC));
             }
 
-            if (vol.isEmpty()) {
-                initCreate();
-            } else {
-                initOpen();
+            //main file only has header, log entries are in segment files
+            Volume header = volumeFactory.run(fileName);
+            try {
+                if (header.isEmpty()) {
+                    if (!readonly) {
+                        logId = newLogId();
+                        header.ensureAvailable(MAIN_HEADER_SIZE);
+                        header.putLong(MAIN_SEGMENT_SHIFT_OFFSET, segmentShift);
+                        header.putLong(MAIN_LOG_ID_OFFSET, logId);
+                        header.putLong(0, MAIN_HEADER);
+                        header.sync();
+                    }
+                    initCreate();
+                } else {
+                    if(header.length()<MAIN_HEADER_SIZE || header.getLong(0)!=MAIN_HEADER)
+                        throw new DBException.DataCorruption("Wrong header, not a segmented append-only log: "+fileName);
+                    long shift = header.getLong(MAIN_SEGMENT_SHIFT_OFFSET);
+                    if(shift<SEGMENT_SHIFT_MIN || shift>62)
+                        throw new DBException.DataCorruption("Wrong segment shift in header: "+shift);
+                    logId = header.getLong(MAIN_LOG_ID_OFFSET);
+                    segmentShift = (int) shift;
+                    initOpen();
+                }
+            }finally {
+                header.close();
             }
+            commitEof = eof;
+            lastCommitPos = eof;
         }finally {
             structuralLock.unlock();
         }
@@ -96,104 +251,416 @@ public class StoreAppend extends Store {
 
     protected void initCreate() {
         highestRecid.set(RECID_LAST_RESERVED);
+        if(readonly)
+            return;
+        //remove files left by older store with the same name
+        for(long num:segmentFilesFind()){
+            new File(segmentFileName(num)).delete();
+        }
+        if(fileName!=null)
+            new File(fileName+CHECKPOINT_FILE_EXT).delete();
+        active = segmentCreate(0);
     }
 
     protected void initOpen() {
-        //replay log
-        long pos = headerSize;
-        final long volumeSize = vol.length();
-        long lastValidPos= pos;
-        long highestRecid2 = RECID_LAST_RESERVED;
-        LongLongMap rollbackData = tx?new LongLongMap():null;
+        for(long num:segmentFilesFind()){
+            Volume vol = volumeFactory.run(segmentFileName(num));
+            if(vol.length()<headerSize || vol.getLong(LOG_ID_OFFSET)!=logId || vol.getLong(SEGMENT_OFFSET)!=num){
+                LOG.warning("Log segment does not belong to this store, it is ignored: "+segmentFileName(num));
+                vol.close();
+                continue;
+            }
+            Segment seg = new Segment(num<<segmentShift, vol);
+            segmentSlots(seg, seg.start+headerSize);
+            active = seg;
+        }
+        if(active==null){
+            highestRecid.set(RECID_LAST_RESERVED);
+            if(!readonly)
+                active = segmentCreate(0);
+            return;
+        }
 
-        try{
+        //replay log, only tail written after last checkpoint if there is one
+        long pos = checkpointLoad();
+        long highestRecid2 = Math.max(RECID_LAST_RESERVED, highestRecid.get());
+        LongLongMap rollbackData = tx?new LongLongMap():null;
 
-            while(true) {
-                lastValidPos = pos;
-                if(pos>=volumeSize)
-                    break;
-                final int inst = vol.getUnsignedByte(pos++);
-                if (inst == IINSERT || inst == IUPDATE) {
-
-                    final long recid = vol.getSixLong(pos);
-                    pos += 6;
-
-                    highestRecid2 = Math.max(highestRecid2, recid);
-
-                    indexTablePut2(recid, pos - 6 - 1, rollbackData);
-
-                    //skip rest of the record
-                    int size = vol.getInt(pos);
-                    pos = pos + 4 + size;
-                } else if (inst == IDELETE) {
-                    final long recid = vol.getSixLong(pos);
-                    pos += 6;
-
-                    highestRecid2 = Math.max(highestRecid2, recid);
-
-                    indexTablePut2(recid, -1, rollbackData);
-                } else if (inst == IDELETE) {
-                    final long recid = vol.getSixLong(pos);
-                    pos += 6;
-
-                    highestRecid2 = Math.max(highestRecid2, recid);
-
-                    indexTablePut2(recid,-2, rollbackData);
-                } else if (inst == I_SKIP_SINGLE_BYTE) {
-                    //do nothing, just skip single byte
-                } else if (inst == I_TX_VALID) {
-                    if (tx)
-                        rollbackData.clear();
-                } else if (inst == I_TX_ROLLBACK) {
-                    if (tx) {
-                        indexTableRestore(rollbackData);
-                    }
-                } else if (inst == 0) {
-                    //rollback last changes if thats necessary
-                    if (tx) {
-                        //rollback changes in index table since last valid tx
-                        indexTableRestore(rollbackData);
+        for(Segment seg:segmentsList()){
+            if(seg.size>=0 && seg!=active){
+                //segment was sealed when checkpoint was made, it is covered by checkpoint
+                sealedSize+=seg.size;
+                segmentSlots(seg, seg.start+headerSize+seg.size);
+                continue;
+            }
+            final Volume vol = seg.vol;
+            final long volumeSize = vol.length();
+            long local = Math.max(headerSize, pos-seg.start);
+            long lastValidPos = local;
+            try{
+                while(true) {
+                    lastValidPos = local;
+                    if(local>=volumeSize)
+                        break;
+                    final long offset = seg.start+local;
+                    final int inst = vol.getUnsignedByte(local++);
+                    if (inst == IINSERT || inst == IUPDATE || inst == IRELOCATE) {
+
+                        final long recid = vol.getSixLong(local);
+                        local += 6;
+
+                        highestRecid2 = Math.max(highestRecid2, recid);
+
+                        //skip rest of the record
+                        int size = vol.getInt(local);
+                        local += 4;
+                        long val = offset;
+                        if(size<0){
+                            //null record, or relocated deleted or preallocated record
+                            val = tombstone(offset, relocateKind(size));
+                        }else{
+                            local += size;
+                        }
+                        if(inst==IRELOCATE)
+                            indexTableRelocate(recid, val, rollbackData);
+                        else
+                            indexTablePut2(recid, val, rollbackData);
+                    } else if (inst == IDELETE || inst == IPREALLOC) {
+                        final long recid = vol.getSixLong(local);
+                        local += 6;
+
+                        highestRecid2 = Math.max(highestRecid2, recid);
+
+                        indexTablePut2(recid, tombstone(offset, inst==IDELETE ? T_DELETED : T_PREALLOC), rollbackData);
+                    } else if (inst == I_SKIP_SINGLE_BYTE) {
+                        //do nothing, just skip single byte
+                    } else if (inst == I_TX_VALID) {
+                        if (tx)
+                            rollbackData.clear();
+                    } else if (inst == I_TX_ROLLBACK) {
+                        if (tx) {
+                            indexTableRestore(rollbackData);
+                            rollbackData.clear();
+                        }
+                    } else if (inst == 0) {
+                        break;
+                    } else {
+                        //TODO log here?
+                        LOG.warning("Unknown instruction " + inst);
+                        break;
                     }
-
-                    break;
-                } else {
-                    //TODO log here?
-                    LOG.warning("Unknown instruction " + inst);
-                    break;
                 }
+            }catch (RuntimeException e){
+                //log replay finished
+                //TODO log here?
+                LOG.log(Level.WARNING, "Log replay finished",e);
             }
-        }catch (RuntimeException e){
-            //log replay finished
-            //TODO log here?
-            LOG.log(Level.WARNING, "Log replay finished",e);
-            if(tx) {
-                //rollback changes in index table since last valid tx
-                indexTableRestore(rollbackData);
+            long end = seg.start+lastValidPos;
+            segmentSlots(seg, end);
+            if(seg==active){
+                seg.size = -1;
+                eof = end;
+            }else{
+                seg.size = lastValidPos-headerSize;
+                sealedSize+=seg.size;
             }
+        }
 
+        if(tx && rollbackData.size()>0) {
+            //rollback changes in index table since last valid tx
+            indexTableRestore(rollbackData);
+            if(!readonly) {
+                //mark rolled back tail, so it is not merged with next transaction in future replays
+                logMark(I_TX_ROLLBACK);
+            }
         }
-        eof = lastValidPos;
 
         highestRecid.set(highestRecid2);
+
+        double ratio = cleanerThreshold();
+        for(Segment seg:segmentsList()){
+            if(segmentGarbage(seg, ratio))
+                cleanerRequested = true;
+        }
+    }
+
+    /** returns random log identifier, it is never zero */
+    protected static long newLogId(){
+        long id = 0;
+        while(id==0)
+            id = new Random().nextLong();
+        return id;
+    }
+
+    protected String segmentFileName(long num){
+        return fileName==null? null : fileName+"."+num+SEGMENT_FILE_EXT;
+    }
+
+    /** returns numbers of existing segment files */
+    protected TreeSet<Long> segmentFilesFind() {
+        TreeSet<Long> ret = new TreeSet<Long>();
+        if(fileName==null)
+            return ret;
+        File file = new File(fileName).getAbsoluteFile();
+        String prefix = file.getName()+".";
+        String[] names = file.getParentFile().list();
+        if(names==null)
+            return ret;
+        for(String name:names){
+            if(!name.startsWith(prefix) || !name.endsWith(SEGMENT_FILE_EXT))
+                continue;
+            String num = name.substring(prefix.length(), name.length()-SEGMENT_FILE_EXT.length());
+            try{
+                ret.add(Long.valueOf(num));
+            }catch(NumberFormatException e){
+                //not a segment file
+            }
+        }
+        return ret;
+    }
+
+    /** returns segment which contains given log position, or null if segment was deleted */
+    protected Segment segment(long offset){
+        Segment[] segments = this.segments;
+        long num = offset>>>segmentShift;
+        return num<segments.length ? segments[(int) num] : null;
+    }
+
+    /** returns existing segments ordered by log position */
+    protected Segment[] segmentsList(){
+        Segment[] segments = this.segments;
+        ArrayList<Segment> ret = new ArrayList<Segment>();
+        for(int i=0;i<segments.length;i++){
+            Segment seg = segments[i];
+            if(seg!=null && seg.start>>>segmentShift==i)
+                ret.add(seg);
+        }
+        return ret.toArray(new Segment[ret.size()]);
+    }
+
+    /** registers segment in all slots up to given log position, guarded by StructuralLock */
+    protected void segmentSlots(Segment seg, long end){
+        int last = (int) ((end-1)>>>segmentShift);
+        Segment[] segments = this.segments;
+        if(last>=segments.length)
+            segments = Arrays.copyOf(segments, Math.max(last+1, segments.length*2));
+        for(int i = (int) (seg.start>>>segmentShift); i<=last; i++){
+            segments[i] = seg;
+        }
+        this.segments = segments;
+    }
+
+    /** creates new segment file, guarded by StructuralLock */
+    protected Segment segmentCreate(long start){
+        long num = start>>>segmentShift;
+        String name = segmentFileName(num);
+        if(name!=null)
+            new File(name).delete();
+        Volume vol = volumeFactory.run(name);
+        vol.ensureAvailable(headerSize);
+        vol.putLong(LOG_ID_OFFSET, logId);
+        vol.putLong(SEGMENT_OFFSET, num);
+        Segment seg = new Segment(start, vol);
+        segmentSlots(seg, start+headerSize);
+        return seg;
+    }
+
+    /** seals active segment and starts new one at next segment boundary, guarded by StructuralLock */
+    protected void segmentRollover(){
+        Segment old = active;
+        old.size = eof-old.start-headerSize;
+        sealedSize+=old.size;
+        sealedUnsynced.add(old.vol);
+        long start = (((eof-1)>>>segmentShift)+1)<<segmentShift;
+        active = segmentCreate(start);
+        eof = start+headerSize;
+        if(segmentGarbage(old, cleanerThreshold()))
+            cleanerRequested = true;
+    }
+
+    /** seals active segment if it is full, it is called when no entries are written in meantime */
+    protected void segmentRolloverCheck(){
+        structuralLock.lock();
+        try{
+            if(eof>=active.start+(1L<<segmentShift))
+                segmentRollover();
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
+    /** returns true if segment is sealed and given fraction of it is garbage */
+    protected static boolean segmentGarbage(Segment seg, double ratio){
+        long size = seg.size;
+        if(size<0)
+            return false; //active segment
+        return size==0 || 1D - ((double)seg.live.get())/size >= ratio;
+    }
+
+    /** removes segment and deletes its file, it must not contain live entries */
+    protected void segmentDelete(Segment seg){
+        if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        structuralLock.lock();
+        try{
+            Segment[] segments = this.segments;
+            for(int i = (int) (seg.start>>>segmentShift); i<segments.length && segments[i]==seg; i++){
+                segments[i] = null;
+            }
+            sealedSize-=seg.size;
+            sealedUnsynced.remove(seg.vol);
+        }finally {
+            structuralLock.unlock();
+        }
+        commitSyncRemove(seg.vol);
+        seg.vol.close();
+        seg.vol.deleteFile();
+    }
+
+    /** syncs active segment and segments sealed since last commit, regardless of sync policy */
+    protected void logSync(){
+        if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        ArrayList<Volume> vols;
+        structuralLock.lock();
+        try{
+            vols = new ArrayList<Volume>(sealedUnsynced);
+            vols.add(active.vol);
+            sealedUnsynced.clear();
+        }finally {
+            structuralLock.unlock();
+        }
+        for(Volume vol:vols){
+            vol.sync();
+        }
+    }
+
+    /**
+     * Returns index table value for record without data, it also stores log position of entry.
+     * Position is zero for records without entry, such as reserved recids.
+     */
+    protected static long tombstone(long offset, int kind){
+        return -((offset<<2) | kind);
+    }
+
+    protected static long tombstoneOffset(long val){
+        return (-val)>>>2;
+    }
+
+    protected static int tombstoneKind(long val){
+        return (int) (-val & 3);
     }
 
+    /** returns kind of record without data, from negative size in entry */
+    protected static int relocateKind(int size){
+        return size==RELOCATE_DELETED ? T_DELETED :
+                size==RELOCATE_PREALLOC ? T_PREALLOC :
+                T_NULL;
+    }
 
     protected long alloc(int headSize, int totalSize){
         structuralLock.lock();
         try{
-            while(eof/StoreDirect.PAGE_SIZE != (eof+headSize)/StoreDirect.PAGE_SIZE){
-                //add skip instructions
-                vol.ensureAvailable(eof+1);
-                vol.putUnsignedByte(eof++, I_SKIP_SINGLE_BYTE);
+            if(!tx && eof>active.start+headerSize && eof+totalSize>active.start+(1L<<segmentShift)) {
+                //entry does not fit into active segment
+                //with transactions segments are sealed on commit, so transaction is not split between segments
+                segmentRollover();
             }
+            eof = skipPageBoundary(eof, headSize);
             long ret = eof;
             eof+=totalSize;
+            if(segment(eof-1)!=active) {
+                //segment grows over segment size
+                segmentSlots(active, eof);
+            }
             return ret;
         }finally {
             structuralLock.unlock();
         }
     }
 
+    /** adds skip instructions into active segment, so entry header at returned position does not cross page boundary */
+    protected long skipPageBoundary(long pos, int headSize){
+        while(pos/StoreDirect.PAGE_SIZE != (pos+headSize)/StoreDirect.PAGE_SIZE){
+            long local = pos-active.start;
+            active.vol.ensureAvailable(local+1);
+            active.vol.putUnsignedByte(local, I_SKIP_SINGLE_BYTE);
+            pos++;
+        }
+        return pos;
+    }
+
+    /** appends entry without size into log, returns its log position */
+    protected long logAppend(int inst, long recid){
+        long offset = alloc(1+6, 1+6);
+        Segment seg = segment(offset);
+        long pos = offset-seg.start;
+        seg.vol.ensureAvailable(pos+1+6);
+        seg.vol.putUnsignedByte(pos, inst);
+        seg.vol.putSixLong(pos+1, recid);
+        return offset;
+    }
+
+    /** appends entry into log, returns its log position. Data are not written if they are null */
+    protected long logAppend(int inst, long recid, int size, byte[] data){
+        long plus = 1+6+4+Math.max(0,size);
+        long offset = alloc(1+6+4, (int) plus);
+        Segment seg = segment(offset);
+        long pos = offset-seg.start;
+        seg.vol.ensureAvailable(pos+plus);
+        seg.vol.putUnsignedByte(pos, inst);
+        seg.vol.putSixLong(pos+1, recid);
+        seg.vol.putInt(pos+1+6, size);
+        if(size>0 && data!=null)
+            seg.vol.putDataOverlap(pos+1+6+4, data,0,size);
+        return offset;
+    }
+
+    /** appends transaction mark into log, returns log position after it */
+    protected long logMark(int inst){
+        long offset = alloc(1, 1);
+        Segment seg = segment(offset);
+        seg.vol.ensureAvailable(offset-seg.start+1);
+        seg.vol.putUnsignedByte(offset-seg.start, inst);
+        return offset+1;
+    }
+
+    /** returns segment with log entry referenced by index table value, or null */
+    protected Segment entrySegment(long indexVal){
+        long offset = indexVal>0 ? indexVal : tombstoneOffset(indexVal);
+        return offset==0 ? null : segment(offset);
+    }
+
+    /** returns size of log entry referenced by index table value */
+    protected long entrySize(long indexVal){
+        if(indexVal>0) {
+            Segment seg = segment(indexVal);
+            //deleted segment is only referenced from outdated checkpoint, until replay overwrites it
+            return seg==null ? 0 : 1+6+4+seg.vol.getInt(indexVal-seg.start+1+6);
+        }
+        if(indexVal==0 || entrySegment(indexVal)==null)
+            return 0;
+        if(tombstoneKind(indexVal)==T_NULL)
+            return 1+6+4; //null record
+        return 1+6; //deleted or preallocated
+    }
+
+    /** updates size of live entries in log and in segments, when index table value changes */
+    protected void liveUpdate(long newVal, long oldVal){
+        long newSize = entrySize(newVal);
+        long oldSize = entrySize(oldVal);
+        liveSize.addAndGet(newSize-oldSize);
+        Segment seg = entrySegment(newVal);
+        if(seg!=null)
+            seg.live.addAndGet(newSize);
+        seg = entrySegment(oldVal);
+        if(seg!=null) {
+            seg.live.addAndGet(-oldSize);
+            if(!cleanerRequested && segmentGarbage(seg, cleanerThreshold()))
+                cleanerRequested = true;
+        }
+    }
+
     @Override
     protected <A> A get2(long recid, Serializer<A> serializer) {
         if(CC.PARANOID)
@@ -206,16 +673,25 @@ public class StoreAppend extends Store {
             //TODO this code should be aware if indexTable internals?
             throw new DBException.EngineGetVoid();
         }
+        return logGet(recid, offset, serializer);
+    }
+
+    /** reads record from log entry referenced by index table value */
+    protected <A> A logGet(long recid, long offset, Serializer<A> serializer) {
         if(offset<0)
             return null; //preallocated or deleted
         if(offset == 0){ //non existent
             throw new DBException.EngineGetVoid();
         }
 
+        Segment seg = segment(offset);
+        Volume vol = seg.vol;
+        offset -= seg.start;
+
         if(CC.PARANOID){
             int instruction = vol.getUnsignedByte(offset);
 
-            if(instruction!= IUPDATE && instruction!= IINSERT)
+            if(instruction!= IUPDATE && instruction!= IINSERT && instruction!= IRELOCATE)
                 throw new RuntimeException("wrong instruction "+instruction); //TODO proper error
 
             long recid2 = vol.getSixLong(offset+1);
@@ -233,16 +709,9 @@ public class StoreAppend extends Store {
         if(CC.PARANOID)
             assertWriteLocked(lockPos(recid));
         int len = out==null? -1:out.pos;
-        long plus = 1+6+4+len;
-        long offset = alloc(1+6+4, (int) plus);
-        vol.ensureAvailable(offset+plus);
-        vol.putUnsignedByte(offset, IUPDATE);
-        vol.putSixLong(offset+1,recid);
-        vol.putInt(offset+1+6, len);
-        if(len!=-1)
-            vol.putDataOverlap(offset+1+6+4, out.buf,0,out.pos);
+        long offset = logAppend(IUPDATE, recid, len, out==null? null : out.buf);
 
-        indexTablePut(recid,len!=-1?offset:-3);
+        indexTablePut(recid,len!=-1?offset:tombstone(offset, T_NULL));
     }
 
     @Override
@@ -250,14 +719,9 @@ public class StoreAppend extends Store {
         if(CC.PARANOID)
             assertWriteLocked(lockPos(recid));
 
-        int plus = 1+6;
-        long offset = alloc(plus,plus);
-
-        vol.ensureAvailable(offset+plus);
-        vol.putUnsignedByte(offset, IDELETE); //delete instruction
-        vol.putSixLong(offset+1, recid);
+        long offset = logAppend(IDELETE, recid);
 
-        indexTablePut(recid,-1);
+        indexTablePut(recid,tombstone(offset, T_DELETED));
     }
 
     @Override
@@ -276,14 +740,9 @@ public class StoreAppend extends Store {
         Lock lock = locks[lockPos(recid)].writeLock();
         lock.lock();
         try{
-            int plus = 1+6;
-            long offset = alloc(plus,plus);
-            vol.ensureAvailable(offset+plus);
+            long offset = logAppend(IPREALLOC, recid);
 
-            vol.putUnsignedByte(offset, IPREALLOC);
-            vol.putSixLong(offset + 1, recid);
-
-            indexTablePut(recid,-2);
+            indexTablePut(recid,tombstone(offset, T_PREALLOC));
         }finally {
             lock.unlock();
         }
@@ -293,41 +752,57 @@ public class StoreAppend extends Store {
 
     protected void indexTablePut(long recid, long offset) {
         indexTable.ensureAvailable(recid*8+8);
+        long oldval = indexTable.getLong(recid*8);
         if(tx){
             LongLongMap map = rollback[lockPos(recid)];
             if(map.get(recid)==0) {
-                long oldval = indexTable.getLong(recid*8);
-                if(oldval==0)
-                    oldval = Long.MIN_VALUE;
-                map.put(recid, oldval);
+                map.put(recid, oldval==0? Long.MIN_VALUE : oldval);
             }
         }
+        if(!snapshots.isEmpty())
+            snapshotsPut(recid, oldval);
+        liveUpdate(offset, oldval);
         indexTable.putLong(recid*8, offset);
     }
 
     protected void indexTablePut2(long recid, long offset, LongLongMap rollbackData) {
         indexTable.ensureAvailable(recid*8+8);
+        long oldval = indexTable.getLong(recid*8);
         if(tx){
             if(rollbackData.get(recid)==0) {
-                long oldval = indexTable.getLong(recid*8);
-                if(oldval==0)
-                    oldval = Long.MIN_VALUE;
-                rollbackData.put(recid, oldval);
+                rollbackData.put(recid, oldval==0? Long.MIN_VALUE : oldval);
             }
         }
+        liveUpdate(offset, oldval);
+        indexTable.putLong(recid*8, offset);
+    }
+
+    /**
+     * Moves committed version of record to new log position, it is not recorded for rollback.
+     * Snapshots do not need old value, both entries have the same content and segments are not deleted while snapshot is open.
+     */
+    protected void indexTableRelocate(long recid, long offset, LongLongMap rollbackData) {
+        if(tx && rollbackData.get(recid)!=0){
+            //record was modified in current transaction, only its committed version moves
+            rollbackData.put(recid, offset);
+            return;
+        }
+        indexTable.ensureAvailable(recid*8+8);
+        liveUpdate(offset, indexTable.getLong(recid*8));
         indexTable.putLong(recid*8, offset);
     }
 
     protected void indexTableRestore(LongLongMap rollbackData) {
         //rollback changes in index table since last valid tx
-        long[] v = rollbackData.table;
-        for(int i=0;i<v.length;i+=2){
-            long recid = v[i];
-            if(recid==0)
-                continue;
-            long val = v[i+1];
+        for(int i=0;i<rollbackData.size();i++){
+            long recid = rollbackData.key(i);
+            long val = rollbackData.value(i);
             if(val==Long.MIN_VALUE)
                 val = 0;
+            long oldval = indexTable.getLong(recid*8);
+            if(!snapshots.isEmpty())
+                snapshotsPut(recid, oldval);
+            liveUpdate(val, oldval);
             indexTable.putLong(recid*8, val);
         }
     }
@@ -342,15 +817,9 @@ public class StoreAppend extends Store {
         Lock lock = locks[lockPos].writeLock();
         lock.lock();
         try{
-            cache.put(recid,value);
+            cachePut(cache, recid, value, out.pos);
 
-            long plus = 1+6+4+out.pos;
-            long offset = alloc(1+6+4, (int) plus);
-            vol.ensureAvailable(offset+plus);
-            vol.putUnsignedByte(offset, IINSERT);
-            vol.putSixLong(offset+1,recid);
-            vol.putInt(offset+1+6, out.pos);
-            vol.putDataOverlap(offset+1+6+4, out.buf,0,out.pos);
+            long offset = logAppend(IINSERT, recid, out.pos, out.buf);
 
             indexTablePut(recid,offset);
         }finally {
@@ -362,44 +831,72 @@ public class StoreAppend extends Store {
 
     @Override
     public void close() {
-        commitLock.lock();
+        closed = true;
+        Thread t = backgroundThread;
+        if(t!=null)
+            LockSupport.unpark(t);
+        //running cleaner sees closed flag and stops
+        backgroundLock.lock();
         try {
-            vol.sync();
-            vol.close();
-            indexTable.close();
+            commitLock.lock();
+            try {
+                if(!readonly && checkpointNeeded()) {
+                    //next open does not have to replay entire log
+                    checkpointWrite();
+                }
+                commitSyncClose();
+                for(Segment seg:segmentsList()) {
+                    seg.vol.sync();
+                    seg.vol.close();
+                }
+                indexTable.close();
 
-            if(caches!=null){
-                for(Cache c:caches){
-                    c.close();
+                if (caches != null) {
+                    for (Cache c : caches) {
+                        c.close();
+                    }
+                    Arrays.fill(caches, null);
                 }
-                Arrays.fill(caches,null);
+            } finally {
+                commitLock.unlock();
             }
-        }finally{
-            commitLock.unlock();
+        }finally {
+            backgroundLock.unlock();
         }
     }
 
     @Override
     public void commit() {
         if(!tx){
-            vol.sync();
+            commitLock.lock();
+            try{
+                commitSyncLog();
+                backgroundCheck();
+            }finally {
+                commitLock.unlock();
+            }
             return;
         }
 
         commitLock.lock();
         try{
+            //all segments are locked, so transaction mark separates entries of committed and next transaction
             for(int i=0;i<locks.length;i++) {
-                Lock lock = locks[i].writeLock();
-                lock.lock();
-                try {
+                locks[i].writeLock().lock();
+            }
+            try {
+                for (int i = 0; i < locks.length; i++) {
                     rollback[i].clear();
-                }finally {
-                    lock.unlock();
+                }
+                lastCommitPos = logMark(I_TX_VALID);
+                segmentRolloverCheck();
+            }finally {
+                for (int i = locks.length - 1; i >= 0; i--) {
+                    locks[i].writeLock().unlock();
                 }
             }
-            long offset = alloc(1,1);
-            vol.putUnsignedByte(offset,I_TX_VALID);
-            vol.sync();
+            commitSyncLog();
+            backgroundCheck();
         }finally {
             commitLock.unlock();
         }
@@ -412,24 +909,50 @@ public class StoreAppend extends Store {
         commitLock.lock();
         try{
             for(int i=0;i<locks.length;i++) {
-                Lock lock = locks[i].writeLock();
-                lock.lock();
-                try {
+                locks[i].writeLock().lock();
+            }
+            try {
+                for (int i = 0; i < locks.length; i++) {
                     caches[i].clear();
                     indexTableRestore(rollback[i]);
                     rollback[i].clear();
-                }finally {
-                    lock.unlock();
+                }
+                lastCommitPos = logMark(I_TX_ROLLBACK);
+                segmentRolloverCheck();
+            }finally {
+                for (int i = locks.length - 1; i >= 0; i--) {
+                    locks[i].writeLock().unlock();
                 }
             }
-            long offset = alloc(1,1);
-            vol.putUnsignedByte(offset,I_TX_ROLLBACK);
-            vol.sync();
+            commitSyncLog();
         }finally {
             commitLock.unlock();
         }
     }
 
+    /** syncs log according to sync policy, segments sealed since last commit are synced as well */
+    protected void commitSyncLog(){
+        if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        Volume[] sealed;
+        Volume vol;
+        long bytes;
+        structuralLock.lock();
+        try{
+            sealed = sealedUnsynced.toArray(new Volume[sealedUnsynced.size()]);
+            sealedUnsynced.clear();
+            vol = active.vol;
+            bytes = eof - commitEof;
+            commitEof = eof;
+        }finally {
+            structuralLock.unlock();
+        }
+        for(Volume v:sealed){
+            commitSync(v, 0);
+        }
+        commitSync(vol, bytes);
+    }
+
 
 
     @Override
@@ -439,17 +962,673 @@ public class StoreAppend extends Store {
 
     @Override
     public boolean canSnapshot() {
-        return false;
+        return true;
     }
 
+    /**
+     * Returns read-only view of committed data at current log position.
+     * Log entries are never overwritten, so snapshot reads old record versions directly from log.
+     * Writers record index table values seen by snapshot into its overlay, before they are modified.
+     * <p>
+     * Log segments are not deleted while snapshot is open, so snapshot should be closed when it is no longer needed.
+     */
     @Override
     public Engine snapshot() throws UnsupportedOperationException {
-        return null;
+        if(closed)
+            throw new IllegalAccessError("closed");
+        commitLock.lock();
+        try{
+            for(int i=0;i<locks.length;i++) {
+                locks[i].writeLock().lock();
+            }
+            try {
+                Snapshot snapshot = new Snapshot();
+                if(tx){
+                    //records modified in current transaction are seen in committed version
+                    for (int i = 0; i < locks.length; i++) {
+                        LongLongMap map = rollback[i];
+                        for(int j=0;j<map.size();j++){
+                            snapshot.old[i].put(map.key(j), map.value(j));
+                        }
+                    }
+                }
+                snapshots.add(snapshot);
+                return snapshot;
+            }finally {
+                for (int i = locks.length - 1; i >= 0; i--) {
+                    locks[i].writeLock().unlock();
+                }
+            }
+        }finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** records index table value into snapshots, which do not have value for given recid yet */
+    protected void snapshotsPut(long recid, long oldval){
+        int lockPos = lockPos(recid);
+        if(CC.PARANOID)
+            assertWriteLocked(lockPos);
+        for(Snapshot snapshot:snapshots){
+            LongLongMap map = snapshot.old[lockPos];
+            if(map.get(recid)==0)
+                map.put(recid, oldval==0? Long.MIN_VALUE : oldval);
+        }
+    }
+
+    /** read-only snapshot of committed data, see {@link #snapshot()} */
+    public class Snapshot implements Engine{
+
+        /** index table values at time snapshot was made, for records modified after that, guarded by segment locks */
+        protected final LongLongMap[] old = new LongLongMap[locks.length];
+
+        protected volatile boolean closed = false;
+
+        protected Snapshot(){
+            for(int i=0;i<old.length;i++){
+                old[i] = new LongLongMap();
+            }
+        }
+
+        @Override
+        public long preallocate() {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> boolean compareAndSwap(long recid, A expectedOldValue, A newValue, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> long put(A value, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> A get(long recid, Serializer<A> serializer) {
+            if(serializer==null)
+                throw new NullPointerException();
+            if(isClosed())
+                throw new IllegalAccessError("closed");
+
+            int lockPos = lockPos(recid);
+            Lock lock = locks[lockPos].readLock();
+            lock.lock();
+            try{
+                long offset = old[lockPos].get(recid);
+                if(offset==Long.MIN_VALUE) {
+                    //record was created after snapshot
+                    throw new DBException.EngineGetVoid();
+                }
+                if(offset==0){
+                    //not modified since snapshot
+                    try{
+                        offset = indexTable.getLong(recid*8);
+                    }catch(ArrayIndexOutOfBoundsException e){
+                        throw new DBException.EngineGetVoid();
+                    }
+                }
+                return logGet(recid, offset, serializer);
+            }finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public <A> void update(long recid, A value, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> void delete(long recid, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+            Object[] ret = new Object[recids.length];
+            for(int i=0;i<recids.length;i++){
+                ret[i] = get(recids[i],serializer);
+            }
+            return ret;
+        }
+
+        @Override
+        public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        /** releases overlay, cleaner may delete segments again once all snapshots are closed */
+        @Override
+        public void close() {
+            if(closed)
+                return;
+            closed = true;
+            snapshots.remove(this);
+            if(snapshots.isEmpty()) {
+                //segments were kept for snapshots
+                cleanerRequested = true;
+                Thread t = backgroundThread;
+                if(t!=null)
+                    LockSupport.unpark(t);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed || StoreAppend.this.closed;
+        }
+
+        @Override
+        public void commit() {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public void rollback() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public boolean canRollback() {
+            return false;
+        }
+
+        @Override
+        public boolean canSnapshot() {
+            return false;
+        }
+
+        @Override
+        public Engine snapshot() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Engine getWrappedEngine() {
+            return null;
+        }
+
+        @Override
+        public void clearCache() {
+        }
+
+        @Override
+        public void compact() {
+            throw new UnsupportedOperationException("Read-only");
+        }
     }
 
 
+    /**
+     * Seals active segment and moves live entries out of all segments with garbage.
+     * With transactions active segment is only sealed if there are no uncommitted modifications.
+     * Segments are not cleaned while snapshot is open.
+     */
     @Override
     public void compact() {
+        if(readonly)
+            throw new UnsupportedOperationException("Read-only");
+        backgroundLock.lock();
+        try{
+            if(closed)
+                return;
+            commitLock.lock();
+            try{
+                for(int i=0;i<locks.length;i++) {
+                    locks[i].writeLock().lock();
+                }
+                try {
+                    boolean uncommitted = false;
+                    for (int i = 0; tx && i < rollback.length; i++) {
+                        uncommitted |= rollback[i].size()>0;
+                    }
+                    structuralLock.lock();
+                    try{
+                        //uncommitted entries must stay in active segment
+                        if(!uncommitted && eof>active.start+headerSize)
+                            segmentRollover();
+                    }finally {
+                        structuralLock.unlock();
+                    }
+                }finally {
+                    for (int i = locks.length - 1; i >= 0; i--) {
+                        locks[i].writeLock().unlock();
+                    }
+                }
+            }finally {
+                commitLock.unlock();
+            }
+            cleanSegments(Double.MIN_VALUE);
+        }finally {
+            backgroundLock.unlock();
+        }
+    }
+
+    /** returns size of log entries in all segments */
+    protected long logSize(){
+        structuralLock.lock();
+        try{
+            return active==null? sealedSize : sealedSize + eof - active.start - headerSize;
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
+    /** returns fraction of log which is not referenced from index table */
+    protected double garbageRatio(){
+        long logSize = logSize();
+        if(logSize<=0)
+            return 0;
+        return 1D - ((double)liveSize.get())/logSize;
+    }
+
+    /** segments with this fraction of garbage are cleaned, if cleaner is disabled only dead segments are deleted */
+    protected double cleanerThreshold(){
+        return cleanerGarbageRatio>0 ? cleanerGarbageRatio : 1D;
+    }
+
+    /**
+     * Wakes up background thread if some segment should be cleaned or if index checkpoint is needed.
+     * Starts thread if needed.
+     */
+    protected void backgroundCheck(){
+        if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        if(closed || readonly)
+            return;
+        if(checkpointNeeded())
+            checkpointRequested = true;
+        if(!cleanerRequested && !checkpointRequested)
+            return;
+
+        if(backgroundThread==null){
+            Thread t = new Thread(backgroundRunnable, "MapDB append store background #"+backgroundThreadCounter.incrementAndGet());
+            t.setDaemon(true);
+            backgroundThread = t;
+            t.start();
+        }else {
+            LockSupport.unpark(backgroundThread);
+        }
+    }
+
+    protected final Runnable backgroundRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    if(!cleanerRequested && !checkpointRequested){
+                        LockSupport.park(StoreAppend.this);
+                        continue;
+                    }
+                    if(cleanerRequested) {
+                        cleanerRequested = false;
+                        clean();
+                    }
+                    if(checkpointRequested){
+                        checkpointRequested = false;
+                        checkpoint();
+                    }
+                }
+            }catch(Throwable e){
+                if(closed)
+                    return; //store was closed while background task was running
+                LOG.log(Level.SEVERE, "Append store background task failed", e);
+                backgroundFailure = e;
+            }
+        }
+    };
+
+    /** cleans segments over garbage threshold, it is called by background thread */
+    protected void clean(){
+        backgroundLock.lock();
+        try{
+            if(closed)
+                return;
+            cleanSegments(cleanerThreshold());
+        }finally {
+            backgroundLock.unlock();
+        }
+    }
+
+    /**
+     * Moves live entries from sealed segments with given fraction of garbage to end of log,
+     * and deletes segment files.
+     * <p>
+     * Reads, writes and commits are not blocked while entries are moved, only segment lock for single
+     * record is held. Moved entry is {@link #IRELOCATE}, it changes committed version of record,
+     * so it is not discarded if current transaction is rolled back.
+     */
+    protected void cleanSegments(double ratio){
+        if(CC.PARANOID && !backgroundLock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        if(!snapshots.isEmpty())
+            return; //snapshots might read entries from any segment, cleaner is requested again when they are closed
+
+        ArrayList<Segment> victims = new ArrayList<Segment>();
+        for(Segment seg:segmentsList()){
+            if(segmentGarbage(seg, ratio))
+                victims.add(seg);
+        }
+        if(victims.isEmpty())
+            return;
+
+        //entries allocated before segment was sealed might still be written, wait until writers finish
+        for(int i=0;i<locks.length;i++){
+            locks[i].writeLock().lock();
+            locks[i].writeLock().unlock();
+        }
 
+        for(Segment seg:victims){
+            if(closed)
+                return;
+            cleanerRelocate(seg);
+        }
+
+        commitLock.lock();
+        try{
+            if(closed || !snapshots.isEmpty())
+                return; //snapshot was opened while entries were moved, segments are deleted after it is closed
+            //moved entries must be durable before old entries are deleted
+            logSync();
+            for(Segment seg:victims){
+                segmentDelete(seg);
+            }
+        }finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** moves entries referenced from index table out of sealed segment */
+    protected void cleanerRelocate(Segment seg){
+        final Volume vol = seg.vol;
+        final long end = headerSize+seg.size;
+        long local = headerSize;
+        while(local<end){
+            if(closed)
+                return;
+            final long offset = seg.start+local;
+            final int inst = vol.getUnsignedByte(local);
+            if(inst==I_SKIP_SINGLE_BYTE || inst==I_TX_VALID || inst==I_TX_ROLLBACK){
+                local++;
+                continue;
+            }
+            final long recid = vol.getSixLong(local+1);
+            final long val;
+            if(inst==IDELETE || inst==IPREALLOC){
+                val = tombstone(offset, inst==IDELETE ? T_DELETED : T_PREALLOC);
+                local += 1+6;
+            }else if(inst==IINSERT || inst==IUPDATE || inst==IRELOCATE){
+                int size = vol.getInt(local+1+6);
+                val = size<0 ? tombstone(offset, relocateKind(size)) : offset;
+                local += 1+6+4+Math.max(0,size);
+            }else{
+                throw new DBException.DataCorruption("Unknown instruction in log segment: "+inst);
+            }
+
+            Lock lock = locks[lockPos(recid)].writeLock();
+            lock.lock();
+            try{
+                cleanerMove(recid, val);
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** appends copy of committed record version to log, if index table still refers to given entry */
+    protected void cleanerMove(long recid, long val){
+        if(CC.PARANOID)
+            assertWriteLocked(lockPos(recid));
+        LongLongMap rollbackData = tx ? rollback[lockPos(recid)] : null;
+        long committed = tx ? rollbackData.get(recid) : 0;
+        if(committed==0)
+            committed = recid*8<indexTable.length() ? indexTable.getLong(recid*8) : 0;
+        if(committed!=val)
+            return; //entry is garbage
+
+        long moved;
+        if(val>0){
+            Segment seg = segment(val);
+            long pos = val-seg.start;
+            int size = seg.vol.getInt(pos+1+6);
+            moved = logAppend(IRELOCATE, recid, size, null);
+            Segment target = segment(moved);
+            if(size>0)
+                seg.vol.transferIntoOverlap(pos+1+6+4, target.vol, moved-target.start+1+6+4, size);
+        }else{
+            int kind = tombstoneKind(val);
+            int size = kind==T_DELETED ? RELOCATE_DELETED :
+                    kind==T_PREALLOC ? RELOCATE_PREALLOC :
+                    -1;
+            moved = tombstone(logAppend(IRELOCATE, recid, size, null), kind);
+        }
+        indexTableRelocate(recid, moved, rollbackData);
+    }
+
+    protected boolean checkpointNeeded(){
+        if(checkpointSize<=0)
+            return false;
+        structuralLock.lock();
+        try{
+            return eof-checkpointPos>=checkpointSize;
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
+    /** writes index checkpoint, it is called by background thread */
+    protected void checkpoint(){
+        backgroundLock.lock();
+        try{
+            if(closed)
+                return;
+            checkpointWrite();
+        }finally {
+            backgroundLock.unlock();
+        }
+    }
+
+    /**
+     * Writes committed state of index table into checkpoint file, together with log position it covers
+     * and with segments sealed before that position.
+     * On next open only log entries after this position are replayed.
+     * <p>
+     * Index values are read under segment lock of single record, so reads, writes and commits continue in meantime.
+     * Values committed after checkpoint position also have their entries in log after that position,
+     * so replay overwrites them.
+     */
+    protected void checkpointWrite(){
+        if(CC.PARANOID && !backgroundLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        if(fileName==null)
+            return;
+
+        //find log position, entries before it must be finished and committed
+        final long pos;
+        final long maxRecid;
+        final long live = liveSize.get();
+        final Segment[] segs;
+        final long[] segSizes;
+        commitLock.lock();
+        try {
+            if(!tx) {
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i].writeLock().lock();
+                }
+            }
+            try {
+                structuralLock.lock();
+                try {
+                    pos = tx ? lastCommitPos : eof;
+                    maxRecid = highestRecid.get();
+                    segs = segmentsList();
+                    segSizes = new long[segs.length];
+                    for(int i=0;i<segs.length;i++){
+                        segSizes[i] = segs[i].size;
+                    }
+                } finally {
+                    structuralLock.unlock();
+                }
+            } finally {
+                if(!tx) {
+                    for (int i = locks.length - 1; i >= 0; i--) {
+                        locks[i].writeLock().unlock();
+                    }
+                }
+            }
+            //checkpoint must not refer to entries lost in crash
+            logSync();
+        }finally {
+            commitLock.unlock();
+        }
+
+        String tmpName = fileName+CHECKPOINT_TMP_FILE_EXT;
+        new File(tmpName).delete();
+        Volume out = volumeFactory.run(tmpName);
+        try {
+            long count = maxRecid + 1;
+            long segOffset = CHECKPOINT_HEADER_SIZE + count * 8;
+            out.ensureAvailable(segOffset + segs.length * 3 * 8 + 8);
+            long checksum = 0;
+            for (long recid = 0; recid <= maxRecid; recid++) {
+                long val;
+                Lock lock = locks[lockPos(recid)].readLock();
+                lock.lock();
+                try {
+                    val = recid*8<indexTable.length() ? indexTable.getLong(recid * 8) : 0;
+                    if (tx && recid != 0) {
+                        long committed = rollback[lockPos(recid)].get(recid);
+                        if (committed != 0)
+                            val = committed == Long.MIN_VALUE ? 0 : committed;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                checksum += DataIO.longHash(val + recid);
+                out.putLong(CHECKPOINT_HEADER_SIZE + recid * 8, val);
+            }
+            //segment start, its size if it was sealed and estimated size of its live entries
+            for (int i = 0; i < segs.length; i++) {
+                long start = segs[i].start;
+                long segLive = segs[i].live.get();
+                checksum += DataIO.longHash(start + segSizes[i]) + DataIO.longHash(segLive);
+                out.putLong(segOffset + i * 3 * 8, start);
+                out.putLong(segOffset + i * 3 * 8 + 8, segSizes[i]);
+                out.putLong(segOffset + i * 3 * 8 + 16, segLive);
+            }
+            out.putLong(segOffset + segs.length * 3 * 8, checksum);
+            out.putLong(8, logId);
+            out.putLong(16, pos);
+            out.putLong(24, maxRecid);
+            out.putLong(32, live);
+            out.putLong(40, count);
+            out.putLong(48, segs.length);
+            out.putLong(0, CHECKPOINT_HEADER);
+            out.sync();
+        }finally {
+            out.close();
+        }
+
+        File file = new File(fileName+CHECKPOINT_FILE_EXT);
+        file.delete();
+        if(!new File(tmpName).renameTo(file))
+            throw new DBException.VolumeIOError("Could not rename index checkpoint: "+tmpName);
+        checkpointPos = pos;
+    }
+
+    /**
+     * Loads index table from checkpoint file, together with sizes of segments it covers.
+     * Returns log position from which log should be replayed, or zero if there is no valid checkpoint for this log.
+     */
+    protected long checkpointLoad(){
+        if(fileName==null)
+            return 0;
+        File file = new File(fileName+CHECKPOINT_FILE_EXT);
+        if(!file.exists())
+            return 0;
+
+        Volume in = volumeFactory.run(file.getPath());
+        Volume loaded = new Volume.ByteArrayVol(CC.VOLUME_PAGE_SHIFT);
+        try{
+            if(in.length()<CHECKPOINT_HEADER_SIZE || in.getLong(0)!=CHECKPOINT_HEADER){
+                LOG.warning("Index checkpoint is not complete, full log replay: "+file);
+                return 0;
+            }
+            long id = in.getLong(8);
+            long pos = in.getLong(16);
+            long maxRecid = in.getLong(24);
+            long live = in.getLong(32);
+            long count = in.getLong(40);
+            long segCount = in.getLong(48);
+            if(id!=logId || pos<headerSize || pos>active.start+active.vol.length()){
+                LOG.info("Index checkpoint was made from other log, full log replay: "+file);
+                return 0;
+            }
+            long segOffset = CHECKPOINT_HEADER_SIZE+count*8;
+            if(count!=maxRecid+1 || segCount<0 || in.length()<segOffset+segCount*3*8+8){
+                LOG.warning("Index checkpoint is broken, full log replay: "+file);
+                return 0;
+            }
+            loaded.ensureAvailable(count*8);
+            long checksum = 0;
+            for(long recid=0; recid<=maxRecid; recid++){
+                long val = in.getLong(CHECKPOINT_HEADER_SIZE+recid*8);
+                checksum += DataIO.longHash(val + recid);
+                loaded.putLong(recid*8, val);
+            }
+            long[] segTable = new long[(int) (segCount*3)];
+            for(int i=0;i<segTable.length;i+=3){
+                segTable[i] = in.getLong(segOffset+i*8);
+                segTable[i+1] = in.getLong(segOffset+i*8+8);
+                segTable[i+2] = in.getLong(segOffset+i*8+16);
+                checksum += DataIO.longHash(segTable[i] + segTable[i+1]) + DataIO.longHash(segTable[i+2]);
+            }
+            if(checksum!=in.getLong(segOffset+segCount*3*8)){
+                LOG.warning("Index checkpoint has wrong checksum, full log replay: "+file);
+                return 0;
+            }
+
+            for(int i=0;i<segTable.length;i+=3){
+                Segment seg = segment(segTable[i]);
+                if(seg==null || seg.start!=segTable[i]) {
+                    //segment was deleted after checkpoint, its entries were relocated and are replayed from log
+                    live -= segTable[i+2];
+                    continue;
+                }
+                seg.size = segTable[i+1];
+                seg.live.set(segTable[i+2]);
+            }
+            Volume old = indexTable;
+            indexTable = loaded;
+            loaded = old;
+            highestRecid.set(maxRecid);
+            liveSize.set(live);
+            checkpointPos = pos;
+            return pos;
+        }catch(RuntimeException e){
+            LOG.log(Level.WARNING, "Could not load index checkpoint, full log replay: "+file, e);
+            return 0;
+        }finally {
+            in.close();
+            loaded.close();
+        }
     }
 }
@@ -17,6 +17,11 @@ public class StoreCached extends StoreDirect {
     //TODO only accessed under structural lock, should be LongConcurrentHashMap?
     protected final LongObjectMap<byte[]> dirtyStackPages = new LongObjectMap<byte[]>();
     protected final LongObjectObjectMap[] writeCache;
+    /**
+     * modification stamp of each entry in write cache, it is incremented every time entry is replaced.
+     * Write cache flush uses it to detect records modified while they were serialized.
+     */
+    protected final LongLongMap[] writeCacheStamps;
 
     protected final static Object TOMBSTONE2 = new Object(){
         @Override
@@ -25,6 +30,14 @@ public class StoreCached extends StoreDirect {
         }
     };
 
+    /** marks write cache entries already installed by write cache flush */
+    protected final static Object FLUSHED = new Object(){
+        @Override
+        public String toString() {
+            return StoreCached.class.getName()+".FLUSHED";
+        }
+    };
+
     public StoreCached(
             String fileName,
             Fun.Function1<Volume, String> volumeFactory,
@@ -36,17 +49,22 @@ public class StoreCached extends StoreDirect {
             byte[] password,
             boolean readonly,
             int freeSpaceReclaimQ,
-            boolean commitFileSyncDisable,
-            int sizeIncrement) {
+            long commitSyncInterval,
+            long commitSyncBytes,
+            int sizeIncrement,
+            boolean indexPageCrc) {
         super(fileName, volumeFactory, cache,
                 lockScale,
                 lockingStrategy,
                 checksum, compress, password, readonly,
-                freeSpaceReclaimQ, commitFileSyncDisable, sizeIncrement);
+                freeSpaceReclaimQ, commitSyncInterval, commitSyncBytes, sizeIncrement,
+                false, indexPageCrc);
 
         writeCache = new LongObjectObjectMap[this.lockScale];
+        writeCacheStamps = new LongLongMap[this.lockScale];
         for (int i = 0; i < writeCache.length; i++) {
             writeCache[i] = new LongObjectObjectMap();
+            writeCacheStamps[i] = new LongLongMap();
         }
     }
 
@@ -58,7 +76,7 @@ public class StoreCached extends StoreDirect {
                 CC.DEFAULT_LOCK_SCALE,
                 0,
                 false, false, null, false, 0,
-                false, 0);
+                0, 0, 0, false);
     }
 
     @Override
@@ -98,18 +116,30 @@ public class StoreCached extends StoreDirect {
 
         long prevLinkVal = parity4Get(DataIO.getLong(page, 4));
         long pageSize = prevLinkVal >>> 48;
+
+        //current top entry will be replaced by difference from new value
+        long top = DataIO.unpackLongBidiReverse(page, (int) currSize);
+        long topSize = top >>> 56;
+        top = parity1Get(top & DataIO.PACK_LONG_BIDI_MASK) >>> 1;
+        long delta = longStackDeltaSet(top, value);
+        long newVal = parity1Set(value << 1);
+
         //is there enough space in current page?
-        if (currSize + 8 >= pageSize) {
-            //no there is not enough space
-            //first zero out rest of the page
-            Arrays.fill(page, (int) currSize, (int) pageSize, (byte) 0);
-            //allocate new page
+        long newSize = currSize - topSize + DataIO.packLongBidiSize(delta) + DataIO.packLongBidiSize(newVal);
+        if (newSize > pageSize) {
+            //no there is not enough space, allocate new page
             longStackNewPage(masterLinkOffset, pageOffset, value);
             return;
         }
 
         //there is enough space, so just write new value
-        currSize += DataIO.packLongBidi(page, (int) currSize, parity1Set(value << 1));
+        long oldCurrSize = currSize;
+        currSize -= topSize;
+        currSize += DataIO.packLongBidi(page, (int) currSize, delta);
+        currSize += DataIO.packLongBidi(page, (int) currSize, newVal);
+        if (currSize < oldCurrSize)
+            Arrays.fill(page, (int) currSize, (int) oldCurrSize, (byte) 0);
+        DataIO.putInt(page, 0, DataIO.getInt(page, 0) + 1);
 
         //and update master pointer
         headVol.putLong(masterLinkOffset, parity4Set(currSize << 48 | pageOffset));
@@ -138,8 +168,6 @@ public class StoreCached extends StoreDirect {
         //extract number of read bytes
         long oldCurrSize = currSize;
         currSize -= ret >>> 56;
-        //clear bytes occupied by prev value
-        Arrays.fill(page, (int) currSize, (int) oldCurrSize, (byte) 0);
         //and finally set return value
         ret = parity1Get(ret & DataIO.PACK_LONG_BIDI_MASK) >>> 1;
 
@@ -148,11 +176,23 @@ public class StoreCached extends StoreDirect {
 
         //is there space left on current page?
         if (currSize > 12) {
-            //yes, just update master link
+            //yes, entry below becomes top, so it is converted to absolute value
+            long below = DataIO.unpackLongBidiReverse(page, (int) currSize);
+            currSize -= below >>> 56;
+            below = longStackDeltaGet(below & DataIO.PACK_LONG_BIDI_MASK, ret);
+            currSize += DataIO.packLongBidi(page, (int) currSize, parity1Set(below << 1));
+            //clear bytes occupied by prev value
+            if (currSize < oldCurrSize)
+                Arrays.fill(page, (int) currSize, (int) oldCurrSize, (byte) 0);
+
+            DataIO.putInt(page, 0, DataIO.getInt(page, 0) - 1);
             headVol.putLong(masterLinkOffset, parity4Set(currSize << 48 | pageOffset));
             return ret;
         }
 
+        //clear bytes occupied by prev value
+        Arrays.fill(page, (int) currSize, (int) oldCurrSize, (byte) 0);
+
         //there is no space at current page, so delete current page and update master pointer
         long prevPageOffset = parity4Get(DataIO.getLong(page, 4));
         final int currPageSize = (int) (prevPageOffset >>> 48);
@@ -212,19 +252,37 @@ public class StoreCached extends StoreDirect {
         if (CC.PARANOID && !structuralLock.isHeldByCurrentThread())
             throw new AssertionError();
 
-        long newPageOffset = freeDataTakeSingle((int) CHUNKSIZE);
-        byte[] page = new byte[(int) CHUNKSIZE];
+        long pageSize = longStackNewPageSize(prevPageOffset == 0 ? 0 :
+                parity4Get(DataIO.getLong(loadLongStackPage(prevPageOffset), 4)) >>> 48);
+        long newPageOffset = freeDataTakeSingle((int) pageSize);
+        byte[] page = new byte[(int) pageSize];
 //TODO this is new page, so data should be clear, no need to read them, but perhaps check data are really zero, handle EOF
 //        vol.getData(newPageOffset, page, 0, page.length);
         dirtyStackPages.put(newPageOffset, page);
+        //write number of entries in stack, including previous pages
+        int count = prevPageOffset == 0 ? 0 : DataIO.getInt(loadLongStackPage(prevPageOffset), 0);
+        DataIO.putInt(page, 0, count + 1);
         //write size of current chunk with link to prev page
-        DataIO.putLong(page, 4, parity4Set((CHUNKSIZE << 48) | prevPageOffset));
+        DataIO.putLong(page, 4, parity4Set((pageSize << 48) | prevPageOffset));
         //put value
         long currSize = 12 + DataIO.packLongBidi(page, 12, parity1Set(value << 1));
         //update master pointer
         headVol.putLong(masterLinkOffset, parity4Set((currSize << 48) | newPageOffset));
     }
 
+    @Override
+    protected long longStackCount(long masterLinkOffset) {
+        if (CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        long masterLinkVal = parity4Get(headVol.getLong(masterLinkOffset));
+        if (masterLinkVal == 0)
+            return 0;
+        byte[] page = dirtyStackPages.get(masterLinkVal & MOFFSET);
+        if (page == null)
+            return super.longStackCount(masterLinkOffset);
+        return DataIO.getInt(page, 0) & 0xFFFFFFFFL;
+    }
+
     @Override
     protected void flush() {
         if (CC.PARANOID && !commitLock.isHeldByCurrentThread())
@@ -265,7 +323,14 @@ public class StoreCached extends StoreDirect {
         } finally {
             structuralLock.unlock();
         }
-        vol.sync();
+        commitSync(vol, 0);
+    }
+
+    @Override
+    protected void compactSwap(StoreDirect target) {
+        super.compactSwap(target);
+        //modified pages belong to old store
+        dirtyStackPages.clear();
     }
 
     protected void flushWriteCache() {
@@ -274,10 +339,11 @@ public class StoreCached extends StoreDirect {
 
         //flush modified records
         for (int i = 0; i < locks.length; i++) {
+            WriteCacheFlush flush = flushWriteCachePrepare(i);
             Lock lock = locks[i].writeLock();
             lock.lock();
             try {
-                flushWriteCacheSegment(i);
+                flushWriteCacheSegment(i, flush);
 
             } finally {
                 lock.unlock();
@@ -285,11 +351,109 @@ public class StoreCached extends StoreDirect {
         }
     }
 
-    protected void flushWriteCacheSegment(int segment) {
+    /** modified records from single segment, serialized outside of segment lock */
+    protected static final class WriteCacheFlush{
+        final long[] recids;
+        final Object[] values;
+        final Object[] serializers;
+        /** modification stamps from {@link #writeCacheStamps} when snapshot was taken */
+        final long[] stamps;
+        final DataOutputByteArray[] outs;
+
+        WriteCacheFlush(int size) {
+            recids = new long[size];
+            values = new Object[size];
+            serializers = new Object[size];
+            stamps = new long[size];
+            outs = new DataOutputByteArray[size];
+        }
+    }
+
+    /** puts modified record into write cache and updates its modification stamp, segment must be write locked */
+    protected void writeCachePut(int segment, long recid, Object value, Serializer serializer){
+        if (CC.PARANOID)
+            assertWriteLocked(segment);
+        writeCache[segment].put(recid, value, serializer);
+        LongLongMap stamps = writeCacheStamps[segment];
+        stamps.put(recid, stamps.get(recid)+1);
+    }
+
+    /** removes all records from write cache, segment must be write locked */
+    protected void writeCacheClear(int segment){
+        writeCache[segment].clear();
+        writeCacheStamps[segment].clear();
+    }
+
+    /**
+     * First phase of write cache flush. Takes snapshot of modified records under read lock,
+     * and serializes them after lock is released, so readers are not blocked by serialization.
+     *
+     * @return serialized records, or null if segment has no modified records
+     */
+    protected WriteCacheFlush flushWriteCachePrepare(int segment){
+        WriteCacheFlush ret;
+        Lock lock = locks[segment].readLock();
+        lock.lock();
+        try{
+            LongObjectObjectMap writeCache1 = writeCache[segment];
+            if(writeCache1.size==0)
+                return null;
+            ret = new WriteCacheFlush(writeCache1.size);
+            LongLongMap stamps = writeCacheStamps[segment];
+            long[] set = writeCache1.set;
+            Object[] values = writeCache1.values;
+            int pos = 0;
+            for(int i=0;i<set.length;i++){
+                if(set[i]==0)
+                    continue;
+                ret.recids[pos] = set[i];
+                ret.values[pos] = values[i*2];
+                ret.serializers[pos] = values[i*2+1];
+                ret.stamps[pos] = stamps.get(set[i]);
+                pos++;
+            }
+        }finally {
+            lock.unlock();
+        }
+
+        for(int i=0;i<ret.values.length;i++){
+            Object value = ret.values[i];
+            if(value!=TOMBSTONE2)
+                ret.outs[i] = serialize(value, (Serializer) ret.serializers[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Second phase of write cache flush, installs records serialized by {@link #flushWriteCachePrepare(int)}.
+     * Records modified after snapshot was taken are serialized here under lock.
+     */
+    protected void flushWriteCacheSegment(int segment, WriteCacheFlush flush) {
         if (CC.PARANOID)
             assertWriteLocked(segment);
 
         LongObjectObjectMap writeCache1 = writeCache[segment];
+        LongLongMap stamps = writeCacheStamps[segment];
+        if(flush!=null){
+            for(int i=0;i<flush.recids.length;i++){
+                long recid = flush.recids[i];
+                int index = writeCache1.get(recid);
+                //install only if record was not modified since snapshot,
+                //update could put the same instance after it was mutated, so value identity is not enough
+                if(index<0 || stamps.get(recid)!=flush.stamps[i] ||
+                        writeCache1.values[index*2]!=flush.values[i] ||
+                        writeCache1.values[index*2+1]!=flush.serializers[i])
+                    continue;
+                if(flush.values[i]==TOMBSTONE2){
+                    super.delete2(recid, Serializer.ILLEGAL_ACCESS);
+                }else{
+                    update2(recid, flush.outs[i]);
+                    recycledDataOut.lazySet(flush.outs[i]);
+                }
+                writeCache1.values[index*2] = FLUSHED;
+            }
+        }
+
         long[] set = writeCache1.set;
         Object[] values = writeCache1.values;
         for(int i=0;i<set.length;i++){
@@ -297,16 +461,18 @@ public class StoreCached extends StoreDirect {
             if(recid==0)
                 continue;
             Object value = values[i*2];
-            if (value == TOMBSTONE2) {
-                delete2(recid, Serializer.ILLEGAL_ACCESS);
+            if (value == FLUSHED) {
+                continue;
+            }else if (value == TOMBSTONE2) {
+                super.delete2(recid, Serializer.ILLEGAL_ACCESS);
             } else {
                 Serializer s = (Serializer) values[i*2+1];
-                DataOutputByteArray buf = serialize(value, s); //TODO somehow serialize outside lock?
+                DataOutputByteArray buf = serialize(value, s);
                 update2(recid, buf);
                 recycledDataOut.lazySet(buf);
             }
         }
-        writeCache1.clear();
+        writeCacheClear(segment);
 
         if (CC.PARANOID && writeCache[segment].size!=0)
             throw new AssertionError();
@@ -331,7 +497,7 @@ public class StoreCached extends StoreDirect {
         if (serializer == null)
             throw new NullPointerException();
 
-        writeCache[lockPos(recid)].put(recid, TOMBSTONE2,null);
+        writeCachePut(lockPos(recid), recid, TOMBSTONE2, null);
     }
 
     @Override
@@ -345,6 +511,19 @@ public class StoreCached extends StoreDirect {
         return recid;
     }
 
+    @Override
+    public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+        if (serializer == null)
+            throw new NullPointerException();
+
+        long[] recids = new long[values.length];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = preallocate();
+        }
+        updateAll(recids, values, serializer);
+        return recids;
+    }
+
     @Override
     public <A> void update(long recid, A value, Serializer<A> serializer) {
         if (serializer == null)
@@ -356,34 +535,70 @@ public class StoreCached extends StoreDirect {
         lock.lock();
         try {
             cache.put(recid,value);
-            writeCache[lockPos].put(recid, value, serializer);
+            writeCachePut(lockPos, recid, value, serializer);
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+        if (serializer == null)
+            throw new NullPointerException();
+        if(recids.length!=values.length)
+            throw new IllegalArgumentException("recids and values have different length");
+
+        int[][] segments = lockPosGroup(recids);
+        for(int segment=0;segment<segments.length;segment++){
+            int[] pos = segments[segment];
+            if(pos==null)
+                continue;
+            Cache cache = caches[segment];
+            Lock lock = locks[segment].writeLock();
+            lock.lock();
+            try {
+                for(int i:pos){
+                    cache.put(recids[i],values[i]);
+                    writeCachePut(segment, recids[i], values[i], serializer);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
 
     @Override
     public <A> boolean compareAndSwap(long recid, A expectedOldValue, A newValue, Serializer<A> serializer) {
         if(serializer==null)
             throw new NullPointerException();
 
-        //TODO binary CAS & serialize outside lock
+        //new value is serialized when write cache is flushed, so only expected value is serialized outside lock
+        final boolean binary = serializer.isCanonical();
+        DataOutputByteArray expectedOut = binary? serializeCanonical(expectedOldValue, serializer) : null;
+
         final int lockPos = lockPos(recid);
         final Lock lock = locks[lockPos].writeLock();
         final Cache cache = caches[lockPos];
         LongObjectObjectMap<A,Serializer<A>> map = writeCache[lockPos];
         lock.lock();
         try{
+            boolean equal;
             A oldVal = (A) cache.get(recid);
-            if(oldVal == null) {
-                oldVal = get2(recid, serializer);
-            }else if(oldVal == Cache.NULL){
-                oldVal = null;
+            if(oldVal == null && binary && map.get(recid)<0) {
+                //not in write cache, compare stored binary form
+                equal = binaryEquals2(recid, expectedOut);
+            }else {
+                if (oldVal == null) {
+                    oldVal = get2(recid, serializer);
+                } else if (oldVal == Cache.NULL) {
+                    oldVal = null;
+                }
+                equal = oldVal == expectedOldValue || (oldVal != null && serializer.equals(oldVal, expectedOldValue));
             }
-            if(oldVal==expectedOldValue || (oldVal!=null && serializer.equals(oldVal,expectedOldValue))){
+            if(equal){
                 cache.put(recid,newValue);
-                map.put(recid,newValue,serializer);
+                writeCachePut(lockPos, recid, newValue, serializer);
                 return true;
             }
             return false;
@@ -1,8 +1,11 @@
 package org.mapdb;
 
 import java.io.DataInput;
+import java.io.File;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.mapdb.DataIO.*;
 
@@ -43,12 +46,51 @@ public class StoreDirect extends Store {
     protected static final int SLOTS_COUNT = 5+(MAX_REC_SIZE)/16;
         //TODO check exact number of slots +5 is just to be sure
 
-    protected static final long HEAD_END = INDEX_PAGE + SLOTS_COUNT * 8;
+    /** total size of free slots in long stacks, stored as counter (see {@link #headCounterGet(long)}) */
+    protected static final long FREE_SIZE = INDEX_PAGE + SLOTS_COUNT * 8;
+    /** total size of space allocated to records, stored as counter */
+    protected static final long LIVE_SIZE = FREE_SIZE + 8;
+    /** number of deleted or preallocated recids, stored as counter */
+    protected static final long FREE_RECID_COUNT = LIVE_SIZE + 8;
+
+    protected static final long HEAD_END = FREE_RECID_COUNT + 8;
+    /** end of header in older format, before space usage counters were added */
+    protected static final long HEAD_END_OLD = FREE_SIZE;
 
     protected static final long INITCRC_INDEX_PAGE = 4329042389490239043L;
 
+    /** feature bit, index pages have checksum stored in their last 8 bytes */
+    protected static final long FEATURE_INDEX_CRC = 1L;
+    /**
+     * feature bit, header ends with space usage counters ({@link #FREE_SIZE}, {@link #LIVE_SIZE}
+     * and {@link #FREE_RECID_COUNT}) and long stack pages keep cumulative count.
+     * Older stores have index starting at different offset.
+     */
+    protected static final long FEATURE_SPACE_COUNTERS = 2L;
+    /**
+     * feature bit, long stack pages have variable size (see {@link #LONG_STACK_MIN_SIZE})
+     * and store delta encoded values
+     */
+    protected static final long FEATURE_LONG_STACK_DELTA = 4L;
+    /** all feature bits supported by this version, store with other bits set can not be opened */
+    protected static final long FEATURES_KNOWN = FEATURE_INDEX_CRC | FEATURE_SPACE_COUNTERS | FEATURE_LONG_STACK_DELTA;
+    /** feature bits which must be set, store without them was written in older incompatible format */
+    protected static final long FEATURES_REQUIRED = FEATURE_SPACE_COUNTERS | FEATURE_LONG_STACK_DELTA;
+
     private static final long[] EMPTY_LONGS = new long[0];
 
+    /** file extension for store file created during compaction */
+    protected static final String COMPACT_FILE_EXT = ".compact";
+    /** file extension for original store file while it is being replaced by compacted file */
+    protected static final String COMPACT_ORIG_FILE_EXT = ".compact_orig";
+
+    /** size of chunk arena takes from global allocator */
+    protected static final int ARENA_CHUNK_SIZE = 0x10000;
+    /** larger records are allocated directly by global allocator */
+    protected static final int ARENA_MAX_REC_SIZE = 4096;
+    /** maximal number of free slots of single size kept in arena, rest goes into global long stacks */
+    protected static final int ARENA_MAX_SLOTS = 64;
+
 
     protected Volume vol;
     protected Volume headVol;
@@ -58,6 +100,68 @@ public class StoreDirect extends Store {
 
     protected volatile long lastAllocatedData=0; //TODO this is under structural lock, does it have to be volatile?
 
+    /**
+     * Recids modified while compaction is running, one map per segment.
+     * It is null if compaction is not running.
+     */
+    protected volatile LongLongMap[] compactDirty = null;
+
+    /**
+     * Incremented every time compaction replaces store content.
+     * Modified under structural lock and all segment write locks.
+     */
+    protected long compactGeneration = 0;
+
+    /** allocation arenas, one for each segment. It is null if parallel allocator is disabled */
+    protected final Arena[] arenas;
+
+    /**
+     * True if index pages are protected by checksum. It is requested in constructor when store is created,
+     * existing store takes it from {@link #FORMAT_FEATURES} in header.
+     */
+    protected boolean indexPageCrc;
+
+    /** index pages which passed checksum check since store was opened, first index is page number */
+    protected boolean[] indexPagesChecked;
+
+    /** guards index page checksums, single index page holds recids from all segments */
+    protected final ReentrantLock indexCrcLock = new ReentrantLock(CC.FAIR_LOCKS);
+
+    /**
+     * Allocation arena owned by single segment and guarded by its write lock.
+     * It takes chunks of free space from global allocator and splits them into small records,
+     * so structural lock is only needed when arena runs out of space.
+     */
+    protected static final class Arena{
+        /** next free offset in current chunk */
+        long chunkOffset;
+        /** end of current chunk */
+        long chunkEnd;
+        /** released slots, first index is size/16 */
+        final long[][] slots = new long[ARENA_MAX_REC_SIZE/16+1][];
+        final int[] slotsCount = new int[ARENA_MAX_REC_SIZE/16+1];
+        /** size of released slots and rest of current chunk */
+        long freeSize;
+        /** change of live size not yet written into store header */
+        long liveSizeDelta;
+
+        /** forgets released slots and live size change, current chunk is kept */
+        void clearSlots(){
+            Arrays.fill(slotsCount,0);
+            freeSize = chunkEnd - chunkOffset;
+            liveSizeDelta = 0;
+        }
+
+        void clear(){
+            chunkOffset = 0;
+            chunkEnd = 0;
+            Arrays.fill(slots,null);
+            Arrays.fill(slotsCount,0);
+            freeSize = 0;
+            liveSizeDelta = 0;
+        }
+    }
+
     public StoreDirect(String fileName,
                        Fun.Function1<Volume, String> volumeFactory,
                        Cache cache,
@@ -68,11 +172,25 @@ public class StoreDirect extends Store {
                        byte[] password,
                        boolean readonly,
                        int freeSpaceReclaimQ,
-                       boolean commitFileSyncDisable,
-                       int sizeIncrement
+                       long commitSyncInterval,
+                       long commitSyncBytes,
+                       int sizeIncrement,
+                       boolean allocatorArenas,
+                       boolean indexPageCrc
                        ) {
-        super(fileName,volumeFactory, cache, lockScale, lockingStrategy, checksum,compress,password,readonly);
+        super(fileName,volumeFactory, cache, lockScale, lockingStrategy, checksum,compress,password,readonly,
+                commitSyncInterval, commitSyncBytes);
+        compactRecover(fileName);
         this.vol = volumeFactory.run(fileName);
+        if(allocatorArenas){
+            arenas = new Arena[this.lockScale];
+            for(int i=0;i<arenas.length;i++){
+                arenas[i] = new Arena();
+            }
+        }else{
+            arenas = null;
+        }
+        this.indexPageCrc = indexPageCrc;
     }
 
     @Override
@@ -101,15 +219,27 @@ public class StoreDirect extends Store {
             throw new AssertionError();
 
         //TODO header
-        //TODO feature bit field
         initHeadVol();
+
         //check head checksum
+        long features = vol.getLong(FORMAT_FEATURES);
         int expectedChecksum = vol.getInt(HEAD_CHECKSUM);
         int actualChecksum = headChecksum(vol);
         if (actualChecksum != expectedChecksum) {
+            //older format has shorter header, so checksum only matches old layout
+            if((features & FEATURES_REQUIRED)!=FEATURES_REQUIRED &&
+                    headChecksum(vol, HEAD_END_OLD)==expectedChecksum)
+                throw new DBException.DataCorruption("Store was created by older incompatible format, features: "+Long.toHexString(features));
             throw new DBException.HeadChecksumBroken();
         }
 
+        if((features & FEATURES_REQUIRED)!=FEATURES_REQUIRED)
+            throw new DBException.DataCorruption("Store was created by older incompatible format, features: "+Long.toHexString(features));
+        if((features & ~FEATURES_KNOWN)!=0)
+            throw new DBException.DataCorruption("Unknown format features: "+Long.toHexString(features));
+
+        indexPageCrc = (features & FEATURE_INDEX_CRC)!=0;
+
         //load index pages
         long[] ip = new long[]{0};
         long indexPage = parity16Get(vol.getLong(INDEX_PAGE));
@@ -121,22 +251,12 @@ public class StoreDirect extends Store {
                 ip = Arrays.copyOf(ip, ip.length * 4);
             }
             ip[i] = indexPage;
-            //checksum
-            if(CC.STORE_INDEX_CRC){
-                long res = INITCRC_INDEX_PAGE;
-                for(long j=0;j<PAGE_SIZE-8;j+=8){
-                    res+=vol.getLong(indexPage+j);
-                }
-                if(res!=vol.getLong(indexPage+PAGE_SIZE-8)) {
-                    //throw new InternalError("Page CRC error at offset: "+indexPage);
-                    throw new DBException.ChecksumBroken();
-                }
-            }
-
             //move to next page
             indexPage = parity16Get(vol.getLong(indexPage+PAGE_SIZE_M16));
         }
         indexPages = Arrays.copyOf(ip,i);
+        //page checksums are verified lazily, when page is first accessed
+        indexPagesChecked = new boolean[indexPages.length];
     }
 
     protected void initCreate() {
@@ -164,10 +284,21 @@ public class StoreDirect extends Store {
         }
 
         //put long stack master links
-        for(long masterLinkOffset = FREE_RECID_STACK;masterLinkOffset<HEAD_END;masterLinkOffset+=8){
+        for(long masterLinkOffset = FREE_RECID_STACK;masterLinkOffset<FREE_SIZE;masterLinkOffset+=8){
             vol.putLong(masterLinkOffset,parity4Set(0));
         }
 
+        //space usage counters
+        vol.putLong(FREE_SIZE, parity4Set(0));
+        vol.putLong(LIVE_SIZE, parity4Set(0));
+        vol.putLong(FREE_RECID_COUNT, parity4Set(0));
+
+        vol.putLong(FORMAT_FEATURES, FEATURES_REQUIRED | (indexPageCrc ? FEATURE_INDEX_CRC : 0L));
+        if(indexPageCrc){
+            vol.putLong(PAGE_SIZE-8, indexPageCrcCompute(vol, 0L));
+        }
+        indexPagesChecked = new boolean[]{true};
+
         //and set header checksum
         vol.putInt(HEAD_CHECKSUM, headChecksum(vol));
         vol.sync();
@@ -190,14 +321,19 @@ public class StoreDirect extends Store {
                 CC.DEFAULT_LOCK_SCALE,
                 0,
                 false,false,null,false,0,
-                false,0);
+                0,0,0,false,false);
     }
 
     protected int headChecksum(Volume vol2) {
+        return headChecksum(vol2, HEAD_END);
+    }
+
+    /** calculates header checksum, older format without {@link #FEATURE_SPACE_COUNTERS} ends at {@link #HEAD_END_OLD} */
+    protected int headChecksum(Volume vol2, long headEnd) {
         if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
             throw new AssertionError();
         int ret = 0;
-        for(int offset = 8;offset<HEAD_END;offset+=8){
+        for(int offset = 8;offset<headEnd;offset+=8){
             //TODO include some recids in checksum
             ret = ret*31 + DataIO.longHash(vol2.getLong(offset));
             ret = ret*31 + DataIO.intHash(offset);
@@ -246,6 +382,49 @@ public class StoreDirect extends Store {
         }
     }
 
+    @Override
+    protected <A> void getAll2(int segment, long[] recids, int[] pos, Serializer<A> serializer, Object[] ret) {
+        if(CC.PARANOID)
+            assertReadLocked(recids[pos[0]]);
+
+        final Cache cache = caches[segment];
+        //resolve cache hits first
+        int missCount = 0;
+        final int[] miss = new int[pos.length];
+        final long[] missOffsets = new long[pos.length];
+        for(int i:pos){
+            Object o = cache.get(recids[i]);
+            if(o==null){
+                miss[missCount] = i;
+                missOffsets[missCount] = indexValGet(recids[i])&MOFFSET;
+                missCount++;
+            }else{
+                ret[i] = o==Cache.NULL?null:o;
+            }
+        }
+        if(missCount==0)
+            return;
+
+        //read remaining records in order of their offsets, so disk access is mostly sequential
+        Integer[] order = new Integer[missCount];
+        for(int i=0;i<missCount;i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long v1 = missOffsets[o1];
+                long v2 = missOffsets[o2];
+                return v1<v2?-1:(v1==v2?0:1);
+            }
+        });
+        for(Integer o:order){
+            int i = miss[o];
+            long recid = recids[i];
+            ret[i] = get2AndCache(cache, recid, serializer);
+        }
+    }
+
     protected int offsetsTotalSize(long[] offsets) {
         if(offsets==null || offsets.length==0)
             return 0;
@@ -262,23 +441,38 @@ public class StoreDirect extends Store {
         if(CC.PARANOID)
             assertWriteLocked(lockPos(recid));
 
+        boolean wasUnused = (indexValGet(recid)&MUNUSED)!=0;
         long[] oldOffsets = offsetsGet(recid);
         int oldSize = offsetsTotalSize(oldOffsets);
         int newSize = out==null?0:out.pos;
         long[] newOffsets;
 
         //if new version fits into old one, reuse space
-        if(oldSize==newSize){
+        if(oldSize==newSize && !wasUnused){
             //TODO more precise check of linked records
             //TODO check rounUp 16 for non-linked records
             newOffsets = oldOffsets;
+        }else if(arenas!=null){
+            int segment = lockPos(recid);
+            if(oldOffsets!=null)
+                arenaFree(segment, oldOffsets);
+            newOffsets = newSize==0?null:arenaAlloc(segment, newSize);
+            if(wasUnused) {
+                structuralLock.lock();
+                try {
+                    headCounterAdd(FREE_RECID_COUNT, -1);
+                } finally {
+                    structuralLock.unlock();
+                }
+            }
         }else {
             structuralLock.lock();
             try {
                 if(oldOffsets!=null)
                     freeDataPut(oldOffsets);
                 newOffsets = newSize==0?null:freeDataTake(out.pos);
-
+                if(wasUnused)
+                    headCounterAdd(FREE_RECID_COUNT, -1);
             } finally {
                 structuralLock.unlock();
             }
@@ -341,19 +535,11 @@ public class StoreDirect extends Store {
 
         long indexOffset = recidToOffset(recid);
         long newval = composeIndexVal(size,offset,linked,unused,true);
-        if(CC.STORE_INDEX_CRC){
-            //update crc by substracting old value and adding new value
-            long oldval = vol.getLong(indexOffset);
-            long crcOffset = (indexOffset&PAGE_MASK_INVERSE)+PAGE_SIZE-8;
-            //TODO crc at end of zero page?
-            if(CC.PARANOID && crcOffset<HEAD_END)
-                throw new AssertionError();
-            long crc = vol.getLong(crcOffset);
-            crc-=oldval;
-            crc+=newval;
-            vol.putLong(crcOffset,crc);
-        }
-        vol.putLong(indexOffset, newval);
+        indexLongPut(indexOffset, newval);
+
+        LongLongMap[] dirty = compactDirty;
+        if(dirty!=null)
+            dirty[lockPos(recid)].put(recid,1L);
     }
 
 
@@ -362,24 +548,98 @@ public class StoreDirect extends Store {
         if(CC.PARANOID)
             assertWriteLocked(lockPos(recid));
 
+        boolean wasUsed = (indexValGet(recid)&MUNUSED)==0;
         long[] offsets = offsetsGet(recid);
-        structuralLock.lock();
-        try {
-            freeDataPut(offsets);
-        }finally {
-            structuralLock.unlock();
+        if(offsets!=null && arenas!=null){
+            arenaFree(lockPos(recid), offsets);
+            offsets = null;
+        }
+        if(offsets!=null || wasUsed) {
+            structuralLock.lock();
+            try {
+                if(offsets!=null)
+                    freeDataPut(offsets);
+                if(wasUsed)
+                    headCounterAdd(FREE_RECID_COUNT, 1);
+            } finally {
+                structuralLock.unlock();
+            }
         }
         indexValPut(recid,0,0,true,true);
     }
 
     @Override
     public long getCurrSize() {
-        return vol.length() - lastAllocatedData % CHUNKSIZE;
+        return vol.length();
     }
 
     @Override
     public long getFreeSize() {
-        return -1; //TODO freesize
+        structuralLock.lock();
+        try{
+            return headCounterGet(FREE_SIZE) + arenasFreeSize();
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
+    /** returns free space held by arenas, value is not precise since arenas are modified outside structural lock */
+    protected long arenasFreeSize(){
+        if(arenas==null)
+            return 0;
+        long ret = 0;
+        for(Arena a:arenas){
+            ret+=a.freeSize;
+        }
+        return ret;
+    }
+
+    @Override
+    public Stats getStats() {
+        structuralLock.lock();
+        try{
+            //free size for each size class, index is size/16
+            long[] freeSizes = new long[round16Up(MAX_REC_SIZE)/16+1];
+            for(int i=1;i<freeSizes.length;i++){
+                freeSizes[i] = longStackCount(FREE_RECID_STACK + i*8) * i * 16;
+            }
+            long liveSizeDelta = 0;
+            if(arenas!=null) {
+                for (Arena a : arenas) {
+                    liveSizeDelta += a.liveSizeDelta;
+                    for (int i = 0; i < a.slotsCount.length; i++) {
+                        freeSizes[i] += a.slotsCount[i] * i * 16L;
+                    }
+                    long rest = a.chunkEnd - a.chunkOffset;
+                    freeSizes[(int) (rest/16)] += rest;
+                }
+            }
+            return new Stats(
+                    parity16Get(headVol.getLong(STORE_SIZE)),
+                    headCounterGet(FREE_SIZE) + arenasFreeSize(),
+                    headCounterGet(LIVE_SIZE) + liveSizeDelta,
+                    headCounterGet(FREE_RECID_COUNT),
+                    freeSizes);
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
+    /** returns value of counter stored in header */
+    protected long headCounterGet(long offset){
+        if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        return parity4Get(headVol.getLong(offset))>>>4;
+    }
+
+    /** adds value to counter stored in header */
+    protected void headCounterAdd(long offset, long plus){
+        if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        long val = (parity4Get(headVol.getLong(offset))>>>4) + plus;
+        if(CC.PARANOID && val<0)
+            throw new AssertionError("counter is negative");
+        headVol.putLong(offset, parity4Set(val<<4));
     }
 
     @Override
@@ -387,7 +647,8 @@ public class StoreDirect extends Store {
         long recid;
         structuralLock.lock();
         try {
-             recid = freeRecidTake();
+            recid = freeRecidTake();
+            headCounterAdd(FREE_RECID_COUNT, 1);
         }finally {
             structuralLock.unlock();
         }
@@ -406,12 +667,15 @@ public class StoreDirect extends Store {
     public <A> long put(A value, Serializer<A> serializer) {
         long recid;
         long[] offsets;
+        long generation;
         DataOutputByteArray out = serialize(value,serializer);
         boolean notalloc = out==null || out.pos==0;
         structuralLock.lock();
         try {
             recid = freeRecidTake();
-            offsets = notalloc?null:freeDataTake(out.pos);
+            //with arenas space is allocated later under segment lock
+            offsets = notalloc || arenas!=null?null:freeDataTake(out.pos);
+            generation = compactGeneration;
         }finally {
             structuralLock.unlock();
         }
@@ -422,7 +686,18 @@ public class StoreDirect extends Store {
         Lock lock = locks[lockPos].writeLock();
         lock.lock();
         try {
-            caches[lockPos].put(recid,value);
+            if(arenas!=null && !notalloc){
+                offsets = arenaAlloc(lockPos, out.pos);
+            }else if(offsets!=null && generation!=compactGeneration){
+                //store was compacted in meantime, and space was allocated in old store
+                structuralLock.lock();
+                try {
+                    offsets = freeDataTake(out.pos);
+                }finally {
+                    structuralLock.unlock();
+                }
+            }
+            cachePut(caches[lockPos], recid, value, out==null? 0 : out.pos);
             putData(recid, offsets, out);
         }finally {
             lock.unlock();
@@ -431,6 +706,63 @@ public class StoreDirect extends Store {
         return recid;
     }
 
+    @Override
+    public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+        long[] recids = new long[values.length];
+        long[][] offsets = new long[values.length][];
+        long generation;
+        //serialize outside lock
+        DataOutputByteArray[] outs = new DataOutputByteArray[values.length];
+        for(int i=0;i<values.length;i++){
+            outs[i] = serialize(values[i],serializer);
+        }
+        //take recids and space for all records in single structural lock
+        structuralLock.lock();
+        try {
+            for(int i=0;i<values.length;i++){
+                recids[i] = freeRecidTake();
+                boolean notalloc = outs[i]==null || outs[i].pos==0;
+                offsets[i] = notalloc || arenas!=null?null:freeDataTake(outs[i].pos);
+                if(CC.PARANOID && offsets[i]!=null && (offsets[i][0]&MOFFSET)<PAGE_SIZE)
+                    throw new AssertionError();
+            }
+            generation = compactGeneration;
+        }finally {
+            structuralLock.unlock();
+        }
+
+        int[][] segments = lockPosGroup(recids);
+        for(int segment=0;segment<segments.length;segment++){
+            int[] pos = segments[segment];
+            if(pos==null)
+                continue;
+            Lock lock = locks[segment].writeLock();
+            lock.lock();
+            try {
+                for(int i:pos){
+                    DataOutputByteArray out = outs[i];
+                    boolean notalloc = out==null || out.pos==0;
+                    if(arenas!=null && !notalloc){
+                        offsets[i] = arenaAlloc(segment, out.pos);
+                    }else if(offsets[i]!=null && generation!=compactGeneration){
+                        //store was compacted in meantime, and space was allocated in old store
+                        structuralLock.lock();
+                        try {
+                            offsets[i] = freeDataTake(out.pos);
+                        }finally {
+                            structuralLock.unlock();
+                        }
+                    }
+                    cachePut(caches[segment], recids[i], values[i], out==null? 0 : out.pos);
+                    putData(recids[i], offsets[i], out);
+                }
+            }finally {
+                lock.unlock();
+            }
+        }
+        return recids;
+    }
+
     protected void putData(long recid, long[] offsets, DataOutputByteArray out) {
         if(CC.PARANOID)
             assertWriteLocked(lockPos(recid));
@@ -491,6 +823,7 @@ public class StoreDirect extends Store {
         for(long v:linkedOffsets){
             int size = round16Up((int) (v >>> 48));
             v &= MOFFSET;
+            headCounterAdd(LIVE_SIZE, -size);
             freeDataPut(v,size);
         }
     }
@@ -513,8 +846,10 @@ public class StoreDirect extends Store {
             return;
         }
 
+        headCounterAdd(FREE_SIZE, size);
         long masterPointerOffset = size/2 + FREE_RECID_STACK; // really is size*8/16
-        longStackPut(masterPointerOffset, offset, false);
+        //offsets are aligned to 16 bytes, so lowest bits are not stored
+        longStackPut(masterPointerOffset, offset>>>4, false);
     }
 
 
@@ -534,6 +869,8 @@ public class StoreDirect extends Store {
         //allocate last section
         ret = Arrays.copyOf(ret,ret.length+1);
         ret[ret.length-1] = (((long)size)<<48) | freeDataTakeSingle(round16Up(size)) ;
+
+        headCounterAdd(LIVE_SIZE, (ret.length-1)*round16Up(MAX_REC_SIZE) + round16Up(size));
         return ret;
     }
 
@@ -546,8 +883,9 @@ public class StoreDirect extends Store {
             throw new AssertionError();
 
         long masterPointerOffset = size/2 + FREE_RECID_STACK; // really is size*8/16
-        long ret = longStackTake(masterPointerOffset,false);
+        long ret = longStackTake(masterPointerOffset,false)<<4;
         if(ret!=0) {
+            headCounterAdd(FREE_SIZE, -size);
             if(CC.PARANOID && ret<PAGE_SIZE)
                 throw new AssertionError();
             if(CC.PARANOID && ret%16!=0)
@@ -588,8 +926,158 @@ public class StoreDirect extends Store {
     }
 
 
-    //TODO use var size
-    protected final static long CHUNKSIZE = 100*16;
+    /** allocates space for record in arena, large records are allocated by global allocator */
+    protected long[] arenaAlloc(int segment, int size) {
+        if(CC.PARANOID)
+            assertWriteLocked(segment);
+        if(CC.PARANOID && size<=0)
+            throw new AssertionError();
+
+        if(size>ARENA_MAX_REC_SIZE){
+            structuralLock.lock();
+            try{
+                return freeDataTake(size);
+            }finally {
+                structuralLock.unlock();
+            }
+        }
+
+        final Arena a = arenas[segment];
+        final int size16 = round16Up(size);
+        final int slot = size16/16;
+        long offset;
+        if(a.slotsCount[slot]>0){
+            //reuse released slot
+            offset = a.slots[slot][--a.slotsCount[slot]];
+        }else{
+            if(a.chunkOffset+size16>a.chunkEnd){
+                //not enough space in current chunk, take new one from global allocator
+                structuralLock.lock();
+                try{
+                    long rest = a.chunkEnd - a.chunkOffset;
+                    if(rest>0) {
+                        freeDataPut(a.chunkOffset, (int) rest);
+                        a.freeSize -= rest;
+                    }
+                    a.chunkOffset = freeDataTakeSingle(ARENA_CHUNK_SIZE);
+                    a.chunkEnd = a.chunkOffset + ARENA_CHUNK_SIZE;
+                    a.freeSize += ARENA_CHUNK_SIZE;
+                }finally {
+                    structuralLock.unlock();
+                }
+            }
+            offset = a.chunkOffset;
+            a.chunkOffset+=size16;
+        }
+        a.freeSize -= size16;
+        a.liveSizeDelta += size16;
+
+        if(CC.PARANOID && (offset%16!=0 || offset<PAGE_SIZE))
+            throw new AssertionError();
+        return new long[]{(((long)size)<<48) | offset};
+    }
+
+    /** releases record space into arena, large records are released to global allocator */
+    protected void arenaFree(int segment, long[] offsets) {
+        if(CC.PARANOID)
+            assertWriteLocked(segment);
+
+        final Arena a = arenas[segment];
+        for(long v:offsets){
+            int size16 = round16Up((int) (v >>> 48));
+            long offset = v & MOFFSET;
+            int slot = size16/16;
+            if(size16<=ARENA_MAX_REC_SIZE && a.slotsCount[slot]<ARENA_MAX_SLOTS){
+                vol.clear(offset,offset+size16);
+                long[] slots = a.slots[slot];
+                if(slots==null) {
+                    slots = new long[ARENA_MAX_SLOTS];
+                    a.slots[slot] = slots;
+                }
+                slots[a.slotsCount[slot]++] = offset;
+                a.freeSize += size16;
+                a.liveSizeDelta -= size16;
+            }else{
+                structuralLock.lock();
+                try{
+                    freeDataPut(new long[]{v});
+                }finally {
+                    structuralLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates counters in header and returns released slots held by arenas into global allocator.
+     * Rest of current chunk stays in arena across commits, since its odd size would fragment free space.
+     * It is only returned when store is closed, after crash it is lost until store is compacted.
+     *
+     * @param releaseChunks if true, rest of current chunk is also returned into global allocator
+     */
+    protected void arenasFlush(boolean releaseChunks) {
+        if(arenas==null)
+            return;
+        for(int segment=0;segment<arenas.length;segment++){
+            Lock lock = locks[segment].writeLock();
+            lock.lock();
+            try{
+                structuralLock.lock();
+                try{
+                    Arena a = arenas[segment];
+                    long rest = a.chunkEnd - a.chunkOffset;
+                    if(releaseChunks && rest>0)
+                        freeDataPut(a.chunkOffset, (int) rest);
+                    for(int slot=0;slot<a.slots.length;slot++){
+                        for(int i=0;i<a.slotsCount[slot];i++){
+                            freeDataPut(a.slots[slot][i], slot*16);
+                        }
+                    }
+                    headCounterAdd(LIVE_SIZE, a.liveSizeDelta);
+                    if(releaseChunks)
+                        a.clear();
+                    else
+                        a.clearSlots();
+                }finally {
+                    structuralLock.unlock();
+                }
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** size of first long stack page, each following page is twice as large as previous one */
+    protected static final long LONG_STACK_MIN_SIZE = 128;
+    /** maximal size of long stack page */
+    protected static final long LONG_STACK_MAX_SIZE = 4096;
+
+    /*
+     * Long stack page starts with number of entries in stack (4 bytes) and link to previous page (8 bytes).
+     * It is followed by entries packed with {@link DataIO#packLongBidi(byte[], int, long)}.
+     * Top entry on page is stored as absolute value, other entries store difference from entry above them.
+     * Page is filled from start, unused space at end of page is zero.
+     */
+
+    /** encodes value as difference from entry above it */
+    protected static long longStackDeltaSet(long value, long above){
+        long delta = value - above;
+        //zig-zag encoding, so small negative numbers are also small
+        delta = (delta << 1) ^ (delta >> 63);
+        return parity1Set(delta << 1);
+    }
+
+    /** decodes value stored as difference from entry above it */
+    protected static long longStackDeltaGet(long packed, long above){
+        long delta = parity1Get(packed) >>> 1;
+        delta = (delta >>> 1) ^ -(delta & 1);
+        return above + delta;
+    }
+
+    /** returns size of new long stack page, it depends on size of previous page */
+    protected static long longStackNewPageSize(long prevPageSize){
+        return prevPageSize==0 ? LONG_STACK_MIN_SIZE : Math.min(LONG_STACK_MAX_SIZE, prevPageSize*2);
+    }
 
     protected void longStackPut(final long masterLinkOffset, final long value, boolean recursive){
         if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
@@ -609,18 +1097,30 @@ public class StoreDirect extends Store {
 
         long prevLinkVal = parity4Get(vol.getLong(pageOffset + 4));
         long pageSize = prevLinkVal>>>48;
+
+        //current top entry will be replaced by difference from new value
+        long top = vol.getLongPackBidiReverse(pageOffset+currSize);
+        long topSize = top>>>56;
+        top = parity1Get(top&DataIO.PACK_LONG_BIDI_MASK)>>>1;
+        long delta = longStackDeltaSet(top, value);
+        long newVal = parity1Set(value<<1);
+
         //is there enough space in current page?
-        if(currSize+8>=pageSize){
-            //no there is not enough space
-            //first zero out rest of the page
-            vol.clear(pageOffset+currSize, pageOffset+pageSize);
-            //allocate new page
+        long newSize = currSize - topSize + DataIO.packLongBidiSize(delta) + DataIO.packLongBidiSize(newVal);
+        if(newSize>pageSize){
+            //no there is not enough space, allocate new page
             longStackNewPage(masterLinkOffset,pageOffset,value);
             return;
         }
 
         //there is enough space, so just write new value
-        currSize += vol.putLongPackBidi(pageOffset+currSize,parity1Set(value<<1));
+        long oldCurrSize = currSize;
+        currSize -= topSize;
+        currSize += vol.putLongPackBidi(pageOffset+currSize, delta);
+        currSize += vol.putLongPackBidi(pageOffset+currSize, newVal);
+        if(currSize<oldCurrSize)
+            vol.clear(pageOffset+currSize, pageOffset+oldCurrSize);
+        vol.putInt(pageOffset, vol.getInt(pageOffset)+1);
         //and update master pointer
         headVol.putLong(masterLinkOffset, parity4Set(currSize<<48 | pageOffset));
     }
@@ -629,9 +1129,14 @@ public class StoreDirect extends Store {
         if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
             throw new AssertionError();
 
-        long newPageOffset = freeDataTakeSingle((int) CHUNKSIZE);
+        long pageSize = longStackNewPageSize(
+                prevPageOffset==0 ? 0 : parity4Get(vol.getLong(prevPageOffset+4))>>>48);
+        long newPageOffset = freeDataTakeSingle((int) pageSize);
+        //write number of entries in stack, including previous pages
+        int count = prevPageOffset==0? 0 : vol.getInt(prevPageOffset);
+        vol.putInt(newPageOffset, count+1);
         //write size of current chunk with link to prev page
-        vol.putLong(newPageOffset+4, parity4Set((CHUNKSIZE<<48) | prevPageOffset));
+        vol.putLong(newPageOffset+4, parity4Set((pageSize<<48) | prevPageOffset));
         //put value
         long currSize = 12 + vol.putLongPackBidi(newPageOffset+12, parity1Set(value<<1));
         //update master pointer
@@ -659,8 +1164,6 @@ public class StoreDirect extends Store {
         //extract number of read bytes
         long oldCurrSize = currSize;
         currSize-= ret >>>56;
-        //clear bytes occupied by prev value
-        vol.clear(pageOffset+currSize, pageOffset+oldCurrSize);
         //and finally set return value
         ret = parity1Get(ret &DataIO.PACK_LONG_BIDI_MASK)>>>1;
 
@@ -669,11 +1172,23 @@ public class StoreDirect extends Store {
 
         //is there space left on current page?
         if(currSize>12){
-            //yes, just update master link
+            //yes, entry below becomes top, so it is converted to absolute value
+            long below = vol.getLongPackBidiReverse(pageOffset+currSize);
+            currSize -= below>>>56;
+            below = longStackDeltaGet(below&DataIO.PACK_LONG_BIDI_MASK, ret);
+            currSize += vol.putLongPackBidi(pageOffset+currSize, parity1Set(below<<1));
+            //clear bytes occupied by prev value
+            if(currSize<oldCurrSize)
+                vol.clear(pageOffset+currSize, pageOffset+oldCurrSize);
+
+            vol.putInt(pageOffset, vol.getInt(pageOffset)-1);
             headVol.putLong(masterLinkOffset, parity4Set(currSize << 48 | pageOffset));
             return ret;
         }
 
+        //clear bytes occupied by prev value
+        vol.clear(pageOffset+currSize, pageOffset+oldCurrSize);
+
         //there is no space at current page, so delete current page and update master pointer
         long prevPageOffset = parity4Get(vol.getLong(pageOffset + 4));
         final int currPageSize = (int) (prevPageOffset>>>48);
@@ -710,12 +1225,26 @@ public class StoreDirect extends Store {
         return ret;
     }
 
+    /**
+     * Returns number of entries in long stack.
+     * First four bytes of each long stack page hold number of entries on that page and all previous pages.
+     */
+    protected long longStackCount(long masterLinkOffset){
+        if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        long masterLinkVal = parity4Get(headVol.getLong(masterLinkOffset));
+        if(masterLinkVal==0)
+            return 0;
+        return vol.getInt(masterLinkVal&MOFFSET) & 0xFFFFFFFFL;
+    }
+
     @Override
     public void close() {
         commitLock.lock();
         try {
             closed = true;
             flush();
+            commitSyncClose();
             vol.close();
             vol = null;
 
@@ -743,6 +1272,8 @@ public class StoreDirect extends Store {
     protected void flush() {
         if(isReadOnly())
             return;
+        //arena chunks are kept until store is closed
+        arenasFlush(closed);
         structuralLock.lock();
         try{
             //and set header checksum
@@ -750,7 +1281,7 @@ public class StoreDirect extends Store {
         }finally {
             structuralLock.unlock();
         }
-        vol.sync();
+        commitSync(vol, 0);
     }
 
     @Override
@@ -779,14 +1310,246 @@ public class StoreDirect extends Store {
 
     }
 
+    /**
+     * Compacts store while it is in use. Live records are copied into new densely packed store,
+     * which then replaces current store file.
+     * <p>
+     * Readers and writers are not blocked while records are copied, only segment lock for single record is held.
+     * Records modified during copy are tracked in {@link #compactDirty} and copied again at the end,
+     * while all segment locks are held for short time and store files are swapped.
+     */
     @Override
     public void compact() {
+        if(readonly)
+            throw new UnsupportedOperationException("Read-only");
+
+        commitLock.lock();
+        try{
+            final String compactFile = isInMemory()? null : fileName+COMPACT_FILE_EXT;
+            if(compactFile!=null)
+                new File(compactFile).delete();
+
+            final Volume targetVol = volumeFactory.run(compactFile);
+            if(targetVol==vol)
+                return; //volume factory does not create new volumes, can not compact
+
+            final StoreDirect target = new StoreDirect(compactFile,
+                    new Fun.Function1<Volume, String>() {
+                        @Override
+                        public Volume run(String s) {
+                            return targetVol;
+                        }
+                    },
+                    null,
+                    lockScale,
+                    2, //target is only accessed from this thread, so no locking
+                    false,false,null,false,0,0,0,0,false,
+                    indexPageCrc);
+            target.init();
+
+            boolean swapped = false;
+            target.structuralLock.lock();
+            try {
+                LongLongMap[] dirty = new LongLongMap[lockScale];
+                for(int i=0;i<dirty.length;i++){
+                    dirty[i] = new LongLongMap();
+                }
+                compactDirty = dirty;
+
+                //copy all records, modified recids are tracked and copied again later
+                long maxRecid = compactMaxRecid();
+                compactExtendRecids(target, maxRecid);
+                for (long recid = 1; recid <= maxRecid; recid++) {
+                    Lock lock = locks[lockPos(recid)].readLock();
+                    lock.lock();
+                    try {
+                        compactCopyRecord(target, recid);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                //lock entire store, copy records modified in meantime and swap stores
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i].writeLock().lock();
+                }
+                try {
+                    structuralLock.lock();
+                    try {
+                        compactDirty = null;
+
+                        compactExtendRecids(target, compactMaxRecid());
+                        for (int segment = 0; segment < dirty.length; segment++) {
+                            LongLongMap d = dirty[segment];
+                            for (int i = 0; i < d.size(); i++) {
+                                compactCopyRecord(target, d.key(i));
+                            }
+                        }
+                        //compaction does not change number of free recids
+                        target.headVol.putLong(FREE_RECID_COUNT, headVol.getLong(FREE_RECID_COUNT));
+                        target.flush();
+
+                        compactSwap(target);
+                        swapped = true;
+                        compactGeneration++;
+                    } finally {
+                        structuralLock.unlock();
+                    }
+                } finally {
+                    for (int i = locks.length - 1; i >= 0; i--) {
+                        locks[i].writeLock().unlock();
+                    }
+                }
+            }finally {
+                compactDirty = null;
+                target.structuralLock.unlock();
+                if(!swapped){
+                    targetVol.close();
+                    targetVol.deleteFile();
+                }
+            }
+        }finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * restores original store file, if compaction crashed after original file was moved aside,
+     * but before compacted file replaced it
+     */
+    protected static void compactRecover(String fileName) {
+        if(fileName==null || fileName.isEmpty())
+            return;
+        File file = new File(fileName);
+        File origFile = new File(fileName+COMPACT_ORIG_FILE_EXT);
+        if(!origFile.exists() || (file.exists() && file.length()>0))
+            return;
+        //compacted file might not be complete, original is used instead
+        file.delete();
+        if(!origFile.renameTo(file))
+            throw new DBException.VolumeIOError("Could not restore store file from: " + origFile);
+        new File(fileName+COMPACT_FILE_EXT).delete();
+    }
+
+    /** returns true if store has no file, DBMaker uses empty file name for in-memory stores */
+    protected boolean isInMemory() {
+        return fileName==null || fileName.isEmpty();
+    }
+
+    protected long compactMaxRecid() {
+        structuralLock.lock();
+        try{
+            return parity3Get(headVol.getLong(MAX_RECID_OFFSET))/8;
+        }finally {
+            structuralLock.unlock();
+        }
+    }
+
+    /** allocates recids in target store, so its index is large enough to hold given recid */
+    protected static void compactExtendRecids(StoreDirect target, long maxRecid) {
+        while(parity3Get(target.headVol.getLong(MAX_RECID_OFFSET))/8 < maxRecid){
+            target.freeRecidTake();
+        }
+    }
+
+    /** copies binary content of single record into target store, previous copy in target store is released*/
+    protected void compactCopyRecord(StoreDirect target, long recid) {
+        if(CC.PARANOID)
+            assertReadLocked(recid);
+
+        if(vol.getLong(recidToOffset(recid))==0)
+            return; //recid was allocated but not written yet
+
+        //release space used by previous version of this record
+        if(target.vol.getLong(target.recidToOffset(recid))!=0){
+            long[] oldOffsets = target.offsetsGet(recid);
+            if(oldOffsets!=null && oldOffsets.length>0)
+                target.freeDataPut(oldOffsets);
+        }
+
+        long[] offsets = offsetsGet(recid);
+        if(offsets==null){
+            //null, deleted or preallocated record, it has no data so just copy index value
+            boolean unused = (indexValGet(recid)&MUNUSED)!=0;
+            target.indexValPut(recid,0,0L,true,unused);
+            return;
+        }
+
+        //read binary data
+        int totalSize = offsetsTotalSize(offsets);
+        DataOutputByteArray out = new DataOutputByteArray();
+        out.ensureAvail(totalSize);
+        for (int i = 0; i < offsets.length; i++) {
+            int plus = (i == offsets.length - 1)?0:8;
+            int size = (int) ((offsets[i] >>> 48) - plus);
+            long offset = offsets[i] & MOFFSET;
+            vol.getData(offset + plus, out.buf, out.pos, size);
+            out.pos += size;
+        }
+        if (CC.PARANOID && out.pos != totalSize)
+            throw new AssertionError("size does not match");
 
+        long[] newOffsets = totalSize==0? EMPTY_LONGS : target.freeDataTake(totalSize);
+        target.putData(recid, newOffsets, out);
+    }
+
+    /** replaces content of this store with compacted store */
+    protected void compactSwap(StoreDirect target) {
+        if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+
+        Volume oldVol = vol;
+        //old volume must not be synced by commit sync after it is closed
+        oldVol.sync();
+        commitSyncRemove(oldVol);
+        if(isInMemory()){
+            vol = target.vol;
+            oldVol.close();
+        }else{
+            File file = new File(fileName);
+            File compactFile = new File(fileName+COMPACT_FILE_EXT);
+            File origFile = new File(fileName+COMPACT_ORIG_FILE_EXT);
+
+            //compacted file must be on disk before it replaces original
+            target.vol.sync();
+            target.vol.close();
+            oldVol.close();
+            //rename over existing file is atomic on POSIX, so complete store file always exists
+            if(!compactFile.renameTo(file)) {
+                //some platforms can not rename over existing file, so original is moved aside first,
+                //if it crashes in between, original is restored by compactRecover() on next open
+                origFile.delete();
+                if(!file.renameTo(origFile)) {
+                    vol = volumeFactory.run(fileName);
+                    throw new DBException.VolumeIOError("Could not rename store file: " + file);
+                }
+                if(!compactFile.renameTo(file)) {
+                    origFile.renameTo(file);
+                    vol = volumeFactory.run(fileName);
+                    throw new DBException.VolumeIOError("Could not replace store file with compacted file: " + compactFile);
+                }
+                origFile.delete();
+            }
+            vol = volumeFactory.run(fileName);
+        }
+        indexPages = target.indexPages;
+        indexPagesChecked = target.indexPagesChecked;
+        lastAllocatedData = target.lastAllocatedData;
+        if(arenas!=null){
+            //space held by arenas belongs to old store
+            for(Arena a:arenas){
+                a.clear();
+            }
+        }
+        initHeadVol();
     }
 
 
     protected long indexValGet(long recid) {
-        long indexVal = vol.getLong(recidToOffset(recid));
+        long indexOffset = recidToOffset(recid);
+        if(indexPageCrc)
+            indexPageCheck(recid, indexOffset);
+        long indexVal = vol.getLong(indexOffset);
         if(indexVal == 0)
             throw new DBException.EngineGetVoid();
         //check parity and throw recid does not exist if broken
@@ -797,7 +1560,6 @@ public class StoreDirect extends Store {
         if(CC.PARANOID && recid<=0)
             throw new AssertionError();
         recid = recid * 8 + HEAD_END;
-        //TODO add checksum to beginning of each page
         return indexPages[((int) (recid / PAGE_SIZE_M16))] + //offset of index page
                 (recid % PAGE_SIZE_M16); // offset on page
     }
@@ -846,8 +1608,71 @@ public class StoreDirect extends Store {
         return currentRecid;
     }
 
+    /** validates checksum of index page which holds given recid, each page is only checked once after store was opened */
+    protected void indexPageCheck(long recid, long indexOffset) {
+        int pageNum = (int) ((recid * 8 + HEAD_END) / PAGE_SIZE_M16);
+        boolean[] checked = indexPagesChecked;
+        if(pageNum<checked.length && checked[pageNum])
+            return;
+
+        indexCrcLock.lock();
+        try{
+            checked = indexPagesChecked;
+            if(pageNum<checked.length && checked[pageNum])
+                return;
+            long pageOffset = indexOffset & PAGE_MASK_INVERSE;
+            if(indexPageCrcCompute(vol, pageOffset) != vol.getLong(pageOffset + PAGE_SIZE - 8))
+                throw new DBException.ChecksumBroken();
+            indexPageChecked(pageNum);
+        }finally {
+            indexCrcLock.unlock();
+        }
+    }
+
+    /** marks index page as verified, so its checksum is not checked again */
+    protected void indexPageChecked(int pageNum) {
+        if(CC.PARANOID && !indexCrcLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        boolean[] checked = indexPagesChecked;
+        if(pageNum>=checked.length){
+            checked = Arrays.copyOf(checked, Math.max(pageNum+1, checked.length*2));
+        }
+        checked[pageNum] = true;
+        indexPagesChecked = checked;
+    }
+
+    /**
+     * Computes checksum of index page. It is sum of all longs on page except checksum itself,
+     * zero page also excludes store header.
+     */
+    protected static long indexPageCrcCompute(Volume vol, long pageOffset) {
+        long ret = INITCRC_INDEX_PAGE;
+        long end = pageOffset + PAGE_SIZE - 8;
+        for(long offset = pageOffset==0 ? HEAD_END : pageOffset; offset<end; offset+=8){
+            ret += vol.getLong(offset);
+        }
+        return ret;
+    }
+
     protected void indexLongPut(long offset, long val){
-        vol.putLong(offset,val);
+        if(!indexPageCrc){
+            vol.putLong(offset,val);
+            return;
+        }
+        long crcOffset = (offset & PAGE_MASK_INVERSE) + PAGE_SIZE - 8;
+        indexCrcLock.lock();
+        try{
+            if(offset!=crcOffset) {
+                //update crc by substracting old value and adding new value
+                long crc = vol.getLong(crcOffset);
+                crc -= vol.getLong(offset);
+                crc += val;
+                vol.putLong(crcOffset, crc);
+            }
+            vol.putLong(offset, val);
+        }finally {
+            indexCrcLock.unlock();
+        }
     }
     protected void pageIndexExtend() {
         if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
@@ -856,6 +1681,11 @@ public class StoreDirect extends Store {
         //allocate new index page
         long indexPage = pageAllocate();
 
+        if(indexPageCrc){
+            //page was cleared by allocator, so it has checksum of empty page
+            indexLongPut(indexPage+PAGE_SIZE-8, INITCRC_INDEX_PAGE);
+        }
+
         //add link to previous page
         if(indexPages.length==1){
             //first index page
@@ -864,27 +1694,25 @@ public class StoreDirect extends Store {
             //update link on previous page
             long nextPagePointerOffset = indexPages[indexPages.length-1]+PAGE_SIZE_M16;
             indexLongPut(nextPagePointerOffset, parity16Set(indexPage));
-            if(CC.STORE_INDEX_CRC){
-                //update crc by increasing crc value
-                long crc = vol.getLong(nextPagePointerOffset+8); //TODO read both longs from TX
-                crc-=vol.getLong(nextPagePointerOffset);
-                crc+=parity16Set(indexPage);
-                indexLongPut(nextPagePointerOffset+8,crc);
-            }
         }
 
         //set zero link on next page
         indexLongPut(indexPage+PAGE_SIZE_M16,parity16Set(0));
 
-        //set init crc value on new page
-        if(CC.STORE_INDEX_CRC){
-            indexLongPut(indexPage+PAGE_SIZE-8,INITCRC_INDEX_PAGE+parity16Set(0));
-        }
-
         //put into index page array
         long[] indexPages2 = Arrays.copyOf(indexPages,indexPages.length+1);
         indexPages2[indexPages.length]=indexPage;
         indexPages = indexPages2;
+
+        if(indexPageCrc){
+            //content of new page is known, no need to verify it
+            indexCrcLock.lock();
+            try{
+                indexPageChecked(indexPages2.length-1);
+            }finally {
+                indexCrcLock.unlock();
+            }
+        }
     }
 
     protected long pageAllocate() {
@@ -18,7 +18,7 @@ public class StoreHeap extends Store{
     protected static final Object NULL = new Object();
 
     public StoreHeap(boolean txDisabled, int lockScale, int lockingStrategy){
-        super(null,null,null,lockScale, 0, false,false,null,false);
+        super(null,null,null,lockScale, 0, false,false,null,false,0,0);
         data = new LongObjectMap[this.lockScale];
         for(int i=0;i<data.length;i++){
             data[i] = new LongObjectMap();
@@ -78,6 +78,40 @@ public class StoreHeap extends Store{
         }
     }
 
+    @Override
+    public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+        if(serializer==null)
+            throw new NullPointerException();
+        if(recids.length!=values.length)
+            throw new IllegalArgumentException("recids and values have different length");
+        if(closed)
+            throw new IllegalAccessError("closed");
+
+        int[][] segments = lockPosGroup(recids);
+        for(int segment=0;segment<segments.length;segment++){
+            int[] pos = segments[segment];
+            if(pos==null)
+                continue;
+            LongObjectMap data2 = data[segment];
+            Lock lock = locks[segment].writeLock();
+            lock.lock();
+            try{
+                for(int i:pos){
+                    long recid = recids[i];
+                    Object val2 = values[i]==null?NULL:values[i];
+                    Object old = data2.put(recid,val2);
+                    if(rollback!=null){
+                        LongObjectMap rol = rollback[segment];
+                        if(rol.get(recid)==null)
+                            rol.put(recid,old);
+                    }
+                }
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
     @Override
     protected void update2(long recid, DataIO.DataOutputByteArray out) {
         throw new UnsupportedOperationException();
@@ -173,6 +207,19 @@ public class StoreHeap extends Store{
         return recid;
     }
 
+    @Override
+    public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+        if(closed)
+            throw new IllegalAccessError("closed");
+
+        long[] ret = new long[values.length];
+        for(int i=0;i<ret.length;i++){
+            ret[i] = recids.getAndIncrement();
+        }
+        updateAll(ret, values, serializer);
+        return ret;
+    }
+
     @Override
     public void close() {
         closed = true;
@@ -21,11 +21,24 @@ import java.io.DataInput;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 
 import static org.mapdb.DataIO.parity16Get;
 import static org.mapdb.DataIO.parity16Set;
@@ -42,7 +55,34 @@ public class StoreWAL extends StoreCached {
     protected static final long WAL_SEAL = 8234892392398238983L;
     protected static final int WAL_CHECKSUM_MASK = 0x1F; //5 bits
 
-    protected static final int FULL_REPLAY_AFTER_N_TX = 16;
+    /** maximal number of WAL files which were not checkpointed yet, file number is stored in 16 bits */
+    protected static final int WAL_FILES_MAX = 0x10000;
+    protected static final int WAL_FILES_MASK = WAL_FILES_MAX-1;
+
+    /** checkpoint is started if there are more sealed WAL files, each of them holds open file */
+    protected static final int WAL_CHECKPOINT_FILES = 64;
+
+    /** commit waits for checkpoint if background thread falls behind and there are more sealed WAL files */
+    protected static final int WAL_CHECKPOINT_FILES_BLOCK = 1024;
+
+    protected static final AtomicInteger checkpointThreadCounter = new AtomicInteger();
+
+    /** maximal number of reset WAL files kept for reuse */
+    protected static final int WAL_RECYCLE_MAX = 16;
+
+    /** WAL replay starts new thread for each N modified pages in main store */
+    protected static final int WAL_REPLAY_PAGES_PER_THREAD = 4;
+
+    /** WAL replay copies records of this size or larger directly between volumes, smaller go through {@code byte[]} */
+    protected static final int WAL_REPLAY_TRANSFER_MIN = 1024;
+
+    /** flag in WAL offset, data at offset are compressed and start with two byte compressed size */
+    protected static final long WAL_COMPRESSED = 1L<<31;
+
+    /** commit processes segments in parallel, if they have together more modified records */
+    protected static final int COMMIT_PARALLEL_MIN = 1024;
+
+    protected static final AtomicInteger commitThreadCounter = new AtomicInteger();
 
 
     protected final LongLongMap[] prevLongLongs;
@@ -51,12 +91,55 @@ public class StoreWAL extends StoreCached {
     protected final LongLongMap[] currDataLongs;
 
     protected final LongLongMap pageLongStack = new LongLongMap();
-    protected final List<Volume> volumes = new CopyOnWriteArrayList<Volume>();
+    /** WAL files indexed by file number modulo {@link #WAL_FILES_MAX}, checkpointed files are removed */
+    protected final AtomicReferenceArray<Volume> volumes = new AtomicReferenceArray<Volume>(WAL_FILES_MAX);
 
     protected Volume curVol;
 
+    /** number of current WAL file */
     protected int fileNum = -1;
 
+    /** number of oldest WAL file which was not checkpointed yet, guarded by structural lock */
+    protected int walFirstFile = 0;
+
+    /** total size of sealed WAL files which were not checkpointed yet, guarded by structural lock */
+    protected long walSealedSize = 0;
+
+    /** checkpoint is started when size of sealed WAL files exceeds this number of bytes */
+    protected final long walCheckpointSize;
+
+    /** new WAL files are preallocated to this size, so commits do not extend files. Zero disables it */
+    protected final long walPreallocateSize;
+
+    /** records of this size or larger are compressed in WAL, zero disables compression */
+    protected final int walCompressionThreshold;
+
+    /** compresses WAL records, it is also used for decompression if compression is disabled now */
+    protected final ThreadLocal<CompressLZF> walLZF = new ThreadLocal<CompressLZF>() {
+        @Override
+        protected CompressLZF initialValue() {
+            return new CompressLZF();
+        }
+    };
+
+    /** WAL files which were replayed and reset, they are reused instead of creating new files */
+    protected final ConcurrentLinkedQueue<File> walRecycled = new ConcurrentLinkedQueue<File>();
+    protected final AtomicInteger walRecycledCounter = new AtomicInteger();
+
+    /** only single thread can copy WAL files into main store */
+    protected final ReentrantLock checkpointLock = new ReentrantLock(CC.FAIR_LOCKS);
+
+    /** copies WAL into main store in background, it is started when checkpoint is first needed */
+    protected volatile Thread checkpointThread = null;
+
+    /** set by commit, park permit alone could be consumed by locks taken during checkpoint */
+    protected volatile boolean checkpointRequested = false;
+
+    protected volatile Throwable checkpointFailure = null;
+
+    /** report of last WAL replay */
+    protected volatile WALReplayReport walReplayLast = null;
+
     //TODO how to protect concurrrently file offset when file is being swapped?
     protected final AtomicLong walOffset = new AtomicLong();
 
@@ -66,6 +149,22 @@ public class StoreWAL extends StoreCached {
 
     protected Volume realVol;
 
+    /** guards group commit state, it is never held while commit is running */
+    protected final ReentrantLock groupCommitLock = new ReentrantLock(CC.FAIR_LOCKS);
+    /** signaled when commit finishes */
+    protected final Condition groupCommitDone = groupCommitLock.newCondition();
+    /** number of commits started, guarded by {@link #groupCommitLock} */
+    protected long groupCommitStarted = 0;
+    /** number of last successfully finished commit, guarded by {@link #groupCommitLock} */
+    protected long groupCommitFinished = 0;
+    /** true if some thread is running commit, guarded by {@link #groupCommitLock} */
+    protected boolean groupCommitRunning = false;
+
+    /** number of threads which write segments into WAL in parallel, is only read before worker pool is created */
+    protected int commitThreads;
+    /** worker pool for parallel commit, created on first large commit, guarded by commitLock */
+    protected ExecutorService commitExecutor = null;
+
 
     public StoreWAL(String fileName) {
         this(fileName,
@@ -74,7 +173,10 @@ public class StoreWAL extends StoreCached {
                 CC.DEFAULT_LOCK_SCALE,
                 0,
                 false, false, null, false, 0,
-                false, 0);
+                0, 0, 0, false,
+                CC.DEFAULT_WAL_CHECKPOINT_SIZE,
+                CC.DEFAULT_WAL_PREALLOCATE_SIZE,
+                0);
     }
 
     public StoreWAL(
@@ -88,13 +190,23 @@ public class StoreWAL extends StoreCached {
             byte[] password,
             boolean readonly,
             int freeSpaceReclaimQ,
-            boolean commitFileSyncDisable,
-            int sizeIncrement) {
+            long commitSyncInterval,
+            long commitSyncBytes,
+            int sizeIncrement,
+            boolean indexPageCrc,
+            long walCheckpointSize,
+            long walPreallocateSize,
+            int walCompressionThreshold) {
         super(fileName, volumeFactory, cache,
                 lockScale,
                 lockingStrategy,
                 checksum, compress, password, readonly,
-                freeSpaceReclaimQ, commitFileSyncDisable, sizeIncrement);
+                freeSpaceReclaimQ, commitSyncInterval, commitSyncBytes, sizeIncrement,
+                indexPageCrc);
+        this.walCheckpointSize = walCheckpointSize;
+        this.walPreallocateSize = walPreallocateSize;
+        this.walCompressionThreshold = walCompressionThreshold;
+        this.commitThreads = Math.min(this.lockScale, Runtime.getRuntime().availableProcessors());
         prevLongLongs = new LongLongMap[this.lockScale];
         currLongLongs = new LongLongMap[this.lockScale];
         for (int i = 0; i < prevLongLongs.length; i++) {
@@ -129,20 +241,30 @@ public class StoreWAL extends StoreCached {
 
         realVol = vol;
 
-        //replay WAL files
-        String wal0Name = getWalFileName(0);
-        if(wal0Name!=null && new File(wal0Name).exists()){
-            //fill wal files
-            for(int i=0;;i++){
+        //reset files left by previous instance can be reused
+        walRecycledFind();
+
+        //replay WAL files, oldest files might be already deleted by checkpoint
+        TreeSet<Integer> walFiles = walFilesFind();
+        if(!walFiles.isEmpty()){
+            walFirstFile = walFiles.first();
+            for(int i=walFirstFile;i<=walFiles.last();i++){
                 String wname = getWalFileName(i);
                 if(!new File(wname).exists())
                     break;
-                volumes.add(volumeFactory.run(wname));
+                volumes.set(i&WAL_FILES_MASK, volumeFactory.run(wname));
+                fileNum = i;
+            }
+            //files after gap were never sealed, commit was interrupted
+            for(Integer i:walFiles.tailSet(fileNum+1)){
+                new File(getWalFileName(i)).delete();
             }
 
+            long time = System.currentTimeMillis();
             replayWAL();
-
-            volumes.clear();
+            WALReplayReport report = walReplayLast;
+            if(LOG.isLoggable(Level.INFO))
+                LOG.info("Recovered store "+fileName+" in "+(System.currentTimeMillis()-time)+" ms. "+report);
         }
 
         //start new WAL file
@@ -163,10 +285,7 @@ public class StoreWAL extends StoreCached {
         //backup headVol
         headVolBackup = new Volume.ByteArrayVol(CC.VOLUME_PAGE_SHIFT);
         headVolBackup.ensureAvailable(HEAD_END);
-        byte[] b = new byte[(int) HEAD_END];
-        //TODO use direct copy
-        headVol.getData(0,b,0,b.length);
-        headVolBackup.putData(0,b,0,b.length);
+        headVol.transferIntoOverlap(0, headVolBackup, 0, HEAD_END);
     }
 
     protected void walStartNextFile() {
@@ -174,28 +293,121 @@ public class StoreWAL extends StoreCached {
             throw new AssertionError();
 
         fileNum++;
-        if (CC.PARANOID && fileNum != volumes.size())
+        if (CC.PARANOID && volumes.get(fileNum&WAL_FILES_MASK)!=null)
             throw new AssertionError();
         String filewal = getWalFileName(fileNum);
         Volume nextVol;
         if (readonly && filewal != null && !new File(filewal).exists()){
             nextVol = new Volume.ReadOnly(new Volume.ByteArrayVol(8));
         }else {
+            File recycled = walRecycled.poll();
+            if(recycled!=null && !recycled.renameTo(new File(filewal))) {
+                recycled.delete();
+            }
             nextVol = volumeFactory.run(filewal);
         }
-        nextVol.ensureAvailable(16);
+        //recycled file has already its size, so this is noop
+        //in-memory WAL is not preallocated, it would only waste heap
+        nextVol.ensureAvailable(isInMemory()? 16 : Math.max(16, walPreallocateSize));
         //TODO write headers and stuff
         walOffset.set(16);
-        volumes.add(nextVol);
+        volumes.set(fileNum&WAL_FILES_MASK, nextVol);
 
         curVol = nextVol;
     }
 
     protected String getWalFileName(int fileNum) {
-        return fileName==null? null :
+        return isInMemory()? null :
                 fileName+"."+fileNum+".wal";
     }
 
+    protected String getWalRecycledName(int num) {
+        return fileName+".wal.recycled."+num;
+    }
+
+    /** finds reset WAL files, which can be reused */
+    protected void walRecycledFind() {
+        if(isInMemory())
+            return;
+        File file = new File(fileName).getAbsoluteFile();
+        String prefix = file.getName()+".wal.recycled.";
+        String[] names = file.getParentFile().list();
+        if(names==null)
+            return;
+        for(String name:names){
+            if(!name.startsWith(prefix))
+                continue;
+            File f = new File(file.getParentFile(), name);
+            try{
+                int num = Integer.parseInt(name.substring(prefix.length()));
+                walRecycledCounter.set(Math.max(walRecycledCounter.get(), num+1));
+            }catch(NumberFormatException e){
+                continue; //not a WAL file
+            }
+            if(walPreallocateSize>0 && walRecycled.size()<WAL_RECYCLE_MAX)
+                walRecycled.add(f);
+            else
+                f.delete();
+        }
+    }
+
+    /**
+     * Resets replayed WAL file and keeps it for reuse. Seal is cleared and synced,
+     * so file is not replayed again if store crashes.
+     *
+     * @return false if file can not be recycled
+     */
+    protected boolean walRecycle(Volume wal, int fileNum){
+        if(isInMemory() || walPreallocateSize<=0 || walRecycled.size()>=WAL_RECYCLE_MAX)
+            return false;
+        if(commitSyncInterval!=0){
+            //seal could be on disk before data, so old content must not survive
+            byte[] zeros = new byte[1<<16];
+            long len = wal.length();
+            for(long pos=8;pos<len;){
+                //aligned writes never cross volume slices
+                int size = (int) Math.min(len-pos, zeros.length-(pos&(zeros.length-1)));
+                wal.putData(pos, zeros, 0, size);
+                pos+=size;
+            }
+        }else {
+            wal.putLong(8, 0L);
+        }
+        wal.sync();
+        wal.close();
+        File f = new File(getWalFileName(fileNum));
+        File recycled = new File(getWalRecycledName(walRecycledCounter.getAndIncrement()));
+        if(!f.renameTo(recycled)) {
+            f.delete();
+            return true;
+        }
+        walRecycled.add(recycled);
+        return true;
+    }
+
+    /** returns numbers of existing WAL files */
+    protected TreeSet<Integer> walFilesFind() {
+        TreeSet<Integer> ret = new TreeSet<Integer>();
+        if(isInMemory())
+            return ret;
+        File file = new File(fileName).getAbsoluteFile();
+        String prefix = file.getName()+".";
+        String[] names = file.getParentFile().list();
+        if(names==null)
+            return ret;
+        for(String name:names){
+            if(!name.startsWith(prefix) || !name.endsWith(".wal"))
+                continue;
+            String num = name.substring(prefix.length(), name.length()-4);
+            try{
+                ret.add(Integer.valueOf(num));
+            }catch(NumberFormatException e){
+                //not a WAL file
+            }
+        }
+        return ret;
+    }
+
     protected void walPutLong(long offset, long value){
         final int plusSize = +1+8+6;
         long walOffset2 = walOffset.getAndAdd(plusSize);
@@ -218,6 +430,60 @@ public class StoreWAL extends StoreCached {
         curVol2.putSixLong(walOffset2, offset);
     }
 
+    /**
+     * Writes all entries from map into WAL. Space for all instructions is reserved at once,
+     * so segments committed in parallel do not compete for {@code walOffset} on each entry.
+     */
+    protected void walPutLongs(LongLongMap map){
+        final int count = map.size();
+        if(count==0)
+            return;
+        final int plusSize = +1+8+6;
+        long size = (long)count*plusSize;
+        //instruction can not cross page boundary, space before boundary might be wasted
+        size += ((size>>>CC.VOLUME_PAGE_SHIFT)+2)*plusSize;
+        long walOffset2 = walOffset.getAndAdd(size);
+        final long end = walOffset2+size;
+
+        Volume curVol2 = curVol;
+        curVol2.ensureAvailable(end);
+        for(int i=0;i<count;i++){
+            if((walOffset2>>>CC.VOLUME_PAGE_SHIFT)!=(walOffset2+plusSize)>>>CC.VOLUME_PAGE_SHIFT){
+                long pageEnd = ((walOffset2>>>CC.VOLUME_PAGE_SHIFT)+1)<<CC.VOLUME_PAGE_SHIFT;
+                walSkip(curVol2, walOffset2, pageEnd);
+                walOffset2 = pageEnd;
+            }
+            long offset = map.key(i);
+            long value = map.value(i);
+            int parity = 1+Long.bitCount(value)+Long.bitCount(offset);
+            parity &=31;
+            curVol2.putUnsignedByte(walOffset2, (1 << 5)|parity);
+            curVol2.putLong(walOffset2+1, value);
+            curVol2.putSixLong(walOffset2+1+8, offset);
+            walOffset2+=plusSize;
+        }
+        if(CC.PARANOID && walOffset2>end)
+            throw new AssertionError();
+        //fill unused reserved space
+        walSkip(curVol2, walOffset2, end);
+    }
+
+    /** fills WAL area between offsets with skip instructions */
+    protected static void walSkip(Volume wal, long walOffset2, long end){
+        while(walOffset2<end){
+            long remaining = end-walOffset2;
+            if(remaining<4 || (walOffset2>>>CC.VOLUME_PAGE_SHIFT)!=(walOffset2+4)>>>CC.VOLUME_PAGE_SHIFT){
+                //single byte skip, 4 byte instruction would not fit
+                wal.putUnsignedByte(walOffset2, (4<<5)|(Long.bitCount(walOffset2)&31));
+                walOffset2++;
+                continue;
+            }
+            int skipN = (int) Math.min(remaining-4, 0xFFFFFF);
+            wal.putInt(walOffset2, (3<<(5+3*8)) | skipN | ((Integer.bitCount(skipN)&31)<<(3*8)));
+            walOffset2+=4+skipN;
+        }
+    }
+
     protected boolean hadToSkip(long walOffset2, int plusSize) {
         //does it overlap page boundaries?
         if((walOffset2>>>CC.VOLUME_PAGE_SHIFT)==(walOffset2+plusSize)>>>CC.VOLUME_PAGE_SHIFT){
@@ -277,6 +543,26 @@ public class StoreWAL extends StoreCached {
         if(CC.PARANOID && segment==-1 && !structuralLock.isHeldByCurrentThread())
             throw new AssertionError();
 
+        if(walCompressionThreshold>0 && segment!=-1 && size>=walCompressionThreshold){
+            byte[] in = buf;
+            if(bufPos!=0){
+                in = new byte[size];
+                System.arraycopy(buf,bufPos,in,0,size);
+            }
+            byte[] out = new byte[size+40];
+            int compSize;
+            try{
+                compSize = walLZF.get().compress(in, size, out, 0);
+            }catch(IndexOutOfBoundsException e){
+                compSize = size; //larger after compression
+            }
+            if(compSize<size){
+                walPutDataCompressed(segment, offset, size, out, compSize);
+                return;
+            }
+            //compression had no effect, store uncompressed
+        }
+
         final int plusSize = +1+2+6+size;
         long walOffset2 = walOffset.getAndAdd(plusSize);
 
@@ -284,6 +570,8 @@ public class StoreWAL extends StoreCached {
             putDataSingleWithoutLink(segment,offset,buf,bufPos,size);
             return;
         }
+        if(CC.PARANOID && walOffset2+1+8>=WAL_COMPRESSED)
+            throw new AssertionError("WAL file too large");
 
         curVol.ensureAvailable(walOffset2+plusSize);
         int checksum = 1+Integer.bitCount(size)+Long.bitCount(offset)+sum(buf,bufPos,size);
@@ -296,14 +584,56 @@ public class StoreWAL extends StoreCached {
 
         //TODO assertions
         long val = ((long)size)<<48;
-        val |= ((long)fileNum)<<32;
+        val |= ((long)(fileNum&WAL_FILES_MASK))<<32;
         val |= walOffset2;
 
         (segment==-1?pageLongStack:currDataLongs[segment]).put(offset, val);
     }
 
 
-    protected DataInput walGetData(long offset, int segment) {
+    /**
+     * Puts compressed record into WAL. Instruction has uncompressed size and offset in main store,
+     * followed by two byte compressed size and compressed data.
+     */
+    protected void walPutDataCompressed(int segment, long offset, int size, byte[] comp, int compSize) {
+        final int plusSize = +1+2+6+2+compSize;
+        long walOffset2 = walOffset.getAndAdd(plusSize);
+
+        if(hadToSkip(walOffset2, plusSize)){
+            walPutDataCompressed(segment, offset, size, comp, compSize);
+            return;
+        }
+        if(CC.PARANOID && walOffset2+1+8>=WAL_COMPRESSED)
+            throw new AssertionError("WAL file too large");
+
+        curVol.ensureAvailable(walOffset2+plusSize);
+        int checksum = 1+Integer.bitCount(size)+Integer.bitCount(compSize)+Long.bitCount(offset)+sum(comp,0,compSize);
+        checksum &= 31;
+        curVol.putUnsignedByte(walOffset2, (5 << 5)|checksum);
+        walOffset2+=1;
+        curVol.putLong(walOffset2, ((long) size) << 48 | offset);
+        walOffset2+=8;
+        curVol.putUnsignedShort(walOffset2, compSize);
+        curVol.putData(walOffset2+2, comp, 0, compSize);
+
+        long val = ((long)size)<<48;
+        val |= ((long)(fileNum&WAL_FILES_MASK))<<32;
+        val |= WAL_COMPRESSED | walOffset2;
+
+        currDataLongs[segment].put(offset, val);
+    }
+
+    /** reads and expands compressed record from WAL, {@code walOffset2} points to compressed size */
+    protected void walDecompress(Volume wal, long walOffset2, byte[] out, int size){
+        int compSize = wal.getUnsignedShort(walOffset2);
+        try {
+            walLZF.get().expand(wal.getDataInput(walOffset2+2, compSize), out, 0, size);
+        } catch (IOException e) {
+            throw new DBException.VolumeIOError(e);
+        }
+    }
+
+    protected DataInput walGetData(long offset, int size, int segment) {
         if (CC.PARANOID && offset % 16 != 0)
             throw new AssertionError();
 
@@ -311,14 +641,21 @@ public class StoreWAL extends StoreCached {
         if(longval==0){
             longval = prevDataLongs[segment].get(offset);
         }
-        if(longval==0)
-            return null;
+        if(longval==0) {
+            //data were already copied into main store by checkpoint
+            return vol.getDataInput(offset, size);
+        }
 
         int arraySize = (int) (longval >>> 48);
         int fileNum = (int) ((longval >>> 32) & 0xFFFFL);
         long dataOffset = longval & 0xFFFFFFFFL;
 
         Volume vol = volumes.get(fileNum);
+        if((dataOffset&WAL_COMPRESSED)!=0){
+            byte[] b = new byte[arraySize];
+            walDecompress(vol, dataOffset^WAL_COMPRESSED, b, arraySize);
+            return new DataIO.DataInputByteArray(b);
+        }
         return vol.getDataInput(dataOffset, arraySize);
     }
 
@@ -350,6 +687,7 @@ public class StoreWAL extends StoreCached {
     protected void indexLongPut(long offset, long val) {
         if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
             throw  new AssertionError();
+        //index page checksum is not updated here, it is recalculated when WAL is replayed
         walPutLong(offset,val);
     }
 
@@ -400,6 +738,24 @@ public class StoreWAL extends StoreCached {
         return page;
     }
 
+    @Override
+    protected long longStackCount(long masterLinkOffset) {
+        if (CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        long masterLinkVal = parity4Get(headVol.getLong(masterLinkOffset));
+        if (masterLinkVal == 0)
+            return 0;
+        long pageOffset = masterLinkVal & MOFFSET;
+        long walval = pageLongStack.get(pageOffset);
+        if (walval == 0 || dirtyStackPages.get(pageOffset) != null)
+            return super.longStackCount(masterLinkOffset);
+
+        //page is stored in WAL, read counter from its first four bytes
+        int fileNum = (int) ((walval >>> 32) & 0xFFFFL);
+        long dataOffset = walval & 0xFFFFFFFFL;
+        return volumes.get(fileNum).getInt(dataOffset) & 0xFFFFFFFFL;
+    }
+
     @Override
     protected <A> A get2(long recid, Serializer<A> serializer) {
         if (CC.PARANOID)
@@ -437,8 +793,8 @@ public class StoreWAL extends StoreCached {
                     byte[] in = new byte[100];
                     long link = walval;
                     while((link&MLINKED)!=0){
-                        DataInput in2 = walGetData(link&MOFFSET, segment);
                         int chunkSize = (int) (link>>>48);
+                        DataInput in2 = walGetData(link&MOFFSET, chunkSize, segment);
                         //get value of next link
                         link = in2.readLong();
                         //copy data into in
@@ -450,8 +806,8 @@ public class StoreWAL extends StoreCached {
                     }
 
                     //copy last chunk of data
-                    DataInput in2 = walGetData(link&MOFFSET, segment);
                     int chunkSize = (int) (link>>>48);
+                    DataInput in2 = walGetData(link&MOFFSET, chunkSize, segment);
                     //copy data into in
                     if(in.length<totalSize+chunkSize){
                         in = Arrays.copyOf(in, Math.max(in.length*2,totalSize+chunkSize ));
@@ -465,7 +821,7 @@ public class StoreWAL extends StoreCached {
                 }
 
                 //read  non-linked record
-                DataInput in = walGetData(walval&MOFFSET, segment);
+                DataInput in = walGetData(walval&MOFFSET, (int) (walval>>>48), segment);
                 return deserialize(serializer, (int) (walval>>>48),in);
             }
         }
@@ -515,7 +871,7 @@ public class StoreWAL extends StoreCached {
                 Lock lock = locks[segment].writeLock();
                 lock.lock();
                 try {
-                    writeCache[segment].clear();
+                    writeCacheClear(segment);
                     caches[segment].clear();
                 } finally {
                     lock.unlock();
@@ -527,10 +883,7 @@ public class StoreWAL extends StoreCached {
                 dirtyStackPages.clear();
 
                 //restore headVol from backup
-                byte[] b = new byte[(int) HEAD_END];
-                //TODO use direct copy
-                headVolBackup.getData(0,b,0,b.length);
-                headVol.putData(0,b,0,b.length);
+                headVolBackup.transferIntoOverlap(0, headVol, 0, HEAD_END);
 
                 indexPages = indexPagesBackup.clone();
             } finally {
@@ -541,50 +894,158 @@ public class StoreWAL extends StoreCached {
         }
     }
 
+    /**
+     * Commits all changes made so far. Commits are grouped: threads which call commit while other commit is running,
+     * wait until it finishes. Then single thread commits changes made by all of them and
+     * they all return after single WAL sync.
+     */
     @Override
     public void commit() {
-        commitLock.lock();
+        final long commitNum;
+        groupCommitLock.lock();
         try{
-            //if big enough, do full WAL replay
-            if(volumes.size()>FULL_REPLAY_AFTER_N_TX) {
-                commitFullWALReplay();
-                return;
+            //commit started after this point also includes changes made by this thread
+            final long ticket = groupCommitStarted+1;
+            for(;;){
+                if(groupCommitFinished>=ticket)
+                    return; //other thread committed our changes
+                if(!groupCommitRunning)
+                    break; //run commit in this thread
+                groupCommitDone.awaitUninterruptibly();
             }
+            groupCommitRunning = true;
+            commitNum = ++groupCommitStarted;
+        }finally {
+            groupCommitLock.unlock();
+        }
 
-            //move all from current longs to prev
-            //each segment requires write lock
-            for(int segment=0;segment<locks.length;segment++){
-                Lock lock = locks[segment].writeLock();
-                lock.lock();
-                try{
-                    flushWriteCacheSegment(segment);
+        boolean committed = false;
+        try{
+            commitGroup();
+            committed = true;
+        }finally {
+            groupCommitLock.lock();
+            try{
+                //if commit failed, waiting threads will retry
+                if(committed)
+                    groupCommitFinished = commitNum;
+                groupCommitRunning = false;
+                groupCommitDone.signalAll();
+            }finally {
+                groupCommitLock.unlock();
+            }
+        }
+    }
 
-                    long[] v = currLongLongs[segment].table;
-                    for(int i=0;i<v.length;i+=2){
-                        long offset = v[i];
-                        if(offset==0)
-                            continue;
-                        long value = v[i+1];
-                        prevLongLongs[segment].put(offset,value);
-                        walPutLong(offset,value);
-                    }
-                    currLongLongs[segment].clear();
+    /**
+     * Moves entries from current map into previous map.
+     * If previous map is empty (typically after checkpoint), maps are only swapped.
+     */
+    protected static void commitMoveToPrev(LongLongMap[] currMaps, LongLongMap[] prevMaps, int segment){
+        LongLongMap curr = currMaps[segment];
+        LongLongMap prev = prevMaps[segment];
+        if(prev.size()==0){
+            prevMaps[segment] = curr;
+            currMaps[segment] = prev;
+            return;
+        }
+        for(int i=0;i<curr.size();i++){
+            prev.put(curr.key(i), curr.value(i));
+        }
+        curr.clear();
+    }
 
-                    v = currDataLongs[segment].table;
-                    currDataLongs[segment].size=0;
-                    for(int i=0;i<v.length;i+=2){
-                        long offset = v[i];
-                        if(offset==0)
-                            continue;
-                        long value = v[i+1];
-                        prevDataLongs[segment].put(offset,value);
-                    }
-                    currDataLongs[segment].clear();
+    /** writes modified records and index values from single segment into WAL */
+    protected void commitSegment(int segment){
+        //serialize modified records outside of segment lock
+        WriteCacheFlush flush = flushWriteCachePrepare(segment);
+        Lock lock = locks[segment].writeLock();
+        lock.lock();
+        try{
+            flushWriteCacheSegment(segment, flush);
 
-                }finally {
-                    lock.unlock();
+            walPutLongs(currLongLongs[segment]);
+            commitMoveToPrev(currLongLongs, prevLongLongs, segment);
+            commitMoveToPrev(currDataLongs, prevDataLongs, segment);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /** runs {@link #commitSegment(int)} for all segments on worker pool and waits until they finish */
+    protected void commitSegmentsParallel(){
+        if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        if(commitExecutor==null){
+            commitExecutor = Executors.newFixedThreadPool(commitThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MapDB WAL commit #"+commitThreadCounter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        Future<?>[] futures = new Future[locks.length];
+        for(int segment=0;segment<locks.length;segment++){
+            final int segment2 = segment;
+            futures[segment] = commitExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    commitSegment(segment2);
+                }
+            });
+        }
+
+        //wait for all segments, commit can not continue while some are still being written
+        Throwable failure = null;
+        boolean interrupted = false;
+        for(int segment=0;segment<futures.length;segment++){
+            try {
+                futures[segment].get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                segment--; //wait again
+            } catch (ExecutionException e) {
+                if(failure==null)
+                    failure = e.getCause();
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if(failure instanceof Error)
+            throw (Error) failure;
+        if(failure!=null)
+            throw new DBException("WAL commit failed", failure);
+    }
+
+    /** writes changes made by all threads into WAL and syncs it */
+    protected void commitGroup() {
+        commitLock.lock();
+        try{
+            Throwable failure = checkpointFailure;
+            if(failure!=null)
+                throw new DBException("WAL checkpoint failed", failure);
+
+            //move all from current longs to prev
+            //segments write into WAL independently, they only share walOffset
+            int modified = 0;
+            for(int segment=0;segment<locks.length;segment++){
+                //size is only estimate, it is read without lock
+                modified += writeCache[segment].size + currLongLongs[segment].size();
+            }
+            if(commitThreads>1 && modified>=COMMIT_PARALLEL_MIN){
+                commitSegmentsParallel();
+            }else {
+                for (int segment = 0; segment < locks.length; segment++) {
+                    commitSegment(segment);
                 }
             }
+            int sealedFiles;
+            long sealedSize;
             structuralLock.lock();
             try {
                 //flush modified Long Stack Pages into WAL
@@ -614,206 +1075,551 @@ public class StoreWAL extends StoreCached {
 
                 // flush headVol into WAL
                 byte[] b = new byte[(int) HEAD_END-4];
-                //TODO use direct copy
                 headVol.getData(4, b, 0, b.length);
                 //put headVol into WAL
                 putDataSingleWithoutLink(-1, 4L, b, 0, b.length);
 
                 //make copy of current headVol
-                headVolBackup.putData(4, b, 0, b.length);
+                headVol.transferIntoOverlap(4, headVolBackup, 4, b.length);
                 indexPagesBackup = indexPages.clone();
 
                 long finalOffset = walOffset.get();
                 curVol.ensureAvailable(finalOffset+1); //TODO overlap here
                 //put EOF instruction
                 curVol.putUnsignedByte(finalOffset, (0<<5) | (Long.bitCount(finalOffset)));
-                curVol.sync();
+                if(commitSyncInterval==0) {
+                    //data must be on disk before seal is written
+                    curVol.sync();
+                }
                 //put wal seal
                 curVol.putLong(8, WAL_SEAL);
+                if(commitSyncInterval!=0) {
+                    //not synced yet, torn file is detected on replay by checksums
+                    commitSync(curVol, finalOffset+1);
+                }
+                walSealedSize += finalOffset+1;
 
                 walStartNextFile();
+                sealedFiles = fileNum - walFirstFile;
+                sealedSize = walSealedSize;
             } finally {
                 structuralLock.unlock();
             }
+
+            if(sealedFiles>=WAL_CHECKPOINT_FILES_BLOCK){
+                //background checkpoint fell behind, file numbers would overflow
+                walCheckpoint();
+            }else if(sealedFiles>=WAL_CHECKPOINT_FILES || sealedSize>=walCheckpointSize){
+                walCheckpointStart();
+            }
         }finally {
             commitLock.unlock();
         }
     }
 
-    private void commitFullWALReplay() {
+    /** wakes up background thread which copies sealed WAL files into main store, starts it if needed */
+    protected void walCheckpointStart(){
         if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
             throw new AssertionError();
-
-        //lock all segment locks
-        //TODO use series of try..finally statements, perhaps recursion with runnable
-
-        for(int i=0;i<locks.length;i++){
-            locks[i].writeLock().lock();
+        checkpointRequested = true;
+        if(checkpointThread==null){
+            Thread t = new Thread(checkpointRunnable, "MapDB WAL checkpoint #"+checkpointThreadCounter.incrementAndGet());
+            t.setDaemon(true);
+            checkpointThread = t;
+            t.start();
+        }else {
+            LockSupport.unpark(checkpointThread);
         }
-        try {
-            //flush entire write cache
-            for(int segment=0;segment<locks.length;segment++){
-                flushWriteCacheSegment(segment);
+    }
 
-                long[] v = currLongLongs[segment].table;
-                for(int i=0;i<v.length;i+=2){
-                    long offset = v[i];
-                    if(offset==0)
+    protected final Runnable checkpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    if(!checkpointRequested){
+                        LockSupport.park(StoreWAL.this);
                         continue;
-                    long value = v[i+1];
-                    walPutLong(offset,value);
-
-                    //remove from this
-                    v[i] = 0;
-                    v[i+1] = 0;
+                    }
+                    checkpointRequested = false;
+                    walCheckpoint();
                 }
-                currLongLongs[segment].clear();
-
-                if(CC.PARANOID && currLongLongs[segment].size()!=0)
-                    throw new AssertionError();
-
-                currDataLongs[segment].clear();
-                prevDataLongs[segment].clear();
-                prevLongLongs[segment].clear();
+            }catch(Throwable e){
+                if(closed)
+                    return; //store was closed while checkpoint was running
+                LOG.log(Level.SEVERE, "WAL checkpoint failed", e);
+                checkpointFailure = e;
             }
+        }
+    };
+
+    /**
+     * Copies sealed WAL files into main store and deletes them.
+     * Main store is not modified by commits, so it runs without segment locks and reads and writes
+     * continue in meantime. Segment locks are only taken for short time to remove replayed
+     * entries from WAL maps, after that the data are read from main store.
+     */
+    protected void walCheckpoint(){
+        checkpointLock.lock();
+        try{
+            if(closed)
+                return;
+            final int first;
+            final int last;
             structuralLock.lock();
-            try {
-                //flush modified Long Stack Pages into WAL
-                {
-                    long[] set = dirtyStackPages.set;
-                    for(int i=0;i<set.length;i++){
-                        long offset = set[i];
-                        if(offset==0)
-                            continue;;
-                        byte[] val = (byte[]) dirtyStackPages.values[i];
+            try{
+                first = walFirstFile;
+                last = fileNum;
+            }finally {
+                structuralLock.unlock();
+            }
+            if(first==last)
+                return; //no sealed files
 
-                        if (CC.PARANOID && offset < PAGE_SIZE)
-                            throw new AssertionError();
-                        if (CC.PARANOID && val.length % 16 != 0)
-                            throw new AssertionError();
-                        if (CC.PARANOID && val.length <= 0 || val.length > MAX_REC_SIZE)
-                            throw new AssertionError();
+            //copy sealed files into main store, single thread is enough in background
+            long replayedSize = walReplay(first, last, true, 1).walSize;
 
-                        putDataSingleWithoutLink(-1, offset, val, 0, val.length);
+            //remove entries which are already in main store
+            for(int segment=0;segment<locks.length;segment++){
+                Lock lock = locks[segment].writeLock();
+                lock.lock();
+                try{
+                    walCheckpointDataLongs(prevDataLongs[segment], first, last);
+                    walCheckpointDataLongs(currDataLongs[segment], first, last);
+
+                    LongLongMap prev = prevLongLongs[segment];
+                    LongLongMap prev2 = new LongLongMap();
+                    for(int i=0;i<prev.size();i++){
+                        long offset = prev.key(i);
+                        long value = prev.value(i);
+                        //value could be modified by newer commit, which was not replayed yet.
+                        //Newer commit might also rewrite record data at the same place,
+                        //so keep the value while its data are only in WAL
+                        if(realVol.getLong(offset)!=value ||
+                                ((value>>>48)!=0 && prevDataLongs[segment].get(value&MOFFSET)!=0))
+                            prev2.put(offset, value);
                     }
-                    dirtyStackPages.clear();
+                    prevLongLongs[segment] = prev2;
+                }finally {
+                    lock.unlock();
                 }
-                if(CC.PARANOID && dirtyStackPages.size!=0)
-                    throw new AssertionError();
-
-                pageLongStack.clear();
-
-                //update index checksum
-                headVol.putInt(HEAD_CHECKSUM, headChecksum(headVol));
-
-                // flush headVol into WAL
-                byte[] b = new byte[(int) HEAD_END-4];
-                //TODO use direct copy
-                headVol.getData(4, b, 0, b.length);
-                //put headVol into WAL
-                putDataSingleWithoutLink(-1, 4L, b, 0, b.length);
-
-                //make copy of current headVol
-                headVolBackup.putData(4, b, 0, b.length);
-                indexPagesBackup = indexPages.clone();
-
-                long finalOffset = walOffset.get();
-                curVol.ensureAvailable(finalOffset+1); //TODO overlap here
-                //put EOF instruction
-                curVol.putUnsignedByte(finalOffset, (0<<5) | (Long.bitCount(finalOffset)));
-                curVol.sync();
-                //put wal seal
-                curVol.putLong(8, WAL_SEAL);
-
-                //now replay full WAL
-                replayWAL();
+            }
 
-                walStartNextFile();
-            } finally {
+            Volume[] replayed = new Volume[last-first];
+            structuralLock.lock();
+            try{
+                walCheckpointDataLongs(pageLongStack, first, last);
+                for(int i=first;i<last;i++){
+                    replayed[i-first] = volumes.getAndSet(i&WAL_FILES_MASK, null);
+                }
+                walFirstFile = last;
+                walSealedSize -= replayedSize;
+            }finally {
                 structuralLock.unlock();
             }
-        }finally {
-            for(int i=locks.length-1;i>=0;i--){
-                locks[i].writeLock().unlock();
+
+            //delete or recycle files, oldest first, so there are no gaps after crash
+            for(int i=0;i<replayed.length;i++){
+                Volume wal = replayed[i];
+                commitSyncRemove(wal);
+                if(walRecycle(wal, first+i))
+                    continue;
+                wal.truncate(0);
+                wal.close();
+                wal.deleteFile();
             }
+        }finally {
+            checkpointLock.unlock();
         }
     }
 
+    /** removes entries which point to WAL files between `first` (inclusive) and `last` (exclusive) */
+    protected static void walCheckpointDataLongs(LongLongMap map, int first, int last){
+        long[] retained = null;
+        int retainedSize = 0;
+        for(int i=0;i<map.size();i++){
+            long offset = map.key(i);
+            long value = map.value(i);
+            int fileNum = (int) ((value >>> 32) & 0xFFFFL);
+            if(((fileNum-first)&WAL_FILES_MASK) < last-first)
+                continue;
+            if(retained==null)
+                retained = new long[map.size()*2];
+            retained[retainedSize++] = offset;
+            retained[retainedSize++] = value;
+        }
+        map.clear();
+        for(int i=0;i<retainedSize;i+=2){
+            map.put(retained[i], retained[i+1]);
+        }
+    }
 
+    /** replays all WAL files into main store and deletes them */
     protected void replayWAL(){
         if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
             throw new AssertionError();
         if(CC.PARANOID && !commitLock.isHeldByCurrentThread())
             throw new AssertionError();
 
-        file:for(Volume wal:volumes){
-            if(wal.isEmpty()) {
-                break file;
-            }
-            if(wal.getLong(8)!=WAL_SEAL) {
-                break file;
-                //TODO better handling for corrupted logs
-            }
-
-            long pos = 16;
-            for(;;) {
-                int checksum = wal.getUnsignedByte(pos++);
-                int instruction = checksum>>>5;
-                checksum = (checksum&WAL_CHECKSUM_MASK);
-                if (instruction == 0) {
-                    //EOF
-                    if((Long.bitCount(pos-1)&31) != checksum)
-                        throw new InternalError("WAL corrupted");
-                    continue file;
-                } else if (instruction == 1) {
-                    //write long
-                    long val = wal.getLong(pos);
-                    pos += 8;
-                    long offset = wal.getSixLong(pos);
-                    pos += 6;
-                    if(((1+Long.bitCount(val)+Long.bitCount(offset))&31)!=checksum)
-                        throw new InternalError("WAL corrupted");
-                    realVol.ensureAvailable(offset+8);
-                    realVol.putLong(offset, val);
-                } else if (instruction == 2) {
-                    //write byte[]
-                    int dataSize = wal.getUnsignedShort(pos);
-                    pos += 2;
-                    long offset = wal.getSixLong(pos);
-                    pos += 6;
-                    byte[] data = new byte[dataSize];
-                    wal.getData(pos, data, 0, data.length);
-                    pos += data.length;
-                    if(((1+Integer.bitCount(dataSize)+Long.bitCount(offset)+sum(data))&31)!=checksum)
-                        throw new InternalError("WAL corrupted");
-                    //TODO direct transfer
-                    realVol.ensureAvailable(offset+data.length);
-                    realVol.putData(offset, data, 0, data.length);
-                } else if (instruction == 3) {
-                    //skip N bytes
-                    int skipN = wal.getInt(pos - 1) & 0xFFFFFF; //read 3 bytes
-                    if((Integer.bitCount(skipN)&31) != checksum)
-                        throw new InternalError("WAL corrupted");
-                    pos += 3 + skipN;
-                } else if (instruction == 4) {
-                    //skip single byte
-                    if((Long.bitCount(pos-1)&31) != checksum)
-                        throw new InternalError("WAL corrupted");
-                }
-            }
-        }
-
-        realVol.sync();
+        walReplay(walFirstFile, fileNum+1, false, Runtime.getRuntime().availableProcessors());
 
         //destroy old wal files
-        for(Volume wal:volumes){
+        for(int i=walFirstFile;i<=fileNum;i++){
+            Volume wal = volumes.getAndSet(i&WAL_FILES_MASK, null);
+            if(wal==null)
+                continue;
+            commitSyncRemove(wal);
             wal.truncate(0);
             wal.close();
             wal.deleteFile();
         }
         fileNum = -1;
+        walFirstFile = 0;
+        walSealedSize = 0;
         curVol = null;
-        volumes.clear();
+        for(int segment=0;segment<locks.length;segment++){
+            prevLongLongs[segment].clear();
+            prevDataLongs[segment].clear();
+        }
+        pageLongStack.clear();
+    }
+
+    /** progress and timing of WAL replay, it is logged when store is recovered after crash */
+    public static final class WALReplayReport{
+        /** number of replayed WAL files */
+        public int files;
+        /** total size of replayed WAL files */
+        public long walSize;
+        /** number of write instructions found in WAL */
+        public long writes;
+        /** number of writes which were not applied, because newer write replaced them */
+        public long superseded;
+        /** number of modified pages in main store */
+        public int pages;
+        public int threads;
+        public long scanTime;
+        public long applyTime;
+        public long syncTime;
+
+        @Override
+        public String toString() {
+            return "WAL replay: " + files + " files, " + walSize + " bytes, " +
+                    writes + " writes, " + superseded + " superseded, " +
+                    pages + " pages, " + threads + " threads, " +
+                    "scan " + scanTime + " ms, apply " + applyTime + " ms, sync " + syncTime + " ms";
+        }
+    }
+
+    /** WAL writes into single page of main store, in order they were found in WAL */
+    protected static final class WALReplayPage{
+
+        protected static final long ENTRY_LONG = -1;
+        protected static final long ENTRY_SUPERSEDED = -2;
+
+        protected final long pageOffset;
+
+        /**
+         * triples of offset in main store, value (or file and position in WAL) and size.
+         * Size is {@link #ENTRY_LONG} for index values.
+         */
+        protected long[] entries = new long[3*8];
+        protected int size = 0;
+
+        protected boolean indexModified = false;
+
+        /** maps offset in main store to position of last write in `entries` plus one */
+        protected final LongLongMap lastWrite = new LongLongMap();
+
+        protected WALReplayPage(long pageOffset) {
+            this.pageOffset = pageOffset;
+        }
+
+        /** adds new write, older write at the same offset is superseded if it is not larger */
+        protected void add(long offset, long value, long entrySize, WALReplayReport report){
+            long prev = lastWrite.get(offset);
+            if(prev!=0){
+                int pos = (int) (prev-1);
+                long prevSize = entries[pos+2];
+                if(prevSize!=ENTRY_SUPERSEDED &&
+                        (entrySize==ENTRY_LONG?8:entrySize) >= (prevSize==ENTRY_LONG?8:prevSize)){
+                    entries[pos+2] = ENTRY_SUPERSEDED;
+                    report.superseded++;
+                }
+            }
+            if(size==entries.length){
+                entries = Arrays.copyOf(entries, entries.length*2);
+            }
+            entries[size] = offset;
+            entries[size+1] = value;
+            entries[size+2] = entrySize;
+            lastWrite.put(offset, size+1);
+            size+=3;
+            if(entrySize==ENTRY_LONG)
+                indexModified = true;
+        }
+    }
+
+    /**
+     * Copies content of WAL files between `first` (inclusive) and `last` (exclusive) into main store.
+     * Each file is scanned once to find final content of modified pages in main store,
+     * pages are written in parallel and each page gets writes in the same order they are in WAL.
+     * <p>
+     * If `updateCrc` is true, index page checksums are updated together with index values,
+     * so concurrent readers always see consistent page. Otherwise checksums of modified pages are recalculated.
+     */
+    protected WALReplayReport walReplay(int first, int last, final boolean updateCrc, int threads){
+        final WALReplayReport report = new WALReplayReport();
+        long time = System.currentTimeMillis();
+
+        LongObjectMap<WALReplayPage> pages = new LongObjectMap<WALReplayPage>();
+        long storeEnd = 0;
+        for(int i=first;i<last;i++){
+            Volume wal = volumes.get(i&WAL_FILES_MASK);
+            long end = walScanFile(i&WAL_FILES_MASK, wal, pages, report);
+            if(end<0)
+                break;
+            storeEnd = Math.max(storeEnd, end);
+            if(LOG.isLoggable(Level.FINE))
+                LOG.log(Level.FINE, "WAL replay scanned file {0} of {1}", new Object[]{i-first+1, last-first});
+        }
+        long time2 = System.currentTimeMillis();
+        report.scanTime = time2-time;
+
+        realVol.ensureAvailable(storeEnd);
+        final boolean crc = (realVol.getLong(FORMAT_FEATURES) & FEATURE_INDEX_CRC)!=0;
+        final WALReplayPage[] toApply = new WALReplayPage[pages.size];
+        for(int i=0, j=0;i<pages.set.length;i++){
+            if(pages.set[i]!=0)
+                toApply[j++] = (WALReplayPage) pages.values[i];
+        }
+        pages = null;
+        report.pages = toApply.length;
+        report.threads = Math.max(1, Math.min(threads, toApply.length/WAL_REPLAY_PAGES_PER_THREAD));
+
+        if(report.threads==1){
+            for(WALReplayPage page:toApply){
+                walReplayPage(page, crc, updateCrc);
+            }
+        }else{
+            ExecutorService exec = Executors.newFixedThreadPool(report.threads);
+            try{
+                List<Future<?>> futures = new ArrayList<Future<?>>(toApply.length);
+                for(final WALReplayPage page:toApply){
+                    futures.add(exec.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            walReplayPage(page, crc, updateCrc);
+                        }
+                    }));
+                }
+                for(Future<?> f:futures){
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                throw new DBException("Interrupted while replaying WAL", e);
+            } catch (ExecutionException e) {
+                throw new DBException("WAL replay failed", e.getCause());
+            }finally {
+                exec.shutdownNow();
+            }
+        }
+        long time3 = System.currentTimeMillis();
+        report.applyTime = time3-time2;
+
+        realVol.sync();
+        report.syncTime = System.currentTimeMillis()-time3;
+        walReplayLast = report;
+        return report;
+    }
+
+    /**
+     * Scans single WAL file and adds its writes into `pages`.
+     * Writes are only added after entire file was verified.
+     *
+     * @return end of area modified in main store, or -1 if file is empty, was not sealed or is corrupted
+     */
+    protected long walScanFile(int fileSlot, Volume wal, LongObjectMap<WALReplayPage> pages, WALReplayReport report){
+        if(wal.isEmpty()) {
+            return -1;
+        }
+        if(wal.getLong(8)!=WAL_SEAL) {
+            return -1;
+            //TODO better handling for corrupted logs
+        }
+
+        //triples of offset, value and size, same as in WALReplayPage
+        long[] writes = new long[3*64];
+        int writesSize = 0;
+        //data are only read for checksum, buffer is reused
+        byte[] data = new byte[256];
+        long storeEnd = 0;
+        long pos = 16;
+        for(;;) {
+            if(writesSize==writes.length)
+                writes = Arrays.copyOf(writes, writes.length*2);
+            int checksum = wal.getUnsignedByte(pos++);
+            int instruction = checksum>>>5;
+            checksum = (checksum&WAL_CHECKSUM_MASK);
+            if (instruction == 0) {
+                //EOF
+                if((Long.bitCount(pos-1)&31) != checksum)
+                    return walCorrupted(fileSlot);
+                break;
+            } else if (instruction == 1) {
+                //write long
+                long val = wal.getLong(pos);
+                pos += 8;
+                long offset = wal.getSixLong(pos);
+                pos += 6;
+                if(((1+Long.bitCount(val)+Long.bitCount(offset))&31)!=checksum)
+                    return walCorrupted(fileSlot);
+                writes[writesSize++] = offset;
+                writes[writesSize++] = val;
+                writes[writesSize++] = WALReplayPage.ENTRY_LONG;
+                storeEnd = Math.max(storeEnd, offset+8);
+            } else if (instruction == 2) {
+                //write byte[]
+                int dataSize = wal.getUnsignedShort(pos);
+                pos += 2;
+                long offset = wal.getSixLong(pos);
+                pos += 6;
+                if(data.length<dataSize)
+                    data = new byte[Math.max(dataSize, data.length*2)];
+                wal.getData(pos, data, 0, dataSize);
+                if(((1+Integer.bitCount(dataSize)+Long.bitCount(offset)+sum(data,0,dataSize))&31)!=checksum)
+                    return walCorrupted(fileSlot);
+                if(CC.PARANOID && (offset&PAGE_MASK_INVERSE)!=((offset+dataSize-1)&PAGE_MASK_INVERSE))
+                    throw new AssertionError("data cross page boundary");
+                writes[writesSize++] = offset;
+                writes[writesSize++] = ((long)fileSlot)<<32 | pos;
+                writes[writesSize++] = dataSize;
+                pos += dataSize;
+                storeEnd = Math.max(storeEnd, offset+dataSize);
+            } else if (instruction == 5) {
+                //write compressed byte[]
+                int dataSize = wal.getUnsignedShort(pos);
+                pos += 2;
+                long offset = wal.getSixLong(pos);
+                pos += 6;
+                int compSize = wal.getUnsignedShort(pos);
+                if(data.length<compSize)
+                    data = new byte[Math.max(compSize, data.length*2)];
+                wal.getData(pos+2, data, 0, compSize);
+                if(((1+Integer.bitCount(dataSize)+Integer.bitCount(compSize)+Long.bitCount(offset)+sum(data,0,compSize))&31)!=checksum)
+                    return walCorrupted(fileSlot);
+                if(CC.PARANOID && (offset&PAGE_MASK_INVERSE)!=((offset+dataSize-1)&PAGE_MASK_INVERSE))
+                    throw new AssertionError("data cross page boundary");
+                writes[writesSize++] = offset;
+                writes[writesSize++] = ((long)fileSlot)<<32 | WAL_COMPRESSED | pos;
+                writes[writesSize++] = dataSize;
+                pos += 2+compSize;
+                storeEnd = Math.max(storeEnd, offset+dataSize);
+            } else if (instruction == 3) {
+                //skip N bytes
+                int skipN = wal.getInt(pos - 1) & 0xFFFFFF; //read 3 bytes
+                if((Integer.bitCount(skipN)&31) != checksum)
+                    return walCorrupted(fileSlot);
+                pos += 3 + skipN;
+            } else if (instruction == 4) {
+                //skip single byte
+                if((Long.bitCount(pos-1)&31) != checksum)
+                    return walCorrupted(fileSlot);
+            } else {
+                return walCorrupted(fileSlot);
+            }
+        }
+
+        for(int i=0;i<writesSize;i+=3){
+            walReplayPageGet(pages, writes[i]).add(writes[i], writes[i+1], writes[i+2], report);
+        }
+        report.writes += writesSize/3;
+        report.files++;
+        report.walSize+=pos;
+        return storeEnd;
+    }
+
+    /**
+     * Handles WAL file with broken checksum. If commits are synced, this is data corruption.
+     * Otherwise file was not synced before crash, and replay ends at this file.
+     */
+    protected long walCorrupted(int fileSlot){
+        if(commitSyncInterval==0)
+            throw new InternalError("WAL corrupted");
+        LOG.warning("WAL file was not synced before crash, replay stops at this file, slot "+fileSlot);
+        return -1;
+    }
+
+    protected static WALReplayPage walReplayPageGet(LongObjectMap<WALReplayPage> pages, long offset){
+        long pageOffset = offset&PAGE_MASK_INVERSE;
+        //zero key is not allowed
+        WALReplayPage page = pages.get(pageOffset+1);
+        if(page==null){
+            page = new WALReplayPage(pageOffset);
+            pages.put(pageOffset+1, page);
+        }
+        return page;
+    }
+
+    /** applies writes into single page of main store */
+    protected void walReplayPage(WALReplayPage page, boolean crc, boolean updateCrc){
+        long crcOffset = page.pageOffset+PAGE_SIZE-8;
+        long[] entries = page.entries;
+        byte[] data = null;
+        for(int i=0;i<page.size;i+=3){
+            long offset = entries[i];
+            long val = entries[i+1];
+            long size = entries[i+2];
+            if(size==WALReplayPage.ENTRY_SUPERSEDED)
+                continue;
+            if(size==WALReplayPage.ENTRY_LONG){
+                if(crc && updateCrc){
+                    walReplayIndexLong(offset, val, crcOffset);
+                }else {
+                    realVol.putLong(offset, val);
+                }
+            }else{
+                Volume wal = volumes.get((int) (val>>>32));
+                if((val&WAL_COMPRESSED)!=0){
+                    if(data==null || data.length<size)
+                        data = new byte[(int) size];
+                    walDecompress(wal, val&0x7FFFFFFFL, data, (int) size);
+                    realVol.putData(offset, data, 0, (int) size);
+                    continue;
+                }
+                if(size>=WAL_REPLAY_TRANSFER_MIN){
+                    wal.transferIntoOverlap(val&0xFFFFFFFFL, realVol, offset, size);
+                    continue;
+                }
+                if(data==null || data.length<size)
+                    data = new byte[(int) size];
+                wal.getData(val&0xFFFFFFFFL, data, 0, (int) size);
+                realVol.putData(offset, data, 0, (int) size);
+            }
+        }
+
+        if(crc && !updateCrc && page.indexModified){
+            //checksums in WAL are not maintained, recalculate them for replayed pages
+            realVol.putLong(crcOffset, indexPageCrcCompute(realVol, page.pageOffset));
+        }
+    }
+
+    /** puts index value into main store and updates checksum of its page */
+    protected void walReplayIndexLong(long offset, long val, long crcOffset) {
+        indexCrcLock.lock();
+        try{
+            if(offset==crcOffset){
+                //checksum of new index page, calculate it from page content
+                realVol.putLong(offset, indexPageCrcCompute(realVol, crcOffset-PAGE_SIZE+8));
+                return;
+            }
+            long crc = realVol.getLong(crcOffset);
+            crc -= realVol.getLong(offset);
+            crc += val;
+            realVol.putLong(crcOffset, crc);
+            realVol.putLong(offset, val);
+        }finally {
+            indexCrcLock.unlock();
+        }
     }
 
     private int sum(byte[] data) {
@@ -839,6 +1645,76 @@ public class StoreWAL extends StoreCached {
         return true;
     }
 
+    /**
+     * Compacts store. WAL is replayed into main store first, then live records are copied
+     * into new store file by {@link StoreDirect#compact()}.
+     * <p>
+     * Uncommitted changes refer to space in old store file, so they must be committed or rolled back first.
+     * Unlike {@link StoreDirect} compaction blocks readers and writers until it finishes.
+     */
+    @Override
+    public void compact() {
+        if(readonly)
+            throw new UnsupportedOperationException("Read-only");
+
+        commitLock.lock();
+        try{
+            checkpointLock.lock();
+            try{
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i].writeLock().lock();
+                }
+                try {
+                    structuralLock.lock();
+                    try {
+                        if (walDirty())
+                            throw new IllegalAccessError("WAL not empty; commit first, than compact");
+                        //copy all committed data into main store
+                        replayWAL();
+                        walStartNextFile();
+                    } finally {
+                        structuralLock.unlock();
+                    }
+
+                    //main volume is only modified by WAL replay and compaction
+                    vol = realVol;
+                    try {
+                        super.compact();
+                    } finally {
+                        realVol = vol;
+                        vol = new Volume.ReadOnly(vol);
+                        indexPagesBackup = indexPages.clone();
+                    }
+                } finally {
+                    for (int i = locks.length - 1; i >= 0; i--) {
+                        locks[i].writeLock().unlock();
+                    }
+                }
+            }finally {
+                checkpointLock.unlock();
+            }
+        }finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** returns true if there are uncommitted changes */
+    protected boolean walDirty() {
+        if(CC.PARANOID && !structuralLock.isHeldByCurrentThread())
+            throw new AssertionError();
+        for(int segment=0;segment<locks.length;segment++){
+            if(writeCache[segment].size>0 || currLongLongs[segment].size()>0 || currDataLongs[segment].size()>0)
+                return true;
+        }
+        if(dirtyStackPages.size>0)
+            return true;
+        for(long offset=8;offset<HEAD_END;offset+=8){
+            if(headVol.getLong(offset)!=headVolBackup.getLong(offset))
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public void close() {
         commitLock.lock();
@@ -848,20 +1724,37 @@ public class StoreWAL extends StoreCached {
 
             closed = true;
 
+            Thread t = checkpointThread;
+            if(t!=null)
+                LockSupport.unpark(t);
+            if(commitExecutor!=null)
+                commitExecutor.shutdown();
+
             //TODO do not replay if not dirty
-            if(!readonly) {
-                structuralLock.lock();
-                try {
-                    replayWAL();
-                } finally {
-                    structuralLock.unlock();
+            checkpointLock.lock();
+            try {
+                if (!readonly) {
+                    structuralLock.lock();
+                    try {
+                        replayWAL();
+                    } finally {
+                        structuralLock.unlock();
+                    }
                 }
-            }
+                commitSyncClose();
 
-            for(Volume v:volumes){
-                v.close();
+                for (int i = 0; i < volumes.length(); i++) {
+                    Volume v = volumes.getAndSet(i, null);
+                    if (v != null)
+                        v.close();
+                }
+                //recycled files are only kept while store is open
+                for(File f=walRecycled.poll(); f!=null; f=walRecycled.poll()){
+                    f.delete();
+                }
+            }finally {
+                checkpointLock.unlock();
             }
-            volumes.clear();
 
             headVol = null;
             headVolBackup = null;
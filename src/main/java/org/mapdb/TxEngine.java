@@ -90,6 +90,10 @@ public class TxEngine implements Engine {
             return engine;
         if(engine instanceof TxEngine)
             return ((TxEngine)engine).snapshot();
+        if(engine instanceof Store && engine.canSnapshot())
+            return engine.snapshot();
+        if(engine instanceof AsyncWriteEngine)
+            throw new UnsupportedOperationException("Snapshots are not supported by AsyncWriteEngine, use DBMaker.snapshotEnable()");
         if(engine.getWrappedEngine()!=null)
             return createSnapshotFor(engine.getWrappedEngine());
         throw new UnsupportedOperationException("Snapshots are not enabled, use DBMaker.snapshotEnable()");
@@ -267,6 +271,106 @@ public class TxEngine implements Engine {
         }
     }
 
+    @Override
+    public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+        commitLock.readLock().lock();
+        try {
+            return engine.getAll(recids, serializer);
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+        commitLock.readLock().lock();
+        try {
+            uncommitedData = true;
+            long[] recids = engine.putAll(values, serializer);
+            boolean[] segments = lockAll(recids);
+            try{
+                for(Reference<Tx> txr:txs){
+                    Tx tx = txr.get();
+                    if(tx==null) continue;
+                    for(long recid:recids)
+                        tx.old.putIfAbsent(recid,TOMBSTONE);
+                }
+            }finally {
+                unlockAll(segments);
+            }
+
+            return recids;
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+        commitLock.readLock().lock();
+        try {
+            uncommitedData = true;
+            boolean[] segments = lockAll(recids);
+            try{
+                Object[] old = engine.getAll(recids, serializer);
+                for(Reference<Tx> txr:txs){
+                    Tx tx = txr.get();
+                    if(tx==null) continue;
+                    for(int i=0;i<recids.length;i++)
+                        tx.old.putIfAbsent(recids[i],old[i]);
+                }
+                engine.updateAll(recids, values, serializer);
+            }finally {
+                unlockAll(segments);
+            }
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+        commitLock.readLock().lock();
+        try {
+            uncommitedData = true;
+            boolean[] segments = lockAll(recids);
+            try{
+                Object[] old = engine.getAll(recids, serializer);
+                for(Reference<Tx> txr:txs){
+                    Tx tx = txr.get();
+                    if(tx==null) continue;
+                    for(int i=0;i<recids.length;i++)
+                        tx.old.putIfAbsent(recids[i],old[i]);
+                }
+                engine.deleteAll(recids, serializer);
+            }finally {
+                unlockAll(segments);
+            }
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    /** write-locks segments of all recids, in ascending order to prevent deadlocks */
+    protected boolean[] lockAll(long[] recids){
+        boolean[] segments = new boolean[lockScale];
+        for(long recid:recids){
+            segments[lockPos(recid)] = true;
+        }
+        for(int i=0;i<segments.length;i++){
+            if(segments[i])
+                locks[i].writeLock().lock();
+        }
+        return segments;
+    }
+
+    protected void unlockAll(boolean[] segments){
+        for(int i=segments.length-1;i>=0;i--){
+            if(segments[i])
+                locks[i].writeLock().unlock();
+        }
+    }
+
     @Override
     public void close() {
         commitLock.writeLock().lock();
@@ -475,6 +579,40 @@ public class TxEngine implements Engine {
 
         }
 
+        @Override
+        public <A> Object[] getAll(long[] recids, Serializer<A> serializer) {
+            Object[] ret = new Object[recids.length];
+            for(int i=0;i<recids.length;i++){
+                ret[i] = get(recids[i],serializer);
+            }
+            return ret;
+        }
+
+        @Override
+        public <A> long[] putAll(A[] values, Serializer<A> serializer) {
+            long[] ret = new long[values.length];
+            for(int i=0;i<values.length;i++){
+                ret[i] = put(values[i],serializer);
+            }
+            return ret;
+        }
+
+        @Override
+        public <A> void updateAll(long[] recids, A[] values, Serializer<A> serializer) {
+            if(recids.length!=values.length)
+                throw new IllegalArgumentException("recids and values have different length");
+            for(int i=0;i<recids.length;i++){
+                update(recids[i],values[i],serializer);
+            }
+        }
+
+        @Override
+        public <A> void deleteAll(long[] recids, Serializer<A> serializer) {
+            for(long recid:recids){
+                delete(recid,serializer);
+            }
+        }
+
         @Override
         public void close() {
             closed = true;
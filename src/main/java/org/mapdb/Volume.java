@@ -222,6 +222,42 @@ public abstract class Volume implements Closeable{
         target.putData(targetOffset,data,0,size);
     }
 
+    /** maximal size of single chunk in {@link #transferIntoOverlap(long, Volume, long, long)} */
+    protected static final int TRANSFER_CHUNK = 1024*1024;
+
+    /**
+     * Transfers data from this Volume into target volume.
+     * Unlike {@link #transferInto(long, Volume, long, int)} transferred area can cross slice boundaries
+     * in both volumes. It is split into chunks, each chunk is copied by {@code transferInto()},
+     * so direct memory or file transfer is used where the implementation supports it.
+     *
+     * Target volume must have enough space allocated.
+     *
+     * @param inputOffset offset inside this Volume, ie data will be read from this offset
+     * @param target Volume to copy data into
+     * @param targetOffset position in target volume where data will be copied into
+     * @param size size of data to copy
+     */
+    public void transferIntoOverlap(long inputOffset, Volume target, long targetOffset, long size){
+        while(size>0){
+            int chunk = (int) Math.min(size, TRANSFER_CHUNK);
+            chunk = sliceRemaining(this, inputOffset, chunk);
+            chunk = sliceRemaining(target, targetOffset, chunk);
+            transferInto(inputOffset, target, targetOffset, chunk);
+            inputOffset+=chunk;
+            targetOffset+=chunk;
+            size-=chunk;
+        }
+    }
+
+    /** returns how many bytes (up to {@code len}) can be accessed from offset without crossing slice boundary */
+    protected static int sliceRemaining(Volume vol, long offset, int len){
+        int sliceSize = vol.sliceSize();
+        if(sliceSize<=0)
+            return len; //volume is not divided into slices
+        return (int) Math.min(len, sliceSize - (offset & (sliceSize-1)));
+    }
+
 
     public static Volume volumeForFile(File f, boolean useRandomAccessFile, boolean readOnly,  int sliceShift, int sizeIncrement) {
         return useRandomAccessFile ?
@@ -824,6 +860,8 @@ public abstract class Volume implements Closeable{
 
         protected volatile long size;
         protected final Object growLock = new Object();
+        /** guards channel position, it is used as write position by {@code transferTo()} */
+        protected final Object positionLock = new Object();
 
         public FileChannelVol(File file, boolean readOnly, int sliceShift, int sizeIncrement){
             this.file = file;
@@ -1007,6 +1045,47 @@ public abstract class Volume implements Closeable{
             }
         }
 
+        @Override
+        public void transferInto(long inputOffset, Volume target, long targetOffset, int size) {
+            try{
+                if(target instanceof FileChannelVol) {
+                    //data are copied by OS, they do not pass through java heap
+                    FileChannelVol target2 = (FileChannelVol) target;
+                    synchronized (target2.positionLock) {
+                        target2.channel.position(targetOffset);
+                        while (size > 0) {
+                            long written = channel.transferTo(inputOffset, size, target2.channel);
+                            if (written <= 0)
+                                throw new EOFException();
+                            inputOffset += written;
+                            size -= written;
+                        }
+                    }
+                }else if(target instanceof ByteBufferVol && !((ByteBufferVol) target).readOnly){
+                    //read directly into target buffer
+                    ByteBufferVol target2 = (ByteBufferVol) target;
+                    ByteBuffer b = target2.slices[(int) (targetOffset >>> target2.sliceShift)].duplicate();
+                    int bufPos = (int) (targetOffset & target2.sliceSizeModMask);
+                    b.limit(bufPos+size);
+                    b.position(bufPos);
+                    while(b.hasRemaining()){
+                        int read = channel.read(b, inputOffset);
+                        if(read<0)
+                            throw new EOFException();
+                        inputOffset+=read;
+                    }
+                }else{
+                    super.transferInto(inputOffset, target, targetOffset, size);
+                }
+            }catch(ClosedByInterruptException e){
+                throw new DBException.VolumeClosedByInterrupt(e);
+            }catch(ClosedChannelException e){
+                throw new DBException.VolumeClosed(e);
+            } catch (IOException e) {
+                throw new DBException.VolumeIOError(e);
+            }
+        }
+
         @Override
         public long getLong(long offset) {
             try{
@@ -1172,17 +1251,8 @@ public abstract class Volume implements Closeable{
 
     /** transfer data from one volume to second. Second volume will be expanded if needed*/
     public static void volumeTransfer(long size, Volume from, Volume to){
-        int bufSize = Math.min(from.sliceSize(),to.sliceSize());
-
-        if(bufSize<0 || bufSize>1024*1024*128){
-            bufSize = 64 * 1024; //something strange, set safe limit
-        }
         to.ensureAvailable(size);
-
-        for(long offset=0;offset<size;offset+=bufSize){
-            int bb = (int) Math.min(bufSize, size-offset);
-            from.transferInto(offset,to,offset,bb);
-        }
+        from.transferIntoOverlap(0, to, 0, size);
     }
 
 
@@ -1855,10 +1925,13 @@ public abstract class Volume implements Closeable{
 
         @Override
         public synchronized void putData(long offset, ByteBuffer buf) {
-            byte[] bb = buf.array();
-            int pos = buf.position();
-            int size = buf.limit()-pos;
-            if(bb==null) {
+            int size = buf.limit()-buf.position();
+            byte[] bb;
+            int pos;
+            if(buf.hasArray()){
+                bb = buf.array();
+                pos = buf.arrayOffset()+buf.position();
+            }else{
                 bb = new byte[size];
                 buf.get(bb);
                 pos = 0;
@@ -2057,6 +2130,17 @@ public abstract class Volume implements Closeable{
             }
         }
 
+        static void copyMemory(long srcAddr, long dstAddr, long length)
+        {
+            while (length > 0) {
+                long size = (length > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : length;
+                UNSAFE.copyMemory(srcAddr, dstAddr, size);
+                length -= size;
+                srcAddr += size;
+                dstAddr += size;
+            }
+        }
+
 
 
         protected volatile long[] addresses= new long[0];
@@ -2192,10 +2276,48 @@ public abstract class Volume implements Closeable{
             final long address = addresses[((int) (offset >>> sliceShift))];
             offset = offset & sliceSizeModMask;
 
-            for(int pos=buf.position();pos<buf.limit();pos++){
-                UNSAFE.putByte(address + offset + pos, buf.get(pos));
+            if(buf instanceof sun.nio.ch.DirectBuffer){
+                copyMemory(((sun.nio.ch.DirectBuffer) buf).address()+buf.position(), address+offset, buf.remaining());
+            }else if(buf.hasArray()){
+                copyFromArray(buf.array(), buf.arrayOffset()+buf.position(), address+offset, buf.remaining());
+            }else {
+                int start = buf.position();
+                for (int pos = start; pos < buf.limit(); pos++) {
+                    UNSAFE.putByte(address + offset + pos - start, buf.get(pos));
+                }
             }
+        }
 
+        @Override
+        public void transferInto(long inputOffset, Volume target, long targetOffset, int size) {
+            final long address = addresses[((int) (inputOffset >>> sliceShift))] + (inputOffset & sliceSizeModMask);
+            if(target instanceof UnsafeVolume){
+                UnsafeVolume target2 = (UnsafeVolume) target;
+                long targetAddress = target2.addresses[((int) (targetOffset >>> target2.sliceShift))]
+                        + (targetOffset & target2.sliceSizeModMask);
+                copyMemory(address, targetAddress, size);
+                return;
+            }
+            if(target instanceof ByteBufferVol && !((ByteBufferVol) target).readOnly){
+                ByteBufferVol target2 = (ByteBufferVol) target;
+                ByteBuffer b = target2.slices[(int) (targetOffset >>> target2.sliceShift)];
+                int bufPos = (int) (targetOffset & target2.sliceSizeModMask);
+                if(b instanceof sun.nio.ch.DirectBuffer){
+                    copyMemory(address, ((sun.nio.ch.DirectBuffer) b).address()+bufPos, size);
+                    return;
+                }
+                if(b.hasArray()){
+                    copyToArray(address, b.array(), b.arrayOffset()+bufPos, size);
+                    return;
+                }
+            }
+            if(target instanceof ByteArrayVol){
+                ByteArrayVol target2 = (ByteArrayVol) target;
+                byte[] b = target2.slices[(int) (targetOffset >>> target2.sliceShift)];
+                copyToArray(address, b, targetOffset & target2.sliceSizeModMask, size);
+                return;
+            }
+            super.transferInto(inputOffset, target, targetOffset, size);
         }
 
         @Override
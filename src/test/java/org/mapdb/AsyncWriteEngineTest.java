@@ -1,15 +1,17 @@
 package org.mapdb;
 
-import org.junit.After;
-import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
@@ -17,44 +19,36 @@ import static org.junit.Assert.*;
 /**
 * @author Jan Kotek
 */
-/*
-@SuppressWarnings({ "unchecked", "rawtypes" })
-public class AsyncWriteEngineTest{
-
-    File index = UtilsTest.tempDbFile();
-    AsyncWriteEngine engine;
-
-    @Before public void reopenStore() throws IOException {
-        assertNotNull(index);
-        if(engine !=null)
-           engine.close();
-        engine =  new AsyncWriteEngine(
-                DBMaker.newFileDB(index).transactionDisable().cacheDisable().makeEngine()
-        );
-    }
+@SuppressWarnings({"rawtypes","unchecked"})
+public class AsyncWriteEngineTest extends EngineTest<AsyncWriteEngine>{
+
+    File f = UtilsTest.tempDbFile();
 
-    @After
-    public void close(){
-        engine.close();
+    @Override protected AsyncWriteEngine openEngine() {
+        StoreDirect s = new StoreDirect(f.getPath());
+        s.init();
+        return new AsyncWriteEngine(s);
     }
 
+    @Override boolean canRollback(){return false;}
+
 
     @Test(timeout = 1000000)
-    public void write_fetch_update_delete() throws IOException {
-        long recid = engine.put("aaa", Serializer.STRING_NOSIZE);
-        assertEquals("aaa", engine.get(recid, Serializer.STRING_NOSIZE));
-        reopenStore();
-        assertEquals("aaa", engine.get(recid, Serializer.STRING_NOSIZE));
-        engine.update(recid, "bbb", Serializer.STRING_NOSIZE);
-        assertEquals("bbb", engine.get(recid, Serializer.STRING_NOSIZE));
-        reopenStore();
-        assertEquals("bbb", engine.get(recid, Serializer.STRING_NOSIZE));
+    public void write_fetch_update_delete() {
+        long recid = e.put("aaa", Serializer.STRING_NOSIZE);
+        assertEquals("aaa", e.get(recid, Serializer.STRING_NOSIZE));
+        reopen();
+        assertEquals("aaa", e.get(recid, Serializer.STRING_NOSIZE));
+        e.update(recid, "bbb", Serializer.STRING_NOSIZE);
+        assertEquals("bbb", e.get(recid, Serializer.STRING_NOSIZE));
+        reopen();
+        assertEquals("bbb", e.get(recid, Serializer.STRING_NOSIZE));
 
     }
 
 
     @Test(timeout = 0xFFFF)
-     public void concurrent_updates_test() throws InterruptedException, IOException {
+     public void concurrent_updates_test() throws InterruptedException {
         final int threadNum = 16;
         final int updates = 1000;
         final CountDownLatch latch = new CountDownLatch(threadNum);
@@ -64,12 +58,12 @@ public class AsyncWriteEngineTest{
             final int num = i;
             new Thread(new Runnable() {
                 @Override public void run() {
-                    long recid = engine.put("START-", Serializer.STRING_NOSIZE);
+                    long recid = e.put("START-", Serializer.STRING_NOSIZE);
                     recids.put(num, recid);
                     for(int i = 0;i<updates; i++){
-                        String str= engine.get(recid, Serializer.STRING_NOSIZE);
+                        String str= e.get(recid, Serializer.STRING_NOSIZE);
                         str +=num+",";
-                        engine.update(recid, str, Serializer.STRING_NOSIZE);
+                        e.update(recid, str, Serializer.STRING_NOSIZE);
                     }
                     latch.countDown();
                 }
@@ -78,7 +72,7 @@ public class AsyncWriteEngineTest{
 
         latch.await();
 
-        reopenStore();
+        reopen();
 
         assertEquals(recids.size(),threadNum);
         for(int i = 0;i<threadNum; i++){
@@ -88,13 +82,14 @@ public class AsyncWriteEngineTest{
             for(int j=0;j<updates;j++)
                 expectedStr +=i+",";
 
-            String v = engine.get(recid, Serializer.STRING_NOSIZE);
+            String v = e.get(recid, Serializer.STRING_NOSIZE);
             assertEquals(expectedStr, v);
         }
     }
 
     @Test(timeout = 1000000)
     public void async_commit(){
+        File index = UtilsTest.tempDbFile();
         final AtomicLong putCounter = new AtomicLong();
         StoreWAL t = new StoreWAL(index.getPath()){
             @Override
@@ -110,6 +105,7 @@ public class AsyncWriteEngineTest{
             }
 
         };
+        t.init();
         AsyncWriteEngine a = new AsyncWriteEngine(t);
         byte[] b = new byte[124];
 
@@ -136,5 +132,132 @@ public class AsyncWriteEngineTest{
         a.close();
     }
 
+    @Test public void write_behind(){
+        AsyncWriteEngine a = new AsyncWriteEngine(new StoreHeap(true, CC.DEFAULT_LOCK_SCALE, 0),
+                CC.DEFAULT_LOCK_SCALE, 100000, 1000);
+        long recid = a.put("aa", Serializer.STRING);
+        //writer thread is waiting for flush delay, so value is only in write cache
+        assertEquals("aa", a.writeCache.get(recid).value);
+        assertNull(a.engine.get(recid, Serializer.STRING));
+        assertEquals("aa", a.get(recid, Serializer.STRING));
+
+        a.commit();
+        assertTrue(a.writeCache.isEmpty());
+        assertEquals("aa", a.engine.get(recid, Serializer.STRING));
+        a.close();
+    }
+
+    @Test public void coalesce_updates(){
+        AsyncWriteEngine a = new AsyncWriteEngine(new StoreHeap(true, CC.DEFAULT_LOCK_SCALE, 0),
+                CC.DEFAULT_LOCK_SCALE, 100000, 1000);
+        long recid = a.put(0L, Serializer.LONG);
+        for(long i=1;i<=10000;i++){
+            a.update(recid, i, Serializer.LONG);
+        }
+        assertEquals(1, a.writeCache.size());
+        assertEquals(999, a.writeCacheSpace.availablePermits());
+        assertEquals(Long.valueOf(10000L), a.get(recid, Serializer.LONG));
+        a.commit();
+        assertEquals(1000, a.writeCacheSpace.availablePermits());
+        assertEquals(Long.valueOf(10000L), a.engine.get(recid, Serializer.LONG));
+        a.close();
+    }
+
+    @Test(timeout = 100000)
+    public void full_queue_blocks_until_flushed(){
+        AsyncWriteEngine a = new AsyncWriteEngine(new StoreHeap(true, CC.DEFAULT_LOCK_SCALE, 0),
+                CC.DEFAULT_LOCK_SCALE, 10, 16);
+        long[] recids = new long[10000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = a.put(i, Serializer.INTEGER);
+            assertTrue(a.writeCache.size()<=16);
+        }
+        for(int i=0;i<recids.length;i++){
+            assertEquals(Integer.valueOf(i), a.get(recids[i], Serializer.INTEGER));
+        }
+        a.close();
+    }
+
+    @Test public void rollback_discards_write_cache(){
+        AsyncWriteEngine a = new AsyncWriteEngine(new StoreHeap(false, CC.DEFAULT_LOCK_SCALE, 0),
+                CC.DEFAULT_LOCK_SCALE, 100000, 1000);
+        long recid = a.put("aa", Serializer.STRING);
+        a.commit();
+        a.update(recid, "bb", Serializer.STRING);
+        a.rollback();
+        assertTrue(a.writeCache.isEmpty());
+        assertEquals(1000, a.writeCacheSpace.availablePermits());
+        assertEquals("aa", a.get(recid, Serializer.STRING));
+        a.close();
+    }
+
+    @Test public void rollback_unsupported_keeps_writes(){
+        long recid = e.put("aa", Serializer.STRING);
+        try{
+            e.rollback();
+            fail();
+        }catch(UnsupportedOperationException ex){
+            //expected
+        }
+        assertEquals("aa", e.get(recid, Serializer.STRING));
+        e.commit();
+        reopen();
+        assertEquals("aa", e.get(recid, Serializer.STRING));
+    }
+
+    @Test public void rollback_keeps_committed_recids(){
+        AsyncWriteEngine a = new AsyncWriteEngine(new StoreHeap(false, CC.DEFAULT_LOCK_SCALE, 0),
+                CC.DEFAULT_LOCK_SCALE, 100000, 1000);
+        a.put("aa", Serializer.STRING);
+        a.commit();
+        int size = a.newRecids.size();
+        assertTrue(size>0);
+        //recid preallocated before commit is unused again after rollback
+        long recid = a.preallocate();
+        a.rollback();
+        assertEquals(size, a.newRecids.size());
+        assertTrue(a.newRecids.contains(recid));
+        a.close();
+    }
+
+    @Test(timeout = 100000)
+    public void par_put_update() throws Exception {
+        final AsyncWriteEngine a = new AsyncWriteEngine(new StoreHeap(true, CC.DEFAULT_LOCK_SCALE, 0),
+                CC.DEFAULT_LOCK_SCALE, 0, 100);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        Future<long[]>[] futures = new Future[4];
+        for(int t=0;t<futures.length;t++){
+            final int t2 = t;
+            futures[t] = exec.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] recids = new long[1000];
+                    for(int i=0;i<recids.length;i++){
+                        recids[i] = a.put(-1, Serializer.INTEGER);
+                        a.update(recids[i], t2*10000+i, Serializer.INTEGER);
+                    }
+                    return recids;
+                }
+            });
+        }
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(100, TimeUnit.SECONDS));
+        a.commit();
+        for(int t=0;t<futures.length;t++){
+            long[] recids = futures[t].get();
+            for(int i=0;i<recids.length;i++){
+                assertEquals(Integer.valueOf(t*10000+i), a.engine.get(recids[i], Serializer.INTEGER));
+            }
+        }
+        a.close();
+    }
+
+    @Test public void DBMaker_async(){
+        DB db = DBMaker.newMemoryDB().transactionDisable().asyncWriteEnable().make();
+        assertEquals(AsyncWriteEngine.class, db.getEngine().getClass());
+        db.getHashMap("map").put(1, "one");
+        db.commit();
+        assertEquals("one", db.getHashMap("map").get(1));
+        db.close();
+    }
 }
-*/
\ No newline at end of file
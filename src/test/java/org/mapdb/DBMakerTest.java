@@ -68,8 +68,7 @@ public class DBMakerTest{
         Store store = Store.forDB(db);
         assertEquals(store.caches[0].getClass(), Store.Cache.HashTable.class);
         Engine w =  db.engine;
-        //TODO reenalbe after async is finished
-//        assertEquals(w.getWrappedEngine().getClass(),AsyncWriteEngine.class);
+        assertEquals(w.getClass(),AsyncWriteEngine.class);
     }
 
 
@@ -106,6 +105,24 @@ public class DBMakerTest{
         assertTrue(s.vol instanceof Volume.MappedFileVol);
     }
 
+    @Test
+    public void testAllocatorArenasEnable() throws Exception {
+        DB db = DBMaker
+                .newMemoryDB()
+                .transactionDisable()
+                .allocatorArenasEnable()
+                .make();
+        verifyDB(db);
+        StoreDirect s = (StoreDirect) Store.forDB(db);
+        assertEquals(s.lockScale, s.arenas.length);
+
+        db = DBMaker
+                .newMemoryDB()
+                .transactionDisable()
+                .make();
+        assertNull(((StoreDirect) Store.forDB(db)).arenas);
+    }
+
     @Test
     public void testCacheHardRefEnable() throws Exception {
         DB db = DBMaker
@@ -159,6 +176,35 @@ public class DBMakerTest{
         db.close();
     }
 
+    @Test
+    public void testCacheTinyLFUEnable() throws Exception {
+        DB db = DBMaker
+                .newMemoryDB()
+                .transactionDisable()
+                .cacheTinyLFUEnable()
+                .make();
+        verifyDB(db);
+        Store store = Store.forDB(db);
+        assertTrue(store.caches[0].getClass() == Store.Cache.TinyLFU.class);
+        db.close();
+    }
+
+    @Test
+    public void testCacheSizeBytes() throws Exception {
+        DB db = DBMaker
+                .newMemoryDB()
+                .transactionDisable()
+                .cacheSizeBytes(1024*1024)
+                .make();
+        verifyDB(db);
+        Store store = Store.forDB(db);
+        Store.Cache.ByteBounded cache = (Store.Cache.ByteBounded) store.caches[0];
+        //budget is divided between segments
+        assertEquals(1024*1024/CC.DEFAULT_LOCK_SCALE, cache.sizeBytes);
+        assertNotSame(cache, store.caches[1]);
+        db.close();
+    }
+
     @Test
     public void testCacheSize() throws Exception {
         DB db = DBMaker
@@ -396,6 +442,97 @@ public class DBMakerTest{
         assertEquals(Integer.valueOf(12),s.lastEntry().getKey());
     }
 
+    @Test public void commit_sync(){
+        DB db = DBMaker.newFileDB(UtilsTest.tempDbFile()).make();
+        assertEquals(0, ((Store)Store.forDB(db)).commitSyncInterval);
+        db.close();
+
+        db = DBMaker.newFileDB(UtilsTest.tempDbFile()).commitSyncPeriodic(100, 1000).make();
+        assertEquals(100, ((Store)Store.forDB(db)).commitSyncInterval);
+        assertEquals(1000, ((Store)Store.forDB(db)).commitSyncBytes);
+        db.close();
+
+        db = DBMaker.newFileDB(UtilsTest.tempDbFile()).transactionDisable().commitFileSyncDisable().make();
+        assertTrue(Store.forDB(db) instanceof StoreDirect);
+        assertEquals(-1, ((Store)Store.forDB(db)).commitSyncInterval);
+        db.close();
+
+        db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).commitSyncPeriodic(100, 0).make();
+        assertEquals(100, ((Store)Store.forDB(db)).commitSyncInterval);
+        db.close();
+    }
+
+    @Test public void commit_sync_compact(){
+        File f = UtilsTest.tempDbFile();
+        DB db = DBMaker.newFileDB(f).transactionDisable().mmapFileEnable().commitFileSyncDisable().make();
+        Map m = db.getHashMap("test");
+        m.put("aa","bb");
+        db.commit();
+        db.compact();
+        m.put("cc","dd");
+        db.commit();
+        db.close();
+
+        db = DBMaker.newFileDB(f).transactionDisable().mmapFileEnable().make();
+        m = db.getHashMap("test");
+        assertEquals("bb",m.get("aa"));
+        assertEquals("dd",m.get("cc"));
+        db.close();
+    }
+
+    @Test public void wal_compression(){
+        DB db = DBMaker.newFileDB(UtilsTest.tempDbFile()).make();
+        assertEquals(0, ((StoreWAL)Store.forDB(db)).walCompressionThreshold);
+        db.close();
+
+        db = DBMaker.newFileDB(UtilsTest.tempDbFile()).walCompressionEnable().make();
+        assertEquals(CC.DEFAULT_WAL_COMPRESSION_THRESHOLD, ((StoreWAL)Store.forDB(db)).walCompressionThreshold);
+        db.close();
+
+        db = DBMaker.newFileDB(UtilsTest.tempDbFile()).walCompressionEnable(4096).make();
+        assertEquals(4096, ((StoreWAL)Store.forDB(db)).walCompressionThreshold);
+        db.close();
+    }
+
+    @Test public void append_cleaner(){
+        DB db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).make();
+        assertEquals(0D, ((StoreAppend)Store.forDB(db)).cleanerGarbageRatio, 0D);
+        db.close();
+
+        db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).appendCleanerEnable().make();
+        assertEquals(CC.DEFAULT_APPEND_CLEANER_GARBAGE_RATIO, ((StoreAppend)Store.forDB(db)).cleanerGarbageRatio, 0D);
+        db.close();
+
+        db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).appendCleanerEnable(0.3).make();
+        assertEquals(0.3, ((StoreAppend)Store.forDB(db)).cleanerGarbageRatio, 0D);
+        db.close();
+    }
+
+    @Test public void append_checkpoint(){
+        DB db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).make();
+        assertEquals(CC.DEFAULT_APPEND_CHECKPOINT_SIZE, ((StoreAppend)Store.forDB(db)).checkpointSize);
+        db.close();
+
+        db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).appendCheckpointSize(0).make();
+        assertEquals(0, ((StoreAppend)Store.forDB(db)).checkpointSize);
+        db.close();
+    }
+
+    @Test public void append_segment_size(){
+        DB db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).make();
+        assertEquals(24, ((StoreAppend)Store.forDB(db)).segmentShift);
+        db.close();
+
+        //rounded up to power of two
+        db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).appendSegmentSize(3*1024*1024).make();
+        assertEquals(22, ((StoreAppend)Store.forDB(db)).segmentShift);
+        db.close();
+
+        db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).appendSegmentSize(1000).make();
+        assertEquals(CC.VOLUME_PAGE_SHIFT, ((StoreAppend)Store.forDB(db)).segmentShift);
+        db.close();
+    }
+
     @Test public void heap_store(){
         DB db = DBMaker.newHeapDB().make();
         Engine  s = Store.forDB(db);
@@ -306,6 +306,43 @@ public abstract class EngineTest<ENGINE extends Engine>{
         assertNull(e.get(recid,Serializer.ILLEGAL_ACCESS));
     }
 
+    @Test public void cas_binary(){
+        //canonical serializer, CAS should compare binary form without deserialization
+        Serializer<Long> s = new Serializer<Long>() {
+            @Override
+            public void serialize(DataOutput out, Long value) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long deserialize(DataInput in, int available) throws IOException {
+                throw new AssertionError("should not deserialize");
+            }
+
+            @Override
+            public boolean isCanonical() {
+                return true;
+            }
+        };
+        long recid = e.put(1L, s);
+        e.commit();
+        e.clearCache();
+        assertFalse(e.compareAndSwap(recid, 2L, 3L, s));
+        assertTrue(e.compareAndSwap(recid, 1L, 3L, s));
+        e.commit();
+        e.clearCache();
+        assertEquals(Long.valueOf(3L), e.get(recid, Serializer.LONG));
+
+        long recid2 = e.preallocate();
+        e.commit();
+        e.clearCache();
+        assertFalse(e.compareAndSwap(recid2, 1L, 3L, s));
+        assertTrue(e.compareAndSwap(recid2, null, 4L, s));
+        e.commit();
+        e.clearCache();
+        assertEquals(Long.valueOf(4L), e.get(recid2, Serializer.LONG));
+    }
+
     @Test public void reserved_recid_exists(){
         for(long recid=1;recid<Engine.RECID_FIRST;recid++){
             assertNull(e.get(recid,Serializer.ILLEGAL_ACCESS));
@@ -361,6 +398,71 @@ public abstract class EngineTest<ENGINE extends Engine>{
     }
 
 
+    @Test public void batch_putAll_getAll_updateAll_deleteAll(){
+        int size = 1000;
+        String[] vals = new String[size];
+        for(int i=0;i<size;i++){
+            vals[i] = "val"+i;
+        }
+        long[] recids = e.putAll(vals, Serializer.STRING);
+        assertEquals(size, recids.length);
+        for(int i=0;i<size;i++){
+            assertEquals(vals[i], e.get(recids[i], Serializer.STRING));
+        }
+        assertArrayEquals(vals, e.getAll(recids, Serializer.STRING));
+
+        for(int i=0;i<size;i++){
+            vals[i] = "upd"+i;
+        }
+        e.updateAll(recids, vals, Serializer.STRING);
+        assertArrayEquals(vals, e.getAll(recids, Serializer.STRING));
+        e.commit();
+        reopen();
+        assertArrayEquals(vals, e.getAll(recids, Serializer.STRING));
+
+        long[] deleted = Arrays.copyOf(recids, size/2);
+        e.deleteAll(deleted, Serializer.STRING);
+        Object[] got = e.getAll(recids, Serializer.STRING);
+        for(int i=0;i<size;i++){
+            assertEquals(i<size/2?null:vals[i], got[i]);
+        }
+    }
+
+    @Test public void batch_getAll_mixed_sizes(){
+        Random r = new Random(1);
+        byte[][] vals = new byte[100][];
+        for(int i=0;i<vals.length;i++){
+            vals[i] = new byte[r.nextInt(i%10==0?100000:1000)];
+            r.nextBytes(vals[i]);
+        }
+        long[] recids = new long[vals.length];
+        for(int i=0;i<vals.length;i++){
+            recids[i] = e.put(vals[i], BYTE_ARRAY_NOSIZE);
+        }
+        //request in reverse order, with duplicates
+        long[] recids2 = new long[recids.length*2];
+        for(int i=0;i<recids.length;i++){
+            recids2[i] = recids[recids.length-1-i];
+            recids2[recids.length+i] = recids[i];
+        }
+        Object[] got = e.getAll(recids2, BYTE_ARRAY_NOSIZE);
+        for(int i=0;i<recids.length;i++){
+            assertArrayEquals(vals[recids.length-1-i], (byte[]) got[i]);
+            assertArrayEquals(vals[i], (byte[]) got[recids.length+i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batch_updateAll_length_mismatch(){
+        long[] recids = e.putAll(new Long[]{1L, 2L}, Serializer.LONG);
+        e.updateAll(recids, new Long[]{1L}, Serializer.LONG);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void NPE_getAll(){
+        e.getAll(new long[]{1L}, null);
+    }
+
     @Test public void zero_size_serializer(){
         Serializer s = new Serializer<String>() {
 
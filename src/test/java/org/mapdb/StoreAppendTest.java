@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 @SuppressWarnings({"rawtypes","unchecked"})
@@ -21,6 +22,458 @@ public class StoreAppendTest<E extends StoreAppend> extends EngineTest<E>{
         return (E) s;
     }
 
+    @Test(timeout = 100000)
+    public void commit_sync_periodic() throws InterruptedException {
+        e.close();
+        StoreAppend s = new StoreAppend(f.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 10, 1000, false, 0, 0, CC.DEFAULT_APPEND_SEGMENT_SIZE);
+        s.init();
+        long recid = s.put("aa", Serializer.STRING);
+        s.commit();
+        assertNotNull(s.commitSyncThread);
+        //background thread syncs log
+        for(;;){
+            s.commitSyncLock.lock();
+            try{
+                if(s.commitSyncPending.isEmpty())
+                    break;
+            }finally {
+                s.commitSyncLock.unlock();
+            }
+            Thread.sleep(1);
+        }
+        assertNull(s.commitSyncFailure);
+
+        //more bytes than limit wakes up thread
+        s.update(recid, UtilsTest.randomString(2000), Serializer.STRING);
+        s.commit();
+        s.close();
+        s.commitSyncThread.join();
+
+        e = openEngine();
+        assertEquals(2000, e.get(recid, Serializer.STRING).length());
+    }
+
+    @Test public void compact_reopen(){
+        long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = e.put("aaaaaaaaaaaaaaaaaaaaaa"+i, Serializer.STRING);
+        }
+        for(int j=0;j<10;j++) {
+            for (int i = 0; i < recids.length; i++) {
+                e.update(recids[i], "bbbbbbbbbbbbbbbbbbbbbbbb" + i + "-" + j, Serializer.STRING);
+            }
+        }
+        e.delete(recids[0], Serializer.STRING);
+        e.update(recids[1], null, Serializer.STRING);
+        long prealloc = e.preallocate();
+        e.commit();
+
+        long logSize = e.logSize();
+        double garbage = e.garbageRatio();
+        assertTrue(garbage>0.8);
+        e.compact();
+        assertTrue(e.logSize() < logSize/5);
+        assertTrue(e.garbageRatio() < 0.1);
+        //live records were moved out of first segment
+        assertFalse(new File(e.segmentFileName(0)).exists());
+
+        for(int round=0;round<2;round++) {
+            assertNull(e.get(recids[0], Serializer.STRING));
+            assertNull(e.get(recids[1], Serializer.STRING));
+            assertNull(e.get(prealloc, Serializer.STRING));
+            for (int i = 2; i < recids.length; i++) {
+                assertEquals("bbbbbbbbbbbbbbbbbbbbbbbb" + i + "-9", e.get(recids[i], Serializer.STRING));
+            }
+            //recids are not reused after reopen
+            assertTrue(e.put("new", Serializer.STRING) > prealloc);
+            e.commit();
+            reopen();
+        }
+    }
+
+    @Test public void compact_uncommitted(){
+        e.close();
+        //segment size is kept from existing store
+        f = UtilsTest.tempDbFile();
+        StoreAppend s = openWithSegmentSize(false, 0, SEGMENT_SIZE);
+        long recid = s.put("committed", Serializer.STRING);
+        long recid2 = s.put("committed2", Serializer.STRING);
+        s.commit();
+        //fill first segment, so committed records are in sealed segment
+        long filler = s.put("", Serializer.STRING);
+        while(s.segmentsList().length<2){
+            s.update(filler, UtilsTest.randomString(10000), Serializer.STRING);
+            s.commit();
+        }
+        s.update(recid, "uncommitted", Serializer.STRING);
+        s.delete(recid2, Serializer.STRING);
+        long recid3 = s.put("uncommitted3", Serializer.STRING);
+
+        //committed versions are moved out of first segment
+        s.compact();
+        assertNull(s.segment(0));
+        assertFalse(new File(s.segmentFileName(0)).exists());
+        assertEquals("uncommitted", s.get(recid, Serializer.STRING));
+        assertNull(s.get(recid2, Serializer.STRING));
+        assertEquals("uncommitted3", s.get(recid3, Serializer.STRING));
+
+        s.rollback();
+        assertEquals("committed", s.get(recid, Serializer.STRING));
+        assertEquals("committed2", s.get(recid2, Serializer.STRING));
+
+        //uncommitted changes in cleaned log are discarded on reopen
+        s.update(recid, "uncommitted", Serializer.STRING);
+        s.compact();
+        s.commitSyncClose();
+        for(StoreAppend.Segment seg:s.segmentsList()){
+            seg.vol.sync();
+        }
+        StoreAppend s2 = openWithSegmentSize(false, 0, SEGMENT_SIZE);
+        assertEquals("committed", s2.get(recid, Serializer.STRING));
+        assertEquals("committed2", s2.get(recid2, Serializer.STRING));
+        s2.close();
+        s.close();
+    }
+
+    @Test(timeout = 100000)
+    public void cleaner_background() throws InterruptedException {
+        e.close();
+        f = UtilsTest.tempDbFile();
+        StoreAppend s = openWithSegmentSize(false, 0.5, SEGMENT_SIZE);
+        long[] recids = new long[100];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = s.put(UtilsTest.randomString(1000), Serializer.STRING);
+        }
+        String last = null;
+        for(int j=0;j<60;j++){
+            for(int i=0;i<recids.length;i++) {
+                last = "value"+j+"-"+UtilsTest.randomString(1000);
+                s.update(recids[i], last+i, Serializer.STRING);
+            }
+            s.commit();
+        }
+        assertNotNull(s.backgroundThread);
+        //wait until cleaner finishes, it keeps log small
+        while(s.cleanerRequested || s.backgroundLock.isLocked()){
+            Thread.sleep(1);
+        }
+        assertNull(s.backgroundFailure);
+        assertTrue(s.logSize() < 2*SEGMENT_SIZE);
+        assertFalse(new File(s.segmentFileName(0)).exists());
+        assertEquals(last+(recids.length-1), s.get(recids[recids.length-1], Serializer.STRING));
+        s.close();
+        s.backgroundThread.join();
+
+        e = openEngine();
+        assertEquals(last+(recids.length-1), e.get(recids[recids.length-1], Serializer.STRING));
+    }
+
+    StoreAppend openWithCheckpointSize(long checkpointSize){
+        StoreAppend s = new StoreAppend(f.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, 0, false, 0, checkpointSize, CC.DEFAULT_APPEND_SEGMENT_SIZE);
+        s.init();
+        return s;
+    }
+
+    static final long SEGMENT_SIZE = 1024*1024;
+
+    StoreAppend openWithSegmentSize(boolean txDisabled, double cleanerGarbageRatio, long segmentSize){
+        StoreAppend s = new StoreAppend(f.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, 0, txDisabled, cleanerGarbageRatio, 0, segmentSize);
+        s.init();
+        return s;
+    }
+
+    @Test public void segment_rollover(){
+        e.close();
+        f = UtilsTest.tempDbFile();
+        StoreAppend s = openWithSegmentSize(true, 0, SEGMENT_SIZE);
+        long[] recids = new long[400];
+        String[] vals = new String[recids.length];
+        for(int i=0;i<recids.length;i++){
+            vals[i] = UtilsTest.randomString(10000);
+            recids[i] = s.put(vals[i], Serializer.STRING);
+        }
+        s.commit();
+        StoreAppend.Segment[] segs = s.segmentsList();
+        assertTrue(segs.length>=3);
+        for(StoreAppend.Segment seg:segs){
+            assertTrue(new File(s.segmentFileName(seg.start>>>s.segmentShift)).exists());
+            //without transactions entries do not cross segment boundary
+            assertTrue(seg.size<=SEGMENT_SIZE);
+        }
+        for(int round=0;round<2;round++) {
+            for (int i = 0; i < recids.length; i++) {
+                assertEquals(vals[i], s.get(recids[i], Serializer.STRING));
+            }
+            s.close();
+            s = openWithSegmentSize(true, 0, SEGMENT_SIZE);
+        }
+        assertEquals(segs.length, s.segmentsList().length);
+        s.close();
+    }
+
+    @Test public void segment_size_kept(){
+        e.close();
+        f = UtilsTest.tempDbFile();
+        StoreAppend s = openWithSegmentSize(false, 0, SEGMENT_SIZE);
+        long recid = s.put("aa", Serializer.STRING);
+        s.commit();
+        s.close();
+
+        s = openWithSegmentSize(false, 0, CC.DEFAULT_APPEND_SEGMENT_SIZE);
+        assertEquals(20, s.segmentShift);
+        assertEquals("aa", s.get(recid, Serializer.STRING));
+        s.close();
+    }
+
+    @Test public void header_old_format_rejected() throws IOException {
+        e.close();
+        f = UtilsTest.tempDbFile();
+        //older format had zeroed header followed by log entries in main file
+        RandomAccessFile raf = new RandomAccessFile(f,"rw");
+        raf.setLength(1<<CC.VOLUME_PAGE_SHIFT);
+        raf.close();
+        try{
+            openWithSegmentSize(false, 0, SEGMENT_SIZE);
+            fail();
+        }catch(DBException.DataCorruption e){
+            //expected
+        }
+        assertFalse(new File(f.getPath()+".0"+StoreAppend.SEGMENT_FILE_EXT).exists());
+    }
+
+    @Test public void header_segment_shift_validated() throws IOException {
+        e.close();
+        f = UtilsTest.tempDbFile();
+        StoreAppend s = openWithSegmentSize(false, 0, SEGMENT_SIZE);
+        s.close();
+
+        RandomAccessFile raf = new RandomAccessFile(f,"rw");
+        raf.seek(StoreAppend.MAIN_SEGMENT_SHIFT_OFFSET);
+        raf.writeLong(0);
+        raf.close();
+        try{
+            openWithSegmentSize(false, 0, SEGMENT_SIZE);
+            fail();
+        }catch(DBException.DataCorruption e){
+            //expected
+        }
+    }
+
+    @Test(timeout = 100000)
+    public void segment_dead_deleted() throws InterruptedException {
+        e.close();
+        f = UtilsTest.tempDbFile();
+        //cleaner is disabled, but segments without live records are still deleted
+        StoreAppend s = openWithSegmentSize(false, 0, SEGMENT_SIZE);
+        long recid = s.put("", Serializer.STRING);
+        String val = null;
+        for(int i=0;i<400;i++){
+            val = UtilsTest.randomString(10000);
+            s.update(recid, val, Serializer.STRING);
+            s.commit();
+        }
+        assertNotNull(s.backgroundThread);
+        while(s.cleanerRequested || s.backgroundLock.isLocked()){
+            Thread.sleep(1);
+        }
+        assertNull(s.backgroundFailure);
+        assertFalse(new File(s.segmentFileName(0)).exists());
+        assertTrue(s.segmentsList().length<=2);
+        assertEquals(val, s.get(recid, Serializer.STRING));
+        s.close();
+        s.backgroundThread.join();
+
+        s = openWithSegmentSize(false, 0, SEGMENT_SIZE);
+        assertEquals(val, s.get(recid, Serializer.STRING));
+        s.close();
+    }
+
+    @Test public void snapshot(){
+        long recid = e.put("aa", Serializer.STRING);
+        long recid2 = e.put("bb", Serializer.STRING);
+        e.commit();
+        //uncommitted modifications are not visible in snapshot
+        e.update(recid, "uncommitted", Serializer.STRING);
+        assertTrue(e.canSnapshot());
+        Engine snapshot = e.snapshot();
+        assertTrue(snapshot.isReadOnly());
+
+        e.update(recid2, "bb2", Serializer.STRING);
+        long recid3 = e.put("cc", Serializer.STRING);
+        e.commit();
+        e.delete(recid2, Serializer.STRING);
+        e.rollback();
+        e.delete(recid, Serializer.STRING);
+        e.commit();
+
+        assertEquals("aa", snapshot.get(recid, Serializer.STRING));
+        assertEquals("bb", snapshot.get(recid2, Serializer.STRING));
+        try{
+            snapshot.get(recid3, Serializer.STRING);
+            fail();
+        }catch(DBException.EngineGetVoid ee){
+            //expected, record was created after snapshot
+        }
+        try{
+            snapshot.update(recid, "dd", Serializer.STRING);
+            fail();
+        }catch(UnsupportedOperationException ee){
+            //expected
+        }
+
+        assertNull(e.get(recid, Serializer.STRING));
+        assertEquals("bb2", e.get(recid2, Serializer.STRING));
+        assertEquals("cc", e.get(recid3, Serializer.STRING));
+
+        snapshot.close();
+        assertTrue(snapshot.isClosed());
+        assertTrue(e.snapshots.isEmpty());
+    }
+
+    @Test public void snapshot_keeps_segments(){
+        e.close();
+        f = UtilsTest.tempDbFile();
+        StoreAppend s = openWithSegmentSize(false, 0.5, SEGMENT_SIZE);
+        long recid = s.put("aa", Serializer.STRING);
+        s.commit();
+        Engine snapshot = s.snapshot();
+        String val = null;
+        for(int i=0;i<300;i++){
+            val = UtilsTest.randomString(10000);
+            s.update(recid, val, Serializer.STRING);
+            s.commit();
+        }
+        s.compact();
+        //old version is still in first segment
+        assertTrue(new File(s.segmentFileName(0)).exists());
+        assertEquals("aa", snapshot.get(recid, Serializer.STRING));
+
+        snapshot.close();
+        s.compact();
+        assertFalse(new File(s.segmentFileName(0)).exists());
+        assertEquals(val, s.get(recid, Serializer.STRING));
+        s.close();
+    }
+
+    @Test public void snapshot_db(){
+        e.close();
+        DB db = DBMaker.newAppendFileDB(UtilsTest.tempDbFile()).make();
+        Map map = db.getHashMap("map");
+        map.put("aa","bb");
+        db.commit();
+        DB snapshot = db.snapshot();
+        map.put("aa","cc");
+        db.commit();
+        assertEquals("bb", snapshot.getHashMap("map").get("aa"));
+        assertEquals("cc", map.get("aa"));
+        snapshot.close();
+        db.close();
+    }
+
+    @Test public void checkpoint_reopen(){
+        e.close();
+        StoreAppend s = openWithCheckpointSize(0);
+        long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = s.put("aa"+i, Serializer.STRING);
+        }
+        s.delete(recids[0], Serializer.STRING);
+        s.commit();
+        s.backgroundLock.lock();
+        try{
+            s.checkpointWrite();
+        }finally {
+            s.backgroundLock.unlock();
+        }
+        long pos = s.checkpointPos;
+        assertEquals(s.eof, pos);
+        assertTrue(new File(f.getPath()+StoreAppend.CHECKPOINT_FILE_EXT).exists());
+
+        //modifications after checkpoint are replayed from log
+        s.update(recids[1], "bb", Serializer.STRING);
+        long recid2 = s.put("cc", Serializer.STRING);
+        s.commit();
+        s.update(recids[2], "uncommitted", Serializer.STRING);
+        s.active.vol.sync();
+
+        //store is not closed
+        StoreAppend s2 = openWithCheckpointSize(0);
+        assertEquals(pos, s2.checkpointPos);
+        assertNull(s2.get(recids[0], Serializer.STRING));
+        assertEquals("bb", s2.get(recids[1], Serializer.STRING));
+        assertEquals("aa2", s2.get(recids[2], Serializer.STRING));
+        assertEquals("aa999", s2.get(recids[999], Serializer.STRING));
+        assertEquals("cc", s2.get(recid2, Serializer.STRING));
+        assertTrue(s2.put("dd", Serializer.STRING) > recid2);
+        s2.close();
+        s.close();
+    }
+
+    @Test public void checkpoint_on_close(){
+        e.close();
+        StoreAppend s = openWithCheckpointSize(1000);
+        long recid = s.put(UtilsTest.randomString(2000), Serializer.STRING);
+        s.commit();
+        String val = s.get(recid, Serializer.STRING);
+        s.close();
+
+        s = openWithCheckpointSize(1000);
+        assertEquals(s.eof, s.checkpointPos);
+        assertEquals(val, s.get(recid, Serializer.STRING));
+        s.close();
+    }
+
+    @Test public void checkpoint_after_compact(){
+        e.close();
+        StoreAppend s = openWithCheckpointSize(0);
+        long recid = s.put("aa", Serializer.STRING);
+        s.update(recid, "bb", Serializer.STRING);
+        long recid2 = s.put("dd", Serializer.STRING);
+        s.commit();
+        s.backgroundLock.lock();
+        try{
+            s.checkpointWrite();
+        }finally {
+            s.backgroundLock.unlock();
+        }
+        long pos = s.checkpointPos;
+        //offsets in checkpoint refer to deleted segment, relocated entries are replayed
+        s.compact();
+        assertFalse(new File(s.segmentFileName(0)).exists());
+        s.update(recid, "cc", Serializer.STRING);
+        s.commit();
+        s.close();
+
+        s = openWithCheckpointSize(0);
+        assertEquals(pos, s.checkpointPos);
+        assertEquals("cc", s.get(recid, Serializer.STRING));
+        assertEquals("dd", s.get(recid2, Serializer.STRING));
+        assertTrue(s.garbageRatio() < 0.5);
+        s.close();
+    }
+
+    @Test public void checkpoint_broken() throws IOException {
+        e.close();
+        StoreAppend s = openWithCheckpointSize(1);
+        long recid = s.put("aa", Serializer.STRING);
+        s.commit();
+        s.close();
+
+        File idx = new File(f.getPath()+StoreAppend.CHECKPOINT_FILE_EXT);
+        RandomAccessFile raf = new RandomAccessFile(idx,"rw");
+        raf.seek(StoreAppend.CHECKPOINT_HEADER_SIZE+recid*8);
+        raf.writeLong(111);
+        raf.close();
+
+        s = openWithCheckpointSize(0);
+        assertEquals(StoreAppend.headerSize, s.checkpointPos);
+        assertEquals("aa", s.get(recid, Serializer.STRING));
+        s.close();
+    }
+
     /*
     @Test
     public void compact_file_deleted(){
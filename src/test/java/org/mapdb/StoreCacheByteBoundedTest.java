@@ -0,0 +1,99 @@
+package org.mapdb;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class StoreCacheByteBoundedTest<E extends StoreDirect> extends EngineTest<E>{
+
+    File f = UtilsTest.tempDbFile();
+
+    @Override protected E openEngine() {
+        StoreDirect e =new StoreDirect(
+                f.getPath(),
+                Volume.fileFactory(),
+                new Store.Cache.ByteBounded(1024*1024,false),
+                CC.DEFAULT_LOCK_SCALE,
+                0,
+                false,
+                false,
+                null,
+                false,
+                0,
+                0,
+                0,
+                0,
+                false,
+                false
+                );
+        e.init();
+        return (E)e;
+    }
+
+    @Override
+    boolean canRollback() {
+        return false;
+    }
+
+    @Test public void cache_budget(){
+        Store.Cache.ByteBounded cache = new Store.Cache.ByteBounded(10000, false);
+
+        cache.put(1L, "aa", 1000);
+        cache.put(2L, "bb", 1000);
+        assertEquals(2*(1000+Store.Cache.ByteBounded.ITEM_OVERHEAD), cache.used);
+
+        //large item evicts least recently used items
+        cache.get(1L);
+        cache.put(3L, "cc", 8000);
+        assertEquals("aa", cache.get(1L));
+        assertNull(cache.get(2L));
+        assertEquals("cc", cache.get(3L));
+        assertTrue(cache.used<=10000);
+
+        //item larger than budget is not cached
+        cache.put(4L, "dd", 20000);
+        assertNull(cache.get(4L));
+        assertNull(cache.get(3L));
+
+        cache.clear();
+        assertEquals(0, cache.used);
+    }
+
+    @Test public void cache_segment_full(){
+        //fill cache of single segment up to its budget
+        String val = UtilsTest.randomString(10000);
+        long recid = e.put(val, Serializer.STRING);
+        int pos = e.lockPos(recid);
+        Store.Cache.ByteBounded full = (Store.Cache.ByteBounded) e.caches[pos];
+        for(int i=0;i<3000;i++){
+            recid = e.put(val, Serializer.STRING);
+            if(e.lockPos(recid)!=pos)
+                e.delete(recid, Serializer.STRING);
+        }
+        assertTrue(full.used > full.sizeBytes - 20000);
+        assertTrue(full.used <= full.sizeBytes);
+
+        //other segment still caches new items
+        do{
+            recid = e.put("aa", Serializer.STRING);
+        }while(e.lockPos(recid)==pos);
+        assertEquals("aa", e.caches[e.lockPos(recid)].get(recid));
+    }
+
+    @Test public void cache_size_from_record(){
+        //serialized size is used
+        long recid = e.put(UtilsTest.randomString(10000), Serializer.STRING);
+        Store.Cache.ByteBounded cache = (Store.Cache.ByteBounded) e.caches[e.lockPos(recid)];
+        long used = cache.used;
+        assertTrue(used > 10000);
+        assertTrue(used < 10000 + 1000);
+        cache.clear();
+        assertEquals(0, cache.used);
+
+        //deserialized size is used
+        e.get(recid, Serializer.STRING);
+        assertEquals(used, cache.used);
+    }
+}
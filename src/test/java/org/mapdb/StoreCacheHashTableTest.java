@@ -1,6 +1,10 @@
 package org.mapdb;
 
+import org.junit.Test;
+
 import java.io.File;
+import java.util.Random;
+import java.util.concurrent.Callable;
 
 import static org.junit.Assert.*;
 
@@ -20,8 +24,11 @@ public class StoreCacheHashTableTest<E extends StoreDirect> extends EngineTest<E
                 null,
                 false,
                 0,
+                0,
+                0,
+                0,
                 false,
-                0
+                false
                 );
         e.init();
         return (E)e;
@@ -31,4 +38,30 @@ public class StoreCacheHashTableTest<E extends StoreDirect> extends EngineTest<E
     boolean canRollback() {
         return false;
     }
+
+    @Test public void cache_concurrent_put_get(){
+        final Store.Cache cache = new Store.Cache.HashTable(16,false);
+        Exec.execNTimes(8, new Callable() {
+            @Override
+            public Object call() throws Exception {
+                Random r = new Random();
+                for(int i=0;i<1000000;i++){
+                    long recid = 1+r.nextInt(1000);
+                    if(r.nextBoolean()) {
+                        cache.put(recid, recid);
+                    }else{
+                        //colliding puts never mix recid and item
+                        Object item = cache.get(recid);
+                        if(item!=null)
+                            assertEquals(recid, item);
+                    }
+                }
+                return null;
+            }
+        });
+        cache.put(1L, null);
+        assertSame(Store.Cache.NULL, cache.get(1L));
+        cache.clear();
+        assertNull(cache.get(1L));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package org.mapdb;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StoreCacheTinyLFUTest<E extends StoreDirect> extends EngineTest<E>{
+
+    File f = UtilsTest.tempDbFile();
+
+    @Override protected E openEngine() {
+        StoreDirect e =new StoreDirect(
+                f.getPath(),
+                Volume.fileFactory(),
+                new Store.Cache.TinyLFU(1024,false),
+                CC.DEFAULT_LOCK_SCALE,
+                0,
+                false,
+                false,
+                null,
+                false,
+                0,
+                0,
+                0,
+                0,
+                false,
+                false
+                );
+        e.init();
+        return (E)e;
+    }
+
+    @Override
+    boolean canRollback() {
+        return false;
+    }
+
+    @Test public void cache_size_bounded(){
+        Store.Cache.TinyLFU cache = new Store.Cache.TinyLFU(100,true);
+        Random r = new Random();
+        for(int i=0;i<100000;i++){
+            long recid = 1+r.nextInt(1000);
+            if(cache.get(recid)==null)
+                cache.put(recid, recid);
+            else
+                assertEquals(recid, cache.get(recid));
+        }
+        int size = cache.sizes[0]+cache.sizes[1]+cache.sizes[2];
+        assertTrue(size<=100);
+        for(int i=0;i<cache.recids.length;i++){
+            long recid = cache.recids[i];
+            if(recid!=0)
+                assertEquals(i, cache.tableGet(recid));
+        }
+
+        cache.put(2000L, null);
+        assertSame(Store.Cache.NULL, cache.get(2000L));
+        cache.clear();
+        assertNull(cache.get(2000L));
+    }
+
+    @Test public void cache_scan_resistant(){
+        Store.Cache.TinyLFU cache = new Store.Cache.TinyLFU(100,true);
+        //hot set is read repeatedly
+        for(int round=0;round<10;round++){
+            for(long recid=1;recid<=50;recid++){
+                if(cache.get(recid)==null)
+                    cache.put(recid, recid);
+            }
+        }
+        //single scan over many records
+        for(long recid=1000;recid<100000;recid++){
+            if(cache.get(recid)==null)
+                cache.put(recid, recid);
+        }
+        int hits = 0;
+        for(long recid=1;recid<=50;recid++){
+            if(cache.get(recid)!=null)
+                hits++;
+        }
+        assertTrue(hits>=45);
+    }
+}
@@ -4,12 +4,16 @@ package org.mapdb;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.junit.Assert.*;
 import static org.mapdb.StoreDirect.*;
@@ -29,4 +33,81 @@ public class StoreCachedTest<E extends StoreCached> extends StoreDirectTest<E>{
 
     }
 
+    @Test public void flush_serializes_outside_segment_lock(){
+        final E e = this.e;
+        Serializer<String> s = new Serializer<String>() {
+            @Override
+            public void serialize(DataOutput out, String value) throws IOException {
+                for(ReadWriteLock lock:e.locks){
+                    assertFalse(((ReentrantReadWriteLock)lock).isWriteLockedByCurrentThread());
+                }
+                Serializer.STRING.serialize(out,value);
+            }
+
+            @Override
+            public String deserialize(DataInput in, int available) throws IOException {
+                return Serializer.STRING.deserialize(in,available);
+            }
+        };
+
+        long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = e.put("val"+i, s);
+        }
+        e.commit();
+        reopen();
+        for(int i=0;i<recids.length;i++){
+            assertEquals("val"+i, this.e.get(recids[i], Serializer.STRING));
+        }
+    }
+
+    @Test public void flush_record_modified_after_snapshot(){
+        long recid = e.put("aa", Serializer.STRING);
+        long recid2 = e.put("cc", Serializer.STRING);
+        int segment = e.lockPos(recid);
+        StoreCached.WriteCacheFlush flush = e.flushWriteCachePrepare(segment);
+        //modified between serialization and install, newer value must win
+        e.update(recid, "bb", Serializer.STRING);
+        e.commitLock.lock();
+        e.locks[segment].writeLock().lock();
+        try {
+            e.flushWriteCacheSegment(segment, flush);
+        }finally {
+            e.locks[segment].writeLock().unlock();
+            e.commitLock.unlock();
+        }
+        assertEquals(0, e.writeCache[segment].size);
+        e.commit();
+        reopen();
+        assertEquals("bb", e.get(recid, Serializer.STRING));
+        assertEquals("cc", e.get(recid2, Serializer.STRING));
+    }
+
+    @Test public void flush_write_cache_same_instance_modified(){
+        byte[] b = new byte[]{1,2,3};
+        long recid = e.put(b, Serializer.BYTE_ARRAY_NOSIZE);
+        int segment = e.lockPos(recid);
+        long recid2;
+        do{
+            recid2 = e.put("aa", Serializer.STRING);
+        }while(e.lockPos(recid2)!=segment);
+        StoreCached.WriteCacheFlush flush = e.flushWriteCachePrepare(segment);
+        //same instance is mutated and updated between serialization and install
+        b[0] = 4;
+        e.update(recid, b, Serializer.BYTE_ARRAY_NOSIZE);
+        //same value with different serializer
+        e.update(recid2, "aa", Serializer.STRING_NOSIZE);
+        e.commitLock.lock();
+        e.locks[segment].writeLock().lock();
+        try {
+            e.flushWriteCacheSegment(segment, flush);
+        }finally {
+            e.locks[segment].writeLock().unlock();
+            e.commitLock.unlock();
+        }
+        e.commit();
+        reopen();
+        assertArrayEquals(new byte[]{4,2,3}, e.get(recid, Serializer.BYTE_ARRAY_NOSIZE));
+        assertEquals("aa", e.get(recid2, Serializer.STRING_NOSIZE));
+    }
 }
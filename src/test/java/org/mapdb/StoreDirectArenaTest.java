@@ -0,0 +1,126 @@
+package org.mapdb;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings({"rawtypes","unchecked"})
+public class StoreDirectArenaTest<E extends StoreDirect> extends StoreDirectTest<E>{
+
+    File f = UtilsTest.tempDbFile();
+
+    @Override protected E openEngine() {
+        StoreDirect e =new StoreDirect(
+                f.getPath(),
+                Volume.fileFactory(),
+                null,
+                CC.DEFAULT_LOCK_SCALE,
+                0,
+                false,
+                false,
+                null,
+                false,
+                0,
+                0,
+                0,
+                0,
+                true,
+                false
+        );
+        e.init();
+        return (E)e;
+    }
+
+    @Test public void parallel_insert() throws Exception {
+        final int threadNum = 8;
+        final int max = 10000;
+        ExecutorService exec = Executors.newFixedThreadPool(threadNum);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        for(int t=0;t<threadNum;t++){
+            final int thread = t;
+            futures.add(exec.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] recids = new long[max];
+                    for(int i=0;i<max;i++){
+                        recids[i] = e.put(new byte[(thread*max+i)%1000], Serializer.BYTE_ARRAY_NOSIZE);
+                        if(i%3==0)
+                            e.update(recids[i], new byte[i%100], Serializer.BYTE_ARRAY_NOSIZE);
+                    }
+                    return recids;
+                }
+            }));
+        }
+        exec.shutdown();
+
+        List<long[]> recids = new ArrayList<long[]>();
+        for(Future<long[]> fut:futures){
+            recids.add(fut.get());
+        }
+        e.commit();
+        verifyStats();
+        reopen();
+        verifyStats();
+
+        for(int t=0;t<threadNum;t++){
+            long[] r = recids.get(t);
+            for(int i=0;i<max;i++){
+                int size = i%3==0 ? i%100 : (t*max+i)%1000;
+                assertArrayEquals(new byte[size], e.get(r[i], Serializer.BYTE_ARRAY_NOSIZE));
+            }
+        }
+    }
+
+    @Test public void arena_reuses_released_space(){
+        long recid = e.put(new byte[100], Serializer.BYTE_ARRAY_NOSIZE);
+        long offset = e.offsetsGet(recid)[0]&StoreDirect.MOFFSET;
+        e.delete(recid, Serializer.BYTE_ARRAY_NOSIZE);
+        //released slot is reused by record from the same segment
+        long recid2;
+        do{
+            recid2 = e.put(new byte[100], Serializer.BYTE_ARRAY_NOSIZE);
+        }while(e.lockPos(recid2)!=e.lockPos(recid));
+        assertEquals(offset, e.offsetsGet(recid2)[0]&StoreDirect.MOFFSET);
+
+        //commit returns released slots to store, but keeps rest of chunk
+        assertTrue(e.getFreeSize()>0);
+        e.commit();
+        verifyStats();
+        for(StoreDirect.Arena a:e.arenas){
+            for(int count:a.slotsCount)
+                assertEquals(0, count);
+            assertEquals(a.chunkEnd-a.chunkOffset, a.freeSize);
+            assertEquals(0, a.liveSizeDelta);
+        }
+    }
+
+    @Test public void commit_keeps_chunk(){
+        long recid = e.put(new byte[100], Serializer.BYTE_ARRAY_NOSIZE);
+        e.commit();
+        long storeSize = e.getStats().currSize;
+        //chunk is not returned on commit, so store does not grow by new chunk for each commit
+        for(int i=0;i<1000;i++){
+            e.put(new byte[10], Serializer.BYTE_ARRAY_NOSIZE);
+            e.update(recid, new byte[i%100], Serializer.BYTE_ARRAY_NOSIZE);
+            e.commit();
+        }
+        assertTrue(e.getStats().currSize - storeSize <= 16*StoreDirect.ARENA_CHUNK_SIZE);
+        verifyStats();
+
+        //close returns chunks
+        reopen();
+        verifyStats();
+        for(StoreDirect.Arena a:e.arenas){
+            assertEquals(0, a.freeSize);
+        }
+    }
+
+}
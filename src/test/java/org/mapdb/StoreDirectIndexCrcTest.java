@@ -0,0 +1,232 @@
+package org.mapdb;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings({"rawtypes","unchecked"})
+public class StoreDirectIndexCrcTest<E extends StoreDirect> extends StoreDirectTest<E>{
+
+    File f = UtilsTest.tempDbFile();
+
+    @Override protected E openEngine() {
+        StoreDirect e =new StoreDirect(
+                f.getPath(),
+                Volume.fileFactory(),
+                null,
+                CC.DEFAULT_LOCK_SCALE,
+                0,
+                false,
+                false,
+                null,
+                false,
+                0,
+                0,
+                0,
+                0,
+                false,
+                true
+        );
+        e.init();
+        return (E)e;
+    }
+
+    void verifyIndexPageCrc(StoreDirect st){
+        for(long page:st.indexPages){
+            assertEquals(StoreDirect.indexPageCrcCompute(st.vol, page),
+                    st.vol.getLong(page + StoreDirect.PAGE_SIZE - 8));
+        }
+    }
+
+    @Test public void feature_bit_stored(){
+        assertTrue(e.indexPageCrc);
+        assertEquals(StoreDirect.FEATURE_INDEX_CRC | StoreDirect.FEATURES_REQUIRED, e.vol.getLong(StoreDirect.FORMAT_FEATURES));
+        e.close();
+
+        //feature is taken from header, not from constructor
+        StoreDirect st = new StoreDirect(f.getPath());
+        st.init();
+        assertTrue(st.indexPageCrc);
+        st.close();
+    }
+
+    @Test public void crc_after_updates(){
+        long[] recids = new long[200000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = e.put(i, Serializer.INTEGER);
+        }
+        assertTrue(e.indexPages.length>1);
+        for(int i=0;i<recids.length;i+=3){
+            e.update(recids[i], -i, Serializer.INTEGER);
+        }
+        for(int i=0;i<recids.length;i+=7){
+            e.delete(recids[i], Serializer.INTEGER);
+        }
+        verifyIndexPageCrc(e);
+        e.compact();
+        verifyIndexPageCrc(e);
+
+        reopen();
+        for(int i=1;i<recids.length;i+=7){
+            assertEquals(Integer.valueOf(i%3==0?-i:i), e.get(recids[i], Serializer.INTEGER));
+        }
+        verifyIndexPageCrc(e);
+    }
+
+    @Test public void corrupted_page_detected_lazily(){
+        long recid = e.put("aa", Serializer.STRING);
+        long recid2 = 0;
+        while(e.indexPages.length<2)
+            recid2 = e.preallocate();
+        e.update(recid2, "bb", Serializer.STRING);
+        long page = e.indexPages[1];
+        e.close();
+
+        //corrupt unused slot on second index page
+        Volume vol = Volume.fileFactory().run(f.getPath());
+        vol.putLong(page + StoreDirect.PAGE_SIZE - 1000, 111L);
+        vol.sync();
+        vol.close();
+
+        //store opens and pages are only checked when accessed
+        e = openEngine();
+        assertFalse(e.indexPagesChecked[1]);
+        assertEquals("aa", e.get(recid, Serializer.STRING));
+        assertTrue(e.indexPagesChecked[0]);
+        assertFalse(e.indexPagesChecked[1]);
+        try{
+            e.get(recid2, Serializer.STRING);
+            fail();
+        }catch(DBException.ChecksumBroken ex){
+            //expected
+        }
+    }
+
+    @Test public void unknown_feature_bit(){
+        e.close();
+        Volume vol = Volume.fileFactory().run(f.getPath());
+        vol.putLong(StoreDirect.FORMAT_FEATURES, StoreDirect.FEATURES_REQUIRED | 1L<<40);
+        vol.sync();
+        vol.close();
+
+        e = null;
+        StoreDirect st = new StoreDirect(f.getPath());
+        st.structuralLock.lock();
+        //fix header checksum, so only feature check fails
+        int checksum = st.headChecksum(st.vol);
+        st.structuralLock.unlock();
+        st.vol.putInt(StoreDirect.HEAD_CHECKSUM, checksum);
+        try {
+            st.init();
+            fail();
+        }catch(DBException.DataCorruption ex){
+            //expected
+        }
+        st.vol.close();
+    }
+
+    @Test public void old_format_rejected(){
+        e.close();
+        e = null;
+        //older formats miss some of required feature bits
+        for(long missing:new long[]{StoreDirect.FEATURES_REQUIRED,
+                StoreDirect.FEATURE_SPACE_COUNTERS, StoreDirect.FEATURE_LONG_STACK_DELTA}) {
+            Volume vol = Volume.fileFactory().run(f.getPath());
+            vol.putLong(StoreDirect.FORMAT_FEATURES, StoreDirect.FEATURES_REQUIRED & ~missing);
+            vol.sync();
+            vol.close();
+
+            StoreDirect st = new StoreDirect(f.getPath());
+            st.structuralLock.lock();
+            int checksum = st.headChecksum(st.vol);
+            st.structuralLock.unlock();
+            st.vol.putInt(StoreDirect.HEAD_CHECKSUM, checksum);
+            try {
+                st.init();
+                fail();
+            } catch (DBException.DataCorruption ex) {
+                //expected
+            }
+            st.vol.close();
+        }
+    }
+
+    @Test public void old_layout_checksum(){
+        e.close();
+        e = null;
+        //store written by older format, its checksum only covers shorter header
+        Volume vol = Volume.fileFactory().run(f.getPath());
+        vol.putLong(StoreDirect.FORMAT_FEATURES, 0L);
+        vol.sync();
+        vol.close();
+
+        StoreDirect st = new StoreDirect(f.getPath());
+        st.structuralLock.lock();
+        int checksum = st.headChecksum(st.vol, StoreDirect.HEAD_END_OLD);
+        st.structuralLock.unlock();
+        st.vol.putInt(StoreDirect.HEAD_CHECKSUM, checksum);
+        try {
+            st.init();
+            fail();
+        } catch (DBException.HeadChecksumBroken ex) {
+            fail();
+        } catch (DBException.DataCorruption ex) {
+            assertTrue(ex.getMessage().contains("older"));
+        }
+
+        //broken checksum is still reported as broken
+        st.vol.putInt(StoreDirect.HEAD_CHECKSUM, checksum+1);
+        try {
+            st.init();
+            fail();
+        } catch (DBException.HeadChecksumBroken ex) {
+            //expected
+        }
+        st.vol.close();
+    }
+
+    @Test public void wal_replay_updates_crc(){
+        File f2 = UtilsTest.tempDbFile();
+        StoreWAL w = new StoreWAL(f2.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, 0, 0, 0, true, CC.DEFAULT_WAL_CHECKPOINT_SIZE,
+                CC.DEFAULT_WAL_PREALLOCATE_SIZE, 0);
+        w.init();
+        long[] recids = new long[200000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = w.put(i, Serializer.INTEGER);
+        }
+        w.commit();
+        for(int i=0;i<recids.length;i+=3){
+            w.delete(recids[i], Serializer.INTEGER);
+        }
+        w.commit();
+        w.close();
+
+        w = new StoreWAL(f2.getPath());
+        w.init();
+        assertTrue(w.indexPageCrc);
+        assertTrue(w.indexPages.length>1);
+        verifyIndexPageCrc(w);
+        for(int i=1;i<recids.length;i+=3){
+            assertEquals(Integer.valueOf(i), w.get(recids[i], Serializer.INTEGER));
+        }
+        w.close();
+    }
+
+    @Test public void DBMaker_index_page_checksum(){
+        File f2 = UtilsTest.tempDbFile();
+        DB db = DBMaker.newFileDB(f2).indexPageChecksumEnable().transactionDisable().make();
+        db.getHashMap("map").put(1, "one");
+        db.commit();
+        assertTrue(((StoreDirect)Store.forDB(db)).indexPageCrc);
+        db.close();
+
+        db = DBMaker.newFileDB(f2).transactionDisable().make();
+        assertTrue(((StoreDirect)Store.forDB(db)).indexPageCrc);
+        assertEquals("one", db.getHashMap("map").get(1));
+        db.close();
+    }
+
+}
@@ -9,8 +9,13 @@ import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.locks.Lock;
 
 import static org.junit.Assert.*;
@@ -423,7 +428,7 @@ public class StoreDirectTest <E extends StoreDirect> extends EngineTest<E>{
         assertEquals(12+2, pageId>>>48);
         pageId = pageId & StoreDirect.MOFFSET;
         assertEquals(PAGE_SIZE, pageId);
-        assertEquals(CHUNKSIZE, DataIO.parity4Get(e.vol.getLong(pageId + 4))>>>48);
+        assertEquals(LONG_STACK_MIN_SIZE, DataIO.parity4Get(e.vol.getLong(pageId + 4))>>>48);
         assertEquals(0, DataIO.parity4Get(e.vol.getLong(pageId+4))&MOFFSET);
         assertEquals(DataIO.parity1Set(111<<1), e.vol.getLongPackBidi(pageId + 12)&DataIO.PACK_LONG_BIDI_MASK);
     }
@@ -447,15 +452,30 @@ public class StoreDirectTest <E extends StoreDirect> extends EngineTest<E>{
         long currPageSize = pageId>>>48;
         pageId = pageId & StoreDirect.MOFFSET;
         assertEquals(PAGE_SIZE, pageId);
-        assertEquals(CHUNKSIZE, e.vol.getLong(pageId+4)>>>48);
+        assertEquals(LONG_STACK_MIN_SIZE, e.vol.getLong(pageId+4)>>>48);
         assertEquals(0, e.vol.getLong(pageId+4)&MOFFSET); //next link
+        assertEquals(Arrays.asList(111L,112L,113L,114L,115L), longStackPageValues(pageId, currPageSize));
+    }
+
+    /** decodes content of long stack page, top entry is absolute value, others are stored as difference */
+    protected List<Long> longStackPageValues(long pageId, long currPageSize){
+        List<Long> packed = new ArrayList<Long>();
         long offset = pageId + 12;
-        for(int i=111;i<=115;i++){
+        while(offset<pageId+currPageSize){
             long val = e.vol.getLongPackBidi(offset);
-            assertEquals(i, DataIO.parity1Get(val & DataIO.PACK_LONG_BIDI_MASK)>>>1);
+            packed.add(val & DataIO.PACK_LONG_BIDI_MASK);
             offset += val >>> 56;
         }
         assertEquals(currPageSize, offset-pageId);
+
+        LinkedList<Long> ret = new LinkedList<Long>();
+        long above = DataIO.parity1Get(packed.get(packed.size()-1))>>>1;
+        ret.add(above);
+        for(int i=packed.size()-2;i>=0;i--){
+            above = StoreDirect.longStackDeltaGet(packed.get(i), above);
+            ret.addFirst(above);
+        }
+        return ret;
     }
 
     @Test public void long_stack_page_deleted_after_take() throws IOException {
@@ -502,16 +522,18 @@ public class StoreDirectTest <E extends StoreDirect> extends EngineTest<E>{
 
     @Test public void long_stack_page_overflow() throws IOException {
         e.structuralLock.lock();
-        //fill page until near overflow
-
-        int actualChunkSize = 12;
+        //fill page until it overflows into new page
+        List<Long> values = new ArrayList<Long>();
         for(int i=0;;i++){
-            long val = 1000L+i;
+            long val = 1000L+i*100;
             e.longStackPut(FREE_RECID_STACK, val ,false);
-            actualChunkSize += DataIO.packLongBidi(new byte[8],0,val<<1);
-            if(e.headVol.getLong(FREE_RECID_STACK)>>48 >CHUNKSIZE-10)
+            if((e.headVol.getLong(FREE_RECID_STACK)&MOFFSET) != PAGE_SIZE)
                 break;
+            values.add(val);
         }
+        long overflowVal = 1000L+values.size()*100;
+        //delta encoding stores many more values than 8 bytes per entry
+        assertTrue(values.size() > LONG_STACK_MIN_SIZE/4);
         e.commit();
         if(e instanceof  StoreWAL){
             //TODO method to commit and force WAL replay
@@ -522,49 +544,63 @@ public class StoreDirectTest <E extends StoreDirect> extends EngineTest<E>{
             ((StoreWAL)e).walStartNextFile();
         }
 
-        //check content
-        long pageId = e.headVol.getLong(FREE_RECID_STACK);
-        assertEquals(actualChunkSize, pageId>>>48);
-        pageId = pageId & StoreDirect.MOFFSET;
-        assertEquals(PAGE_SIZE, pageId);
-        assertEquals(StoreDirect.CHUNKSIZE, e.vol.getLong(pageId+4)>>>48);
-        for(long i=1000,pos=12;;i++){
-            long val = e.vol.getLongPackBidi(pageId+pos);
-            assertEquals(i, DataIO.parity1Get(val&DataIO.PACK_LONG_BIDI_MASK)>>>1);
-            pos+=val>>>56;
-            if(pos==actualChunkSize){
-                break;
-            }
-        }
-
-        //add one more item, this will trigger page overflow
-        e.longStackPut(FREE_RECID_STACK, 11L,false);
-        e.commit();
-        if(e instanceof  StoreWAL){
-            ((StoreWAL)e).replayWAL();
-            clearEverything();
-            ((StoreWAL)e).walStartNextFile();
-        }
-
         //check page overflowed
-        pageId = e.headVol.getLong(FREE_RECID_STACK);
-        assertEquals(12+2, pageId>>>48);
+        long pageId = e.headVol.getLong(FREE_RECID_STACK);
+        long currPageSize = pageId>>>48;
         pageId = pageId & StoreDirect.MOFFSET;
-        assertEquals(PAGE_SIZE + StoreDirect.CHUNKSIZE, pageId);
-        assertEquals(PAGE_SIZE, DataIO.parity4Get(e.vol.getLong(pageId + 4)) & StoreDirect.MOFFSET); //prev link
-        assertEquals(CHUNKSIZE, e.vol.getLong(pageId+4)>>>48); //cur page size
+        long prevPageId = DataIO.parity4Get(e.vol.getLong(pageId + 4)) & StoreDirect.MOFFSET;
+        assertEquals(PAGE_SIZE, prevPageId); //prev link
+        assertEquals(LONG_STACK_MIN_SIZE*2, e.vol.getLong(pageId+4)>>>48); //cur page size
         //overflow value
-        assertEquals(11L, DataIO.parity1Get(e.vol.getLongPackBidi(pageId+12)&DataIO.PACK_LONG_BIDI_MASK)>>>1);
+        assertEquals(Arrays.asList(overflowVal), longStackPageValues(pageId, currPageSize));
 
         //remaining bytes should be zero
-        for(long offset = pageId+12+2;offset<pageId+CHUNKSIZE;offset++){
+        for(long offset = pageId+currPageSize;offset<pageId+LONG_STACK_MIN_SIZE*2;offset++){
             assertEquals(0,e.vol.getByte(offset));
         }
+
+        //check content of previous page
+        assertEquals(LONG_STACK_MIN_SIZE, e.vol.getLong(prevPageId+4)>>>48);
+        long prevPageSize = LONG_STACK_MIN_SIZE;
+        while(e.vol.getUnsignedByte(prevPageId+prevPageSize-1)==0)
+            prevPageSize--;
+        assertEquals(values, longStackPageValues(prevPageId, prevPageSize));
+
+        //take all values back
+        assertEquals(overflowVal, e.longStackTake(FREE_RECID_STACK,false));
+        for(int i=values.size()-1;i>=0;i--){
+            assertEquals(values.get(i).longValue(), e.longStackTake(FREE_RECID_STACK,false));
+        }
+        assertEquals(0L, e.longStackTake(FREE_RECID_STACK,false));
+    }
+
+    @Test public void long_stack_delta_random() throws IOException {
+        e.structuralLock.lock();
+        Random r = new Random(1);
+        LinkedList<Long> stack = new LinkedList<Long>();
+        for(int i=0;i<100000;i++){
+            if(stack.isEmpty() || r.nextInt(3)!=0){
+                long val = 1+ (r.nextBoolean()? r.nextInt(1000) : (r.nextLong()&0xFFFFFFFFFFFFL));
+                e.longStackPut(FREE_RECID_STACK, val, false);
+                stack.push(val);
+            }else{
+                assertEquals(stack.pop().longValue(), e.longStackTake(FREE_RECID_STACK, false));
+            }
+            if(i%10000==0)
+                assertEquals(stack.size(), e.longStackCount(FREE_RECID_STACK));
+        }
+        e.commit();
+        while(!stack.isEmpty()){
+            assertEquals(stack.pop().longValue(), e.longStackTake(FREE_RECID_STACK, false));
+        }
+        assertEquals(0L, e.longStackTake(FREE_RECID_STACK, false));
     }
 
 
     @Test public void test_constants(){
-        assertTrue(StoreDirect.CHUNKSIZE%16==0);
+        assertTrue(StoreDirect.LONG_STACK_MIN_SIZE%16==0);
+        assertTrue(StoreDirect.LONG_STACK_MAX_SIZE%16==0);
+        assertTrue(StoreDirect.LONG_STACK_MAX_SIZE<=MAX_REC_SIZE);
         
     }
 
@@ -598,6 +634,121 @@ public class StoreDirectTest <E extends StoreDirect> extends EngineTest<E>{
     }
 
 
+    @Test public void compact_file_reopen(){
+        Map<Long,String> recids = new HashMap<Long, String>();
+        List<Long> deleted = new ArrayList<Long>();
+        for(int i=0;i<100000;i++){
+            long recid = e.put("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa" + i, Serializer.STRING);
+            if(i%3==0)
+                deleted.add(recid);
+            else
+                recids.put(recid, "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa" + i);
+        }
+        e.commit();
+        for(Long recid:deleted){
+            e.delete(recid, Serializer.STRING);
+        }
+        e.commit();
+        long oldSize = DataIO.parity16Get(e.headVol.getLong(STORE_SIZE));
+        e.compact();
+        e.commit();
+        assertTrue(DataIO.parity16Get(e.headVol.getLong(STORE_SIZE))<oldSize);
+        assertFalse(new File(f.getPath()+StoreDirect.COMPACT_FILE_EXT).exists());
+        assertFalse(new File(f.getPath()+StoreDirect.COMPACT_ORIG_FILE_EXT).exists());
+
+        reopen();
+        for(Map.Entry<Long,String> m:recids.entrySet()){
+            assertEquals(m.getValue(), e.get(m.getKey(), Serializer.STRING));
+        }
+    }
+
+    @Test public void compact_orig_recovered(){
+        long recid = e.put("aaa", Serializer.STRING);
+        e.commit();
+        File file = new File(e.fileName);
+        e.close();
+
+        //simulate crash during compaction, after original file was moved aside
+        File origFile = new File(file.getPath()+StoreDirect.COMPACT_ORIG_FILE_EXT);
+        File compactFile = new File(file.getPath()+StoreDirect.COMPACT_FILE_EXT);
+        assertTrue(file.renameTo(origFile));
+        e = openEngine();
+        assertEquals("aaa", e.get(recid, Serializer.STRING));
+        assertFalse(origFile.exists());
+        assertFalse(compactFile.exists());
+
+        //next compaction must not delete restored data
+        e.compact();
+        reopen();
+        assertEquals("aaa", e.get(recid, Serializer.STRING));
+    }
+
+    @Test public void stats_match_index(){
+        //TODO StoreWAL does not follow links of linked records which are not replayed yet
+        int largeSize = e instanceof StoreWAL ? 1000 : 200000;
+        Random r = new Random(1);
+        List<Long> recids = new ArrayList<Long>();
+        for(int i=0;i<10000;i++){
+            int op = r.nextInt(5);
+            if(op==0 || recids.isEmpty()){
+                recids.add(e.put(new byte[r.nextInt(r.nextInt(10)==0 ? largeSize : 1000)], Serializer.BYTE_ARRAY_NOSIZE));
+            }else if(op==1) {
+                recids.add(e.preallocate());
+            }else if(op==2){
+                e.delete(recids.remove(r.nextInt(recids.size())), Serializer.BYTE_ARRAY_NOSIZE);
+            }else{
+                byte[] val = r.nextInt(10)==0 ? null: new byte[r.nextInt(1000)];
+                e.update(recids.get(r.nextInt(recids.size())), val, Serializer.BYTE_ARRAY_NOSIZE);
+            }
+        }
+        e.commit();
+        verifyStats();
+
+        if(canRollback()){
+            for(int i=0;i<1000;i++){
+                e.delete(recids.remove(r.nextInt(recids.size())), Serializer.BYTE_ARRAY_NOSIZE);
+            }
+            e.rollback();
+            verifyStats();
+        }
+
+        reopen();
+        verifyStats();
+    }
+
+    /** checks space usage counters against content of index table */
+    protected void verifyStats(){
+        Store.Stats stats = e.getStats();
+        long free = 0;
+        for(long f:stats.freeSizes){
+            free+=f;
+        }
+        assertEquals(stats.freeSize, free);
+        assertEquals(stats.freeSize, e.getFreeSize());
+
+        long live = 0;
+        long freeRecids = 0;
+        long maxRecid = e.compactMaxRecid();
+        for(long recid=1;recid<=maxRecid;recid++){
+            Lock lock = e.locks[e.lockPos(recid)].readLock();
+            lock.lock();
+            try{
+                if((e.indexValGet(recid)&MUNUSED)!=0)
+                    freeRecids++;
+                long[] offsets = e.offsetsGet(recid);
+                if(offsets==null)
+                    continue;
+                for(long o:offsets){
+                    live+=round16Up((int) (o>>>48));
+                }
+            }finally {
+                lock.unlock();
+            }
+        }
+        assertEquals(live, stats.liveSize);
+        assertEquals(freeRecids, stats.freeRecidCount);
+    }
+
     @Test public void prealloc(){
         long recid = e.preallocate();
         assertNull(e.get(recid,UtilsTest.FAIL));
@@ -6,6 +6,8 @@ import java.io.IOError;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 import static org.mapdb.DataIO.*;
@@ -73,7 +75,7 @@ public class StoreDirectTest2 {
                 return vol;
             }
         };
-        StoreDirect st = new StoreDirect(null, fab, null, CC.DEFAULT_LOCK_SCALE, 0, false, false,null, false, 0,false,0);
+        StoreDirect st = new StoreDirect(null, fab, null, CC.DEFAULT_LOCK_SCALE, 0, false, false,null, false, 0,0,0,0,false,false);
         st.init();
 
         Map<Long,String> recids = new HashMap();
@@ -86,7 +88,7 @@ public class StoreDirectTest2 {
         //close would destroy Volume,so this will do
         st.commit();
 
-        st = new StoreDirect(null, fab, null, CC.DEFAULT_LOCK_SCALE, 0, false, false,null, false, 0,false,0);
+        st = new StoreDirect(null, fab, null, CC.DEFAULT_LOCK_SCALE, 0, false, false,null, false, 0,0,0,0,false,false);
         st.init();
 
         for(Map.Entry<Long,String> e:recids.entrySet()){
@@ -238,4 +240,138 @@ public class StoreDirectTest2 {
     }
 
 
-}
\ No newline at end of file
+
+    @Test public void compact_reclaims_space(){
+        StoreDirect st = newStore();
+        Map<Long,byte[]> recids = new HashMap();
+        Random r = new Random(1);
+        for(int i=0;i<10000;i++){
+            byte[] b = new byte[100+r.nextInt(2000)];
+            r.nextBytes(b);
+            recids.put(st.put(b, Serializer.BYTE_ARRAY_NOSIZE), b);
+        }
+        //delete every other record
+        Map<Long,byte[]> deleted = new HashMap();
+        int i=0;
+        for(Long recid:recids.keySet()){
+            if(i++%2==0)
+                deleted.put(recid, null);
+        }
+        for(Long recid:deleted.keySet()){
+            st.delete(recid, Serializer.BYTE_ARRAY_NOSIZE);
+            recids.remove(recid);
+        }
+        st.commit();
+
+        long storeSize = parity16Get(st.vol.getLong(STORE_SIZE));
+        st.compact();
+        assertTrue(parity16Get(st.vol.getLong(STORE_SIZE))<storeSize);
+
+        st.clearCache();
+        for(Map.Entry<Long,byte[]> e:recids.entrySet()){
+            assertArrayEquals(e.getValue(), st.get(e.getKey(), Serializer.BYTE_ARRAY_NOSIZE));
+        }
+        for(Long recid:deleted.keySet()){
+            assertNull(st.get(recid, Serializer.BYTE_ARRAY_NOSIZE));
+        }
+
+        //store is usable after compaction
+        long recid = st.put(new byte[]{1,2,3}, Serializer.BYTE_ARRAY_NOSIZE);
+        assertArrayEquals(new byte[]{1,2,3}, st.get(recid, Serializer.BYTE_ARRAY_NOSIZE));
+        st.commit();
+        assertArrayEquals(new byte[]{1,2,3}, st.get(recid, Serializer.BYTE_ARRAY_NOSIZE));
+    }
+
+    @Test public void compact_preserves_special_records(){
+        StoreDirect st = newStore();
+        long prealloc = st.preallocate();
+        long nullRec = st.put(null, Serializer.STRING);
+        long empty = st.put("", Serializer.STRING_NOSIZE);
+        long large = st.put(new byte[200000], Serializer.BYTE_ARRAY_NOSIZE);
+        st.commit();
+        st.compact();
+
+        assertEquals(st.composeIndexVal(0,0,true,true,true), st.vol.getLong(st.recidToOffset(prealloc)));
+        assertNull(st.get(prealloc, Serializer.STRING));
+        assertNull(st.get(nullRec, Serializer.STRING));
+        assertEquals("", st.get(empty, Serializer.STRING_NOSIZE));
+        assertArrayEquals(new byte[200000], st.get(large, Serializer.BYTE_ARRAY_NOSIZE));
+        assertEquals(parity3Set(8 * large), st.vol.getLong(MAX_RECID_OFFSET));
+    }
+
+    @Test(timeout = 100000)
+    public void compact_concurrent_updates() throws InterruptedException {
+        final StoreDirect st = newStore();
+        final long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = st.put(0L, Serializer.LONG);
+        }
+        st.commit();
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final long[] values = new long[recids.length];
+        Thread writer = new Thread(){
+            @Override
+            public void run() {
+                Random r = new Random();
+                for(long v=1;!stop.get();v++){
+                    int i = r.nextInt(recids.length);
+                    st.update(recids[i], v, Serializer.LONG);
+                    values[i] = v;
+                }
+            }
+        };
+        writer.start();
+        for(int i=0;i<10;i++){
+            st.compact();
+        }
+        stop.set(true);
+        writer.join();
+
+        st.clearCache();
+        for(int i=0;i<recids.length;i++){
+            assertEquals(Long.valueOf(values[i]), st.get(recids[i], Serializer.LONG));
+        }
+    }
+
+
+    @Test public void stats(){
+        StoreDirect st = newStore();
+        Store.Stats stats = st.getStats();
+        assertEquals(0, stats.freeSize);
+        assertEquals(0, stats.liveSize);
+        assertEquals(0, stats.freeRecidCount);
+
+        long recid1 = st.put(new byte[100], Serializer.BYTE_ARRAY_NOSIZE);
+        long recid2 = st.put(new byte[200000], Serializer.BYTE_ARRAY_NOSIZE);
+        long live = 112 + 3*round16Up(MAX_REC_SIZE) + round16Up(200000-3*(MAX_REC_SIZE-8));
+        assertEquals(live, st.getStats().liveSize);
+
+        //delete first record, its space goes to free slots
+        st.delete(recid1, Serializer.BYTE_ARRAY_NOSIZE);
+        stats = st.getStats();
+        assertEquals(112, stats.freeSize);
+        assertEquals(112, st.getFreeSize());
+        assertEquals(112, stats.freeSizes[112/16]);
+        assertEquals(live-112, stats.liveSize);
+        assertEquals(1, stats.freeRecidCount);
+
+        //free slot is reused
+        long recid3 = st.put(new byte[110], Serializer.BYTE_ARRAY_NOSIZE);
+        stats = st.getStats();
+        assertEquals(0, stats.freeSize);
+        assertEquals(0, stats.freeSizes[112/16]);
+        assertEquals(live, stats.liveSize);
+
+        long recid4 = st.preallocate();
+        assertEquals(2, st.getStats().freeRecidCount);
+        st.update(recid4, new byte[10], Serializer.BYTE_ARRAY_NOSIZE);
+        assertEquals(1, st.getStats().freeRecidCount);
+
+        st.delete(recid2, Serializer.BYTE_ARRAY_NOSIZE);
+        st.delete(recid3, Serializer.BYTE_ARRAY_NOSIZE);
+        assertEquals(3, st.getStats().freeRecidCount);
+        assertTrue(st.getStats().fragmentation()>0.9);
+    }
+
+}
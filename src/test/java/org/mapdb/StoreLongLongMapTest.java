@@ -68,6 +68,39 @@ public class StoreLongLongMapTest {
 
     }
 
+    @Test public void insertion_order(){
+        Store.LongLongMap m = new Store.LongLongMap();
+        //table is resized several times
+        for(long i=1;i<10000L;i++){
+            m.put(i*31, i);
+        }
+        //update does not change order
+        for(long i=1;i<10000L;i+=2){
+            m.put(i*31, -i);
+        }
+        assertEquals(9999, m.size());
+        for(int pos=0;pos<m.size();pos++){
+            long i = pos+1;
+            assertEquals(i*31, m.key(pos));
+            assertEquals(i%2==1?-i:i, m.value(pos));
+        }
+
+        //clear only touches inserted entries, table stays large
+        int tableSize = m.table.length;
+        m.clear();
+        m.put(5L, 6L);
+        assertEquals(tableSize, m.table.length);
+        m.clear();
+        assertEquals(0, m.size());
+        for(long l:m.table){
+            assertEquals(0L, l);
+        }
+        m.put(1L, 2L);
+        assertEquals(1L, m.key(0));
+        assertEquals(2L, m.value(0));
+        assertEquals(0L, m.get(5L));
+    }
+
     @Test public void random(){
         Random r = new Random();
 
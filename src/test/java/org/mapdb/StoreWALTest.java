@@ -4,7 +4,19 @@ package org.mapdb;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -95,4 +107,599 @@ public class StoreWALTest<E extends StoreWAL> extends StoreCachedTest<E>{
 
     }
 
+    @Test(timeout = 100000)
+    public void group_commit_joins_waiting_threads() throws Exception {
+        final CountDownLatch firstCommitStarted = new CountDownLatch(1);
+        final CountDownLatch firstCommitRelease = new CountDownLatch(1);
+        final AtomicInteger groups = new AtomicInteger();
+        final StoreWAL w = new StoreWAL(f.getPath()){
+            @Override
+            protected void commitGroup() {
+                if(groups.incrementAndGet()==1){
+                    firstCommitStarted.countDown();
+                    try {
+                        firstCommitRelease.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                super.commitGroup();
+            }
+        };
+        w.init();
+
+        ExecutorService exec = Executors.newCachedThreadPool();
+        final long recid0 = w.put(0L, Serializer.LONG);
+        Future first = exec.submit(new Runnable() {
+            @Override
+            public void run() {
+                w.commit();
+            }
+        });
+        firstCommitStarted.await();
+
+        //those threads arrive while first commit is running
+        final int threadNum = 4;
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for(int i=0;i<threadNum;i++){
+            final long val = i+1;
+            futures.add(exec.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long recid = w.put(val, Serializer.LONG);
+                    w.commit();
+                    return recid;
+                }
+            }));
+        }
+        //wait until all threads are waiting for running commit
+        for(;;){
+            w.groupCommitLock.lock();
+            try{
+                if(w.groupCommitLock.getWaitQueueLength(w.groupCommitDone)==threadNum)
+                    break;
+            }finally {
+                w.groupCommitLock.unlock();
+            }
+            Thread.sleep(1);
+        }
+        firstCommitRelease.countDown();
+
+        first.get();
+        List<Long> recids = new ArrayList<Long>();
+        for(Future<Long> fut:futures){
+            recids.add(fut.get());
+        }
+        exec.shutdown();
+        //waiting threads were committed together
+        assertEquals(2, groups.get());
+        w.close();
+
+        StoreWAL w2 = new StoreWAL(f.getPath());
+        w2.init();
+        assertEquals(Long.valueOf(0L), w2.get(recid0, Serializer.LONG));
+        for(int i=0;i<threadNum;i++){
+            assertEquals(Long.valueOf(i+1), w2.get(recids.get(i), Serializer.LONG));
+        }
+        w2.close();
+    }
+
+    @Test(timeout = 100000)
+    public void group_commit_concurrent() throws Exception {
+        final int threadNum = 8;
+        final int max = 200;
+        final AtomicInteger groups = new AtomicInteger();
+        //set when all threads are about to commit
+        final AtomicBoolean roundStart = new AtomicBoolean();
+        final StoreWAL w = new StoreWAL(f.getPath()){
+            @Override
+            protected void commitGroup() {
+                groups.incrementAndGet();
+                if(roundStart.compareAndSet(true,false)){
+                    //first commit in round waits until all other threads are waiting for it
+                    long deadline = System.currentTimeMillis()+10000;
+                    for(;;){
+                        groupCommitLock.lock();
+                        try{
+                            if(groupCommitLock.getWaitQueueLength(groupCommitDone)>=threadNum-1)
+                                break;
+                        }finally {
+                            groupCommitLock.unlock();
+                        }
+                        if(System.currentTimeMillis()>deadline)
+                            throw new AssertionError("commits do not overlap");
+                        Thread.yield();
+                    }
+                }
+                super.commitGroup();
+            }
+        };
+        w.init();
+        final CyclicBarrier barrier = new CyclicBarrier(threadNum, new Runnable() {
+            @Override
+            public void run() {
+                roundStart.set(true);
+            }
+        });
+        ExecutorService exec = Executors.newFixedThreadPool(threadNum);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        for(int t=0;t<threadNum;t++){
+            final int t2 = t;
+            futures.add(exec.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] recids = new long[max];
+                    for(int i=0;i<max;i++){
+                        recids[i] = w.put(t2*max+i, Serializer.INTEGER);
+                        barrier.await();
+                        w.commit();
+                    }
+                    return recids;
+                }
+            }));
+        }
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(100, TimeUnit.SECONDS));
+        for(Future<long[]> fut:futures){
+            fut.get();
+        }
+        //in each round first commit runs alone, second one commits changes from all other threads
+        assertEquals(2*max, groups.get());
+        w.close();
+
+        StoreWAL w2 = new StoreWAL(f.getPath());
+        w2.init();
+        for(int t=0;t<threadNum;t++){
+            long[] recids = futures.get(t).get();
+            for(int i=0;i<max;i++){
+                assertEquals(Integer.valueOf(t*max+i), w2.get(recids[i], Serializer.INTEGER));
+            }
+        }
+        w2.close();
+    }
+
+    StoreWAL openWithCheckpointSize(long walCheckpointSize){
+        StoreWAL w = new StoreWAL(f.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, 0, 0, 0, false, walCheckpointSize,
+                CC.DEFAULT_WAL_PREALLOCATE_SIZE, 0);
+        w.init();
+        return w;
+    }
+
+    @Test public void checkpoint_manual(){
+        StoreWAL w = openWithCheckpointSize(Long.MAX_VALUE);
+        long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = w.put("aa"+i, Serializer.STRING);
+            if(i%100==0)
+                w.commit();
+        }
+        w.commit();
+        assertNull(w.checkpointThread);
+        int lastFile = w.fileNum;
+        assertTrue(lastFile>1);
+        assertTrue(new File(w.getWalFileName(0)).exists());
+
+        w.walCheckpoint();
+        assertEquals(lastFile, w.walFirstFile);
+        assertEquals(0, w.walSealedSize);
+        for(int i=0;i<lastFile;i++){
+            assertFalse(new File(w.getWalFileName(i)).exists());
+            assertNull(w.volumes.get(i));
+        }
+        for(int segment=0;segment<w.locks.length;segment++){
+            assertEquals(0, w.prevLongLongs[segment].size());
+            assertEquals(0, w.prevDataLongs[segment].size());
+        }
+        assertEquals(0, w.pageLongStack.size());
+
+        //records are now read from main store
+        for(int i=0;i<recids.length;i++){
+            assertEquals("aa"+i, w.get(recids[i], Serializer.STRING));
+        }
+
+        //rollback still works after checkpoint
+        w.update(recids[0], "bb", Serializer.STRING);
+        w.rollback();
+        assertEquals("aa0", w.get(recids[0], Serializer.STRING));
+        w.update(recids[1], "bb", Serializer.STRING);
+        w.commit();
+        w.close();
+
+        w = openWithCheckpointSize(Long.MAX_VALUE);
+        assertEquals("aa0", w.get(recids[0], Serializer.STRING));
+        assertEquals("bb", w.get(recids[1], Serializer.STRING));
+        for(int i=2;i<recids.length;i++){
+            assertEquals("aa"+i, w.get(recids[i], Serializer.STRING));
+        }
+        w.close();
+    }
+
+    @Test(timeout = 100000)
+    public void checkpoint_background() throws InterruptedException {
+        StoreWAL w = openWithCheckpointSize(1);
+        long[] recids = new long[100];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = w.put(i, Serializer.INTEGER);
+        }
+        w.commit();
+        //update records while checkpoint is running
+        for(int j=1;j<100;j++){
+            for(int i=0;i<recids.length;i++){
+                assertEquals(Integer.valueOf((j-1)*1000+i), w.get(recids[i], Serializer.INTEGER));
+                w.update(recids[i], j*1000+i, Serializer.INTEGER);
+            }
+            w.commit();
+        }
+        assertNotNull(w.checkpointThread);
+        assertNull(w.checkpointFailure);
+
+        //wait until background thread copies all sealed files
+        for(;;){
+            w.structuralLock.lock();
+            try{
+                if(w.walFirstFile==w.fileNum)
+                    break;
+            }finally {
+                w.structuralLock.unlock();
+            }
+            Thread.sleep(1);
+        }
+        assertEquals(0, w.walSealedSize);
+        assertFalse(new File(w.getWalFileName(0)).exists());
+        for(int i=0;i<recids.length;i++){
+            assertEquals(Integer.valueOf(99*1000+i), w.get(recids[i], Serializer.INTEGER));
+        }
+        Thread t = w.checkpointThread;
+        w.close();
+        t.join();
+
+        w = openWithCheckpointSize(1);
+        for(int i=0;i<recids.length;i++){
+            assertEquals(Integer.valueOf(99*1000+i), w.get(recids[i], Serializer.INTEGER));
+        }
+        w.close();
+    }
+
+    @Test public void checkpoint_crash_recovery(){
+        StoreWAL w = openWithCheckpointSize(Long.MAX_VALUE);
+        long recid = w.put("aa", Serializer.STRING);
+        w.commit();
+        w.update(recid, "bb", Serializer.STRING);
+        w.commit();
+        w.walCheckpoint();
+        w.update(recid, "cc", Serializer.STRING);
+        w.commit();
+        long recid2 = w.put("dd", Serializer.STRING);
+        w.commit();
+        //not committed, lost in crash
+        w.update(recid, "ee", Serializer.STRING);
+        int firstFile = w.walFirstFile;
+        assertTrue(firstFile>0);
+        assertFalse(new File(w.getWalFileName(0)).exists());
+        assertTrue(new File(w.getWalFileName(firstFile)).exists());
+
+        //store is not closed, reopen replays WAL files which were not checkpointed
+        StoreWAL w2 = openWithCheckpointSize(Long.MAX_VALUE);
+        assertEquals("cc", w2.get(recid, Serializer.STRING));
+        assertEquals("dd", w2.get(recid2, Serializer.STRING));
+        assertFalse(new File(w.getWalFileName(firstFile)).exists());
+        w2.close();
+    }
+
+    @Test public void replay_page_superseded(){
+        StoreWAL.WALReplayReport report = new StoreWAL.WALReplayReport();
+        StoreWAL.WALReplayPage page = new StoreWAL.WALReplayPage(0);
+        page.add(1000, 1, 32, report);
+        page.add(2000, 2, StoreWAL.WALReplayPage.ENTRY_LONG, report);
+        //smaller write does not replace all data
+        page.add(1000, 3, 16, report);
+        assertEquals(0, report.superseded);
+        page.add(1000, 4, 32, report);
+        page.add(2000, 5, StoreWAL.WALReplayPage.ENTRY_LONG, report);
+        //only last write at given offset is compared
+        assertEquals(2, report.superseded);
+        assertTrue(page.indexModified);
+
+        long[] e = page.entries;
+        assertEquals(5*3, page.size);
+        assertEquals(32, e[2]);
+        assertEquals(StoreWAL.WALReplayPage.ENTRY_SUPERSEDED, e[5]);
+        assertEquals(StoreWAL.WALReplayPage.ENTRY_SUPERSEDED, e[8]);
+        assertEquals(4, e[10]);
+        assertEquals(32, e[11]);
+        assertEquals(5, e[13]);
+    }
+
+    @Test public void replay_parallel_crash_recovery(){
+        StoreWAL w = openWithCheckpointSize(Long.MAX_VALUE);
+        long[] recids = new long[50000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = w.put(i+"-"+UtilsTest.randomString(200), Serializer.STRING);
+            if(i%10000==0)
+                w.commit();
+        }
+        w.commit();
+        for(int j=0;j<3;j++) {
+            for (int i = 0; i < recids.length; i += 10) {
+                w.update(recids[i], "u" + j + "-" + i, Serializer.STRING);
+            }
+            w.commit();
+        }
+
+        //store is not closed, reopen replays all WAL files
+        StoreWAL w2 = openWithCheckpointSize(Long.MAX_VALUE);
+        StoreWAL.WALReplayReport report = w2.walReplayLast;
+        assertEquals(w.fileNum, report.files);
+        assertTrue(report.pages>StoreWAL.WAL_REPLAY_PAGES_PER_THREAD);
+        assertTrue(report.superseded>0);
+        assertTrue(report.writes>recids.length);
+        assertTrue(report.toString().contains(report.files+" files"));
+        for(int i=0;i<recids.length;i++){
+            String s = w2.get(recids[i], Serializer.STRING);
+            if(i%10==0)
+                assertEquals("u2-"+i, s);
+            else
+                assertTrue(s.startsWith(i+"-"));
+        }
+        w2.close();
+    }
+
+    @Test public void replay_large_records(){
+        StoreWAL w = openWithCheckpointSize(Long.MAX_VALUE);
+        Random r = new Random();
+        byte[][] data = new byte[100][];
+        long[] recids = new long[data.length];
+        for(int i=0;i<data.length;i++){
+            //larger records are copied directly between volumes
+            data[i] = new byte[StoreWAL.WAL_REPLAY_TRANSFER_MIN/2+r.nextInt(100000)];
+            r.nextBytes(data[i]);
+            recids[i] = w.put(data[i], Serializer.BYTE_ARRAY_NOSIZE);
+        }
+        w.commit();
+
+        //store is not closed, reopen replays WAL
+        StoreWAL w2 = openWithCheckpointSize(Long.MAX_VALUE);
+        for(int i=0;i<data.length;i++){
+            assertArrayEquals(data[i], w2.get(recids[i], Serializer.BYTE_ARRAY_NOSIZE));
+        }
+        w2.close();
+    }
+
+    @Test public void commit_parallel(){
+        StoreWAL w = openWithCheckpointSize(Long.MAX_VALUE);
+        //test machine might have single CPU
+        w.commitThreads = 4;
+        //small commit runs in single thread
+        long recid0 = w.put("aa", Serializer.STRING);
+        w.commit();
+        assertNull(w.commitExecutor);
+
+        //index values take several WAL pages
+        long[] recids = new long[200000];
+        for(int i=0;i<recids.length;i++){
+            recids[i] = w.put(i, Serializer.INTEGER);
+        }
+        w.commit();
+        for(int i=0;i<recids.length;i+=2){
+            w.update(recids[i], -i, Serializer.INTEGER);
+        }
+        w.commit();
+        assertNotNull(w.commitExecutor);
+        for(int i=0;i<recids.length;i++){
+            assertEquals(Integer.valueOf(i%2==0?-i:i), w.get(recids[i], Serializer.INTEGER));
+        }
+
+        //store is not closed, reopen replays WAL
+        StoreWAL w2 = openWithCheckpointSize(Long.MAX_VALUE);
+        assertEquals("aa", w2.get(recid0, Serializer.STRING));
+        for(int i=0;i<recids.length;i++){
+            assertEquals(Integer.valueOf(i%2==0?-i:i), w2.get(recids[i], Serializer.INTEGER));
+        }
+        w2.close();
+    }
+
+    StoreWAL openWithWalCompression(int threshold){
+        StoreWAL w = new StoreWAL(f.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, 0, 0, 0, false, Long.MAX_VALUE,
+                CC.DEFAULT_WAL_PREALLOCATE_SIZE, threshold);
+        w.init();
+        return w;
+    }
+
+    @Test public void wal_compression(){
+        StoreWAL w = openWithWalCompression(CC.DEFAULT_WAL_COMPRESSION_THRESHOLD);
+        Random r = new Random();
+        String[] docs = new String[100];
+        long[] recids = new long[docs.length];
+        long rawSize = 0;
+        for(int i=0;i<docs.length;i++){
+            StringBuilder b = new StringBuilder();
+            while(b.length()<4000+i*600)
+                b.append("{\"id\":").append(i).append(",\"name\":\"document\",\"value\":").append(r.nextInt(100)).append("},");
+            docs[i] = b.toString();
+            rawSize += docs[i].length();
+            recids[i] = w.put(docs[i], Serializer.STRING_NOSIZE);
+        }
+        //small and incompressible records are stored uncompressed
+        long smallRecid = w.put("small", Serializer.STRING_NOSIZE);
+        byte[] random = new byte[10000];
+        r.nextBytes(random);
+        long randomRecid = w.put(random, Serializer.BYTE_ARRAY_NOSIZE);
+        w.commit();
+
+        assertTrue(w.walSealedSize < rawSize/2);
+        //read from WAL
+        for(int i=0;i<docs.length;i++){
+            assertEquals(docs[i], w.get(recids[i], Serializer.STRING_NOSIZE));
+        }
+        assertEquals("small", w.get(smallRecid, Serializer.STRING_NOSIZE));
+        assertArrayEquals(random, w.get(randomRecid, Serializer.BYTE_ARRAY_NOSIZE));
+
+        //store is not closed, replay works even if compression is disabled now
+        StoreWAL w2 = openWithWalCompression(0);
+        for(int i=0;i<docs.length;i++){
+            assertEquals(docs[i], w2.get(recids[i], Serializer.STRING_NOSIZE));
+        }
+        assertEquals("small", w2.get(smallRecid, Serializer.STRING_NOSIZE));
+        assertArrayEquals(random, w2.get(randomRecid, Serializer.BYTE_ARRAY_NOSIZE));
+        w2.close();
+    }
+
+    StoreWAL openWithCommitSync(long commitSyncInterval){
+        StoreWAL w = new StoreWAL(f.getPath(), Volume.fileFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, commitSyncInterval, 0, 0, false, CC.DEFAULT_WAL_CHECKPOINT_SIZE,
+                CC.DEFAULT_WAL_PREALLOCATE_SIZE, 0);
+        w.init();
+        return w;
+    }
+
+    @Test(timeout = 100000)
+    public void commit_sync_periodic() throws InterruptedException {
+        StoreWAL w = openWithCommitSync(10);
+        long recid = w.put("aa", Serializer.STRING);
+        w.commit();
+        assertNotNull(w.commitSyncThread);
+        for(;;){
+            w.commitSyncLock.lock();
+            try{
+                if(w.commitSyncPending.isEmpty())
+                    break;
+            }finally {
+                w.commitSyncLock.unlock();
+            }
+            Thread.sleep(1);
+        }
+        w.update(recid, "bb", Serializer.STRING);
+        w.commit();
+        w.walCheckpoint();
+        //checkpointed files are not synced
+        w.commitSyncLock.lock();
+        assertTrue(w.commitSyncPending.isEmpty());
+        w.commitSyncLock.unlock();
+        w.close();
+        w.commitSyncThread.join();
+
+        w = openWithCommitSync(10);
+        assertEquals("bb", w.get(recid, Serializer.STRING));
+        w.close();
+    }
+
+    @Test public void commit_sync_torn_wal(){
+        StoreWAL w = openWithCommitSync(-1);
+        long recid = w.put("aa", Serializer.STRING);
+        w.commit();
+        w.update(recid, "bb", Serializer.STRING);
+        w.commit();
+        assertEquals(2, w.fileNum);
+
+        //second file was not synced before crash, break checksum of its first instruction
+        Volume wal = Volume.fileFactory().run(w.getWalFileName(1));
+        wal.putUnsignedByte(16, wal.getUnsignedByte(16)^1);
+        wal.sync();
+        wal.close();
+
+        //with sync on commit, this is data corruption
+        try{
+            openWithCommitSync(0);
+            fail();
+        }catch(InternalError e){
+            //expected
+        }
+
+        //otherwise it is lost commit
+        w = openWithCommitSync(-1);
+        assertEquals("aa", w.get(recid, Serializer.STRING));
+        assertFalse(new File(w.getWalFileName(2)).exists());
+        w.close();
+    }
+
+    @Test public void wal_preallocate_recycle(){
+        StoreWAL w = openWithCheckpointSize(Long.MAX_VALUE);
+        File wal0 = new File(w.getWalFileName(0));
+        assertTrue(wal0.length()>=CC.DEFAULT_WAL_PREALLOCATE_SIZE);
+
+        long recid = w.put(0, Serializer.INTEGER);
+        w.commit();
+        for(int i=1;i<5;i++){
+            w.update(recid, i, Serializer.INTEGER);
+            w.commit();
+        }
+        assertEquals(5, w.fileNum);
+        w.walCheckpoint();
+        assertFalse(wal0.exists());
+        assertEquals(5, w.walRecycled.size());
+        for(File f:w.walRecycled){
+            assertTrue(f.exists());
+            Volume vol = Volume.fileFactory().run(f.getPath());
+            assertEquals(0L, vol.getLong(8));
+            vol.close();
+        }
+
+        //next file reuses recycled file
+        File recycled = w.walRecycled.peek();
+        w.update(recid, 5, Serializer.INTEGER);
+        w.commit();
+        assertFalse(recycled.exists());
+        assertEquals(4, w.walRecycled.size());
+        assertTrue(new File(w.getWalFileName(6)).length()>=CC.DEFAULT_WAL_PREALLOCATE_SIZE);
+        assertEquals(Integer.valueOf(5), w.get(recid, Serializer.INTEGER));
+
+        //store crashes, recycled files are found on reopen and not replayed
+        StoreWAL w2 = openWithCheckpointSize(Long.MAX_VALUE);
+        assertEquals(Integer.valueOf(5), w2.get(recid, Serializer.INTEGER));
+        //one of them is already used for new WAL file
+        assertEquals(3, w2.walRecycled.size());
+        w2.close();
+        for(File f:w.walRecycled){
+            assertFalse(f.exists());
+        }
+    }
+
+    @Test public void wal_memory_no_files(){
+        //DBMaker uses empty file name for in-memory stores
+        StoreWAL w = new StoreWAL("", Volume.memoryFactory(), null, CC.DEFAULT_LOCK_SCALE, 0,
+                false, false, null, false, 0, 0, 0, 0, false, Long.MAX_VALUE,
+                CC.DEFAULT_WAL_PREALLOCATE_SIZE, 0);
+        w.init();
+        assertNull(w.getWalFileName(0));
+        assertTrue(w.walFilesFind().isEmpty());
+
+        long recid = w.put(0, Serializer.INTEGER);
+        w.commit();
+        for(int i=1;i<5;i++){
+            w.update(recid, i, Serializer.INTEGER);
+            w.commit();
+        }
+        w.walCheckpoint();
+        //nothing to recycle
+        assertTrue(w.walRecycled.isEmpty());
+        assertEquals(Integer.valueOf(4), w.get(recid, Serializer.INTEGER));
+        w.close();
+    }
+
+    @Test public void compact_uncommitted(){
+        long recid = e.put("aa", Serializer.STRING);
+        e.commit();
+        e.put("bb", Serializer.STRING);
+        try{
+            e.compact();
+            fail();
+        }catch(IllegalAccessError ex){
+            //expected
+        }
+
+        e.rollback();
+        e.update(recid, "cc", Serializer.STRING);
+        e.commit();
+        e.compact();
+        //WAL was replayed into compacted store
+        assertFalse(new File(f.getPath()+".1.wal").exists());
+        assertEquals("cc", e.get(recid, Serializer.STRING));
+
+        e.update(recid, "dd", Serializer.STRING);
+        e.commit();
+        reopen();
+        assertEquals("dd", e.get(recid, Serializer.STRING));
+    }
 }
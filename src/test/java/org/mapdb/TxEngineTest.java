@@ -42,6 +42,16 @@ public class TxEngineTest {
         assertEquals(Integer.valueOf(111), snapshot.get(recid, Serializer.INTEGER));
     }
 
+    @Test public void updateAll_deleteAll(){
+        long[] recids = e.putAll(new Integer[]{111, 112, 113}, Serializer.INTEGER);
+        e.commit();
+        Engine snapshot = e.snapshot();
+        e.updateAll(recids, new Integer[]{221, 222, 223}, Serializer.INTEGER);
+        e.deleteAll(new long[]{recids[0]}, Serializer.INTEGER);
+        assertArrayEquals(new Object[]{111, 112, 113}, snapshot.getAll(recids, Serializer.INTEGER));
+        assertArrayEquals(new Object[]{null, 222, 223}, e.getAll(recids, Serializer.INTEGER));
+    }
+
     @Test public void notExist(){
         Engine snapshot = e.snapshot();
         long recid = e.put(111, Serializer.INTEGER);
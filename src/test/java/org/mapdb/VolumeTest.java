@@ -118,6 +118,7 @@ public class VolumeTest {
                 long_pack_bidi(fab1.call(), fab2.call());
                 int_compatible(fab1.call(), fab2.call());
                 byte_compatible(fab1.call(), fab2.call());
+                transfer_compatible(fab1.call(), fab2.call());
             }
         }
     }
@@ -211,6 +212,32 @@ public class VolumeTest {
     }
 
 
+    void transfer_compatible(Volume v1, Volume v2) throws IOException {
+        //area crosses several slices in both volumes, with different alignment
+        int size = 3*(1<<CC.VOLUME_PAGE_SHIFT)+17;
+        long offset1 = 500;
+        long offset2 = 1000;
+        v1.ensureAvailable(offset1+size);
+        v2.ensureAvailable(offset2+size+1);
+        byte[] b = new byte[size];
+        new Random().nextBytes(b);
+        v1.putDataOverlap(offset1, b, 0, size);
+        v2.putByte(offset2-1, (byte) 11);
+        v2.putByte(offset2+size, (byte) 12);
+
+        v1.transferIntoOverlap(offset1, v2, offset2, size);
+
+        byte[] b2 = new byte[size];
+        v2.getDataInputOverlap(offset2, size).readFully(b2, 0, size);
+        assertArrayEquals(b, b2);
+        //neighbouring bytes are not touched
+        assertEquals(11, v2.getByte(offset2-1));
+        assertEquals(12, v2.getByte(offset2+size));
+
+        v1.close();
+        v2.close();
+    }
+
     void byte_compatible(Volume v1, Volume v2) {
         v1.ensureAvailable(16);
         v2.ensureAvailable(16);